@@ -33,6 +33,10 @@ public class Client {
 		options.addOption("rp", true, "remote port number");
 		options.addOption("rh", true, "remote hostname");
 		options.addOption("s", true, "secret for username");
+		options.addOption("ol", true, "lines of output to keep, 0 for no limit");
+		options.addOption("oc", true, "characters of output to keep, 0 for no limit");
+		options.addOption("ab", true, "most activities sent in one ACTIVITY_BATCH, 1 to send them singly");
+		options.addOption("mf", true, "longest message accepted, in bytes");
 
 		// build the parser
 		CommandLineParser parser = new DefaultParser();
@@ -66,6 +70,42 @@ public class Client {
 			Settings.setUsername(cmd.getOptionValue("u"));
 		}
 
+		if (cmd.hasOption("ol")) {
+			try {
+				Settings.setOutputMaxLines(Integer.parseInt(cmd.getOptionValue("ol")));
+			} catch (NumberFormatException e) {
+				log.error("-ol requires a number of lines, parsed: " + cmd.getOptionValue("ol"));
+				help(options);
+			}
+		}
+
+		if (cmd.hasOption("oc")) {
+			try {
+				Settings.setOutputMaxChars(Integer.parseInt(cmd.getOptionValue("oc")));
+			} catch (NumberFormatException e) {
+				log.error("-oc requires a number of characters, parsed: " + cmd.getOptionValue("oc"));
+				help(options);
+			}
+		}
+
+		if (cmd.hasOption("ab")) {
+			try {
+				Settings.setClientActivityBatch(Integer.parseInt(cmd.getOptionValue("ab")));
+			} catch (NumberFormatException e) {
+				log.error("-ab requires a number of activities, parsed: " + cmd.getOptionValue("ab"));
+				help(options);
+			}
+		}
+
+		if (cmd.hasOption("mf")) {
+			try {
+				Settings.setMaxFrameBytes(Integer.parseInt(cmd.getOptionValue("mf")));
+			} catch (NumberFormatException e) {
+				log.error("-mf requires a number of bytes, parsed: " + cmd.getOptionValue("mf"));
+				help(options);
+			}
+		}
+
 		log.info("starting client");
 
 		ClientSkeleton client = ClientSkeleton.getInstance();
@@ -1,5 +1,6 @@
 package activitystreamer;
 
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 
@@ -12,6 +13,7 @@ import org.apache.commons.cli.ParseException;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import activitystreamer.server.Capture;
 import activitystreamer.server.Control;
 import activitystreamer.util.Settings;
 
@@ -37,6 +39,42 @@ public class Server {
 		options.addOption("rh", true, "remote hostname");
 		options.addOption("a", true, "activity interval in milliseconds");
 		options.addOption("s", true, "secret for the server to use");
+		options.addOption("mc", true, "maximum number of concurrent connections, 0 for no limit");
+		options.addOption("ar", true, "ACTIVITY_MESSAGEs per second allowed per connection and per user");
+		options.addOption("ab", true, "burst size for the activity rate limit");
+		options.addOption("rr", true, "REGISTERs per second allowed per connection");
+		options.addOption("rb", true, "burst size for the register rate limit");
+		options.addOption("op", true, "policy for over-limit messages: drop, delay or redirect");
+		options.addOption("ac", true, "number of acceptor threads, more than one binds with SO_REUSEPORT");
+		options.addOption("bl", true, "backlog of pending connections per acceptor");
+		options.addOption("tr", true, "fraction of activities to trace hop by hop, between 0 and 1");
+		options.addOption("ht", true, "milliseconds without traffic before a server link is considered dead");
+		options.addOption("rt", true, "milliseconds an orphaned server keeps trying to rejoin the tree");
+		options.addOption("bt", true, "hops a subtree must gain before moving closer to the root, 0 to disable");
+		options.addOption("dm", true, "user directory: replicated on every server or partitioned by hash");
+		options.addOption("rf", true, "servers holding each user in a partitioned directory");
+		options.addOption("bq", true, "bytes queued per connection before clients are dropped and links shed broadcasts");
+		options.addOption("mb", true, "most activities accepted in one ACTIVITY_BATCH");
+		options.addOption("ll", true, "microseconds broadcasts wait to share a frame on server links, 0 to disable");
+		options.addOption("lf", true, "largest frame of broadcasts on server links, in bytes");
+		options.addOption("mf", true, "longest message accepted, in bytes");
+		options.addOption("cf", true, "file to capture all traffic to, for replay with CaptureReplay");
+		options.addOption("mm", true, "bytes of memory for offline mailboxes before they spill to disk, 0 disables them");
+		options.addOption("md", true, "bytes of disk for spilled offline mailboxes");
+		options.addOption("mdir", true, "directory offline mailboxes spill to");
+		options.addOption("mu", true, "most broadcasts kept in one user's offline mailbox");
+		options.addOption("ma", true, "milliseconds a user may stay away and keep an offline mailbox");
+		options.addOption("sc", true, "logged-in sessions that count as a full server in the load score");
+		options.addOption("bc", true, "bytes of outbound backlog that count as a full server in the load score");
+		options.addOption("mr", true, "messages per second that count as a full server in the load score");
+		options.addOption("sh", true, "points of load score a server must be above another to redirect to it");
+		options.addOption("st", true, "milliseconds over which the load score is averaged, 0 for no smoothing");
+		options.addOption("qt", true, "milliseconds a cluster statistics query waits for other servers");
+		options.addOption("qc", true, "milliseconds a cluster statistics answer is reused, 0 to always ask");
+		options.addOption("sb", true, "hostname:port of the standby our sessions are replicated to, none to disable");
+		options.addOption("rw", true, "milliseconds a standby keeps the sessions of a failed server");
+		options.addOption("us", true, "where registered users are kept: heap, or offheap for very large registries");
+		options.addOption("usb", true, "bytes of direct memory the offheap user store allocates at a time");
 
 		// build the parser
 		CommandLineParser parser = new DefaultParser();
@@ -82,6 +120,296 @@ public class Server {
 			}
 		}
 
+		if (cmd.hasOption("mc")) {
+			try {
+				Settings.setMaxConnections(Integer.parseInt(cmd.getOptionValue("mc")));
+			} catch (NumberFormatException e) {
+				log.error("-mc requires a number of connections, parsed: " + cmd.getOptionValue("mc"));
+				help(options);
+			}
+		}
+
+		if (cmd.hasOption("ar")) {
+			try {
+				Settings.setActivityRate(Double.parseDouble(cmd.getOptionValue("ar")));
+			} catch (NumberFormatException e) {
+				log.error("-ar requires a rate in messages per second, parsed: " + cmd.getOptionValue("ar"));
+				help(options);
+			}
+		}
+
+		if (cmd.hasOption("ab")) {
+			try {
+				Settings.setActivityBurst(Integer.parseInt(cmd.getOptionValue("ab")));
+			} catch (NumberFormatException e) {
+				log.error("-ab requires a number of messages, parsed: " + cmd.getOptionValue("ab"));
+				help(options);
+			}
+		}
+
+		if (cmd.hasOption("rr")) {
+			try {
+				Settings.setRegisterRate(Double.parseDouble(cmd.getOptionValue("rr")));
+			} catch (NumberFormatException e) {
+				log.error("-rr requires a rate in messages per second, parsed: " + cmd.getOptionValue("rr"));
+				help(options);
+			}
+		}
+
+		if (cmd.hasOption("rb")) {
+			try {
+				Settings.setRegisterBurst(Integer.parseInt(cmd.getOptionValue("rb")));
+			} catch (NumberFormatException e) {
+				log.error("-rb requires a number of messages, parsed: " + cmd.getOptionValue("rb"));
+				help(options);
+			}
+		}
+
+		if (cmd.hasOption("op")) {
+			Settings.setOverloadPolicy(cmd.getOptionValue("op"));
+		}
+
+		if (cmd.hasOption("ac")) {
+			try {
+				Settings.setAcceptors(Integer.parseInt(cmd.getOptionValue("ac")));
+			} catch (NumberFormatException e) {
+				log.error("-ac requires a number of threads, parsed: " + cmd.getOptionValue("ac"));
+				help(options);
+			}
+		}
+
+		if (cmd.hasOption("bl")) {
+			try {
+				Settings.setAcceptBacklog(Integer.parseInt(cmd.getOptionValue("bl")));
+			} catch (NumberFormatException e) {
+				log.error("-bl requires a number of connections, parsed: " + cmd.getOptionValue("bl"));
+				help(options);
+			}
+		}
+
+		if (cmd.hasOption("tr")) {
+			try {
+				Settings.setTraceSampleRate(Double.parseDouble(cmd.getOptionValue("tr")));
+			} catch (NumberFormatException e) {
+				log.error("-tr requires a fraction between 0 and 1, parsed: " + cmd.getOptionValue("tr"));
+				help(options);
+			}
+		}
+
+		if (cmd.hasOption("ht")) {
+			try {
+				Settings.setHeartbeatTimeout(Integer.parseInt(cmd.getOptionValue("ht")));
+			} catch (NumberFormatException e) {
+				log.error("-ht requires a number in milliseconds, parsed: " + cmd.getOptionValue("ht"));
+				help(options);
+			}
+		}
+
+		if (cmd.hasOption("rt")) {
+			try {
+				Settings.setRepairTimeout(Integer.parseInt(cmd.getOptionValue("rt")));
+			} catch (NumberFormatException e) {
+				log.error("-rt requires a number in milliseconds, parsed: " + cmd.getOptionValue("rt"));
+				help(options);
+			}
+		}
+
+		if (cmd.hasOption("bt")) {
+			try {
+				Settings.setBalanceThreshold(Integer.parseInt(cmd.getOptionValue("bt")));
+			} catch (NumberFormatException e) {
+				log.error("-bt requires a number of hops, parsed: " + cmd.getOptionValue("bt"));
+				help(options);
+			}
+		}
+
+		if (cmd.hasOption("dm")) {
+			Settings.setDirectoryMode(cmd.getOptionValue("dm"));
+		}
+
+		if (cmd.hasOption("rf")) {
+			try {
+				Settings.setReplicationFactor(Integer.parseInt(cmd.getOptionValue("rf")));
+			} catch (NumberFormatException e) {
+				log.error("-rf requires a number of servers, parsed: " + cmd.getOptionValue("rf"));
+				help(options);
+			}
+		}
+
+		if (cmd.hasOption("bq")) {
+			try {
+				Settings.setBulkQueueBytes(Integer.parseInt(cmd.getOptionValue("bq")));
+			} catch (NumberFormatException e) {
+				log.error("-bq requires a number of bytes, parsed: " + cmd.getOptionValue("bq"));
+				help(options);
+			}
+		}
+
+		if (cmd.hasOption("mb")) {
+			try {
+				Settings.setMaxActivityBatch(Integer.parseInt(cmd.getOptionValue("mb")));
+			} catch (NumberFormatException e) {
+				log.error("-mb requires a number of activities, parsed: " + cmd.getOptionValue("mb"));
+				help(options);
+			}
+		}
+
+		if (cmd.hasOption("ll")) {
+			try {
+				Settings.setLinkLinger(Long.parseLong(cmd.getOptionValue("ll")));
+			} catch (NumberFormatException e) {
+				log.error("-ll requires a number of microseconds, parsed: " + cmd.getOptionValue("ll"));
+				help(options);
+			}
+		}
+
+		if (cmd.hasOption("lf")) {
+			try {
+				Settings.setLinkFrameBytes(Integer.parseInt(cmd.getOptionValue("lf")));
+			} catch (NumberFormatException e) {
+				log.error("-lf requires a number of bytes, parsed: " + cmd.getOptionValue("lf"));
+				help(options);
+			}
+		}
+
+		if (cmd.hasOption("mf")) {
+			try {
+				Settings.setMaxFrameBytes(Integer.parseInt(cmd.getOptionValue("mf")));
+			} catch (NumberFormatException e) {
+				log.error("-mf requires a number of bytes, parsed: " + cmd.getOptionValue("mf"));
+				help(options);
+			}
+		}
+
+		if (cmd.hasOption("mm")) {
+			try {
+				Settings.setMailboxMemory(Long.parseLong(cmd.getOptionValue("mm")));
+			} catch (NumberFormatException e) {
+				log.error("-mm requires a number of bytes, parsed: " + cmd.getOptionValue("mm"));
+				help(options);
+			}
+		}
+
+		if (cmd.hasOption("md")) {
+			try {
+				Settings.setMailboxDisk(Long.parseLong(cmd.getOptionValue("md")));
+			} catch (NumberFormatException e) {
+				log.error("-md requires a number of bytes, parsed: " + cmd.getOptionValue("md"));
+				help(options);
+			}
+		}
+
+		if (cmd.hasOption("mdir")) {
+			Settings.setMailboxDir(cmd.getOptionValue("mdir"));
+		}
+
+		if (cmd.hasOption("mu")) {
+			try {
+				Settings.setMailboxUserLimit(Integer.parseInt(cmd.getOptionValue("mu")));
+			} catch (NumberFormatException e) {
+				log.error("-mu requires a number of broadcasts, parsed: " + cmd.getOptionValue("mu"));
+				help(options);
+			}
+		}
+
+		if (cmd.hasOption("ma")) {
+			try {
+				Settings.setMailboxMaxAge(Long.parseLong(cmd.getOptionValue("ma")));
+			} catch (NumberFormatException e) {
+				log.error("-ma requires a number of milliseconds, parsed: " + cmd.getOptionValue("ma"));
+				help(options);
+			}
+		}
+
+		if (cmd.hasOption("sc")) {
+			try {
+				Settings.setSessionCapacity(Integer.parseInt(cmd.getOptionValue("sc")));
+			} catch (NumberFormatException e) {
+				log.error("-sc requires a number of sessions, parsed: " + cmd.getOptionValue("sc"));
+				help(options);
+			}
+		}
+
+		if (cmd.hasOption("bc")) {
+			try {
+				Settings.setBacklogCapacity(Long.parseLong(cmd.getOptionValue("bc")));
+			} catch (NumberFormatException e) {
+				log.error("-bc requires a number of bytes, parsed: " + cmd.getOptionValue("bc"));
+				help(options);
+			}
+		}
+
+		if (cmd.hasOption("mr")) {
+			try {
+				Settings.setMessageRateCapacity(Integer.parseInt(cmd.getOptionValue("mr")));
+			} catch (NumberFormatException e) {
+				log.error("-mr requires a number of messages per second, parsed: " + cmd.getOptionValue("mr"));
+				help(options);
+			}
+		}
+
+		if (cmd.hasOption("sh")) {
+			try {
+				Settings.setScoreHysteresis(Double.parseDouble(cmd.getOptionValue("sh")));
+			} catch (NumberFormatException e) {
+				log.error("-sh requires a number of points, parsed: " + cmd.getOptionValue("sh"));
+				help(options);
+			}
+		}
+
+		if (cmd.hasOption("st")) {
+			try {
+				Settings.setScoreSmoothing(Integer.parseInt(cmd.getOptionValue("st")));
+			} catch (NumberFormatException e) {
+				log.error("-st requires a number of milliseconds, parsed: " + cmd.getOptionValue("st"));
+				help(options);
+			}
+		}
+
+		if (cmd.hasOption("qt")) {
+			try {
+				Settings.setStatsTimeout(Integer.parseInt(cmd.getOptionValue("qt")));
+			} catch (NumberFormatException e) {
+				log.error("-qt requires a number of milliseconds, parsed: " + cmd.getOptionValue("qt"));
+				help(options);
+			}
+		}
+
+		if (cmd.hasOption("qc")) {
+			try {
+				Settings.setStatsCacheTtl(Integer.parseInt(cmd.getOptionValue("qc")));
+			} catch (NumberFormatException e) {
+				log.error("-qc requires a number of milliseconds, parsed: " + cmd.getOptionValue("qc"));
+				help(options);
+			}
+		}
+
+		if (cmd.hasOption("sb")) {
+			Settings.setStandby(cmd.getOptionValue("sb"));
+		}
+
+		if (cmd.hasOption("rw")) {
+			try {
+				Settings.setResumeWindow(Integer.parseInt(cmd.getOptionValue("rw")));
+			} catch (NumberFormatException e) {
+				log.error("-rw requires a number of milliseconds, parsed: " + cmd.getOptionValue("rw"));
+				help(options);
+			}
+		}
+
+		if (cmd.hasOption("us")) {
+			Settings.setUserStore(cmd.getOptionValue("us"));
+		}
+
+		if (cmd.hasOption("usb")) {
+			try {
+				Settings.setUserStoreSlab(Integer.parseInt(cmd.getOptionValue("usb")));
+			} catch (NumberFormatException e) {
+				log.error("-usb requires a number of bytes, parsed: " + cmd.getOptionValue("usb"));
+				help(options);
+			}
+		}
+
 		try {
 			Settings.setLocalHostname(InetAddress.getLocalHost().getHostAddress());
 		} catch (UnknownHostException e) {
@@ -101,11 +429,22 @@ public class Server {
 		// set server id.
 		Settings.setServerId();
 
+		if (cmd.hasOption("cf")) {
+			try {
+				Capture.start(cmd.getOptionValue("cf"));
+			} catch (IOException e) {
+				log.fatal("failed to open capture file " + cmd.getOptionValue("cf") + ": " + e);
+				System.exit(-1);
+			}
+		}
+
 		log.info("starting server");
 
 		final Control c = Control.getInstance();
 
-		c.initiateConnection();
+		if (!c.initiateConnection()) {
+			System.exit(-1);
+		}
 		// the following shutdown hook doesn't really work, it doesn't give us enough
 		// time to
 		// cleanup all of our connections before the jvm is terminated.
@@ -113,6 +452,7 @@ public class Server {
 			public void run() {
 				c.setTerm(true);
 				c.interrupt();
+				Capture.stop();
 			}
 		});
 	}
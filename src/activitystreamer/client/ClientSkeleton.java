@@ -1,28 +1,62 @@
 package activitystreamer.client;
 
+import activitystreamer.util.LineFramer;
 import activitystreamer.util.Message;
 import activitystreamer.util.Settings;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
 
+/**
+ * Client engine. The socket reader only parses and queues, a dispatcher thread
+ * hands messages to the listeners and a sender thread batches outgoing writes,
+ * so neither the UI nor the caller of {@link #sendActivityObject} can stall the
+ * socket. Activities queued together are sent as one ACTIVITY_BATCH, and
+ * batches from the server are handed to the listeners one activity at a time.
+ */
 public class ClientSkeleton extends Thread {
 
     private static final Logger log = LogManager.getLogger();
+    private static final int INBOUND_QUEUE_SIZE = 1024;
+    private static final int MAX_SEND_BATCH = 256;
+    private static final long RECONNECT_BASE_DELAY = 500; // milliseconds
+    private static final long RECONNECT_MAX_DELAY = 30000; // milliseconds
     private static ClientSkeleton clientSolution;
+    private final List<MessageListener> listeners = new CopyOnWriteArrayList<>();
+    private final BlockingQueue<JSONObject> inbound = new ArrayBlockingQueue<>(INBOUND_QUEUE_SIZE);
+    private final BlockingQueue<JSONObject> outbound = new LinkedBlockingQueue<>();
+    private final Object writeLock = new Object();
     private TextFrame textFrame;
-    private Socket socket;
-    private DataOutputStream dos;
-    private PrintWriter out;
-    private DataInputStream dis;
-    private InputStreamReader isr;
-    private BufferedReader br;
+    private volatile Socket socket;
+    private PrintWriter out; // guarded by writeLock, null while disconnected
+    private LineFramer framer; // used by the run loop only
     private JSONParser jp;
+    private volatile boolean term = false;
+    // false once the server has told us to stop, e.g. REGISTER_FAILED
+    private volatile boolean reconnect = true;
+    // set by REDIRECT, reconnect straight away instead of backing off
+    private boolean redirected = false;
+    // set by LOGIN_SUCCESS or REGISTER_SUCCESS on the current connection
+    private boolean established = false;
+    // from SESSION: resumes our session at the standby if the server fails
+    private volatile String session;
+    private volatile String standby;
+    private volatile boolean resuming;
 
     public static ClientSkeleton getInstance() {
         if (clientSolution == null) {
@@ -32,23 +66,22 @@ public class ClientSkeleton extends Thread {
     }
 
     public ClientSkeleton() {
-        try {
-            socket = new Socket(Settings.getRemoteHostname(), Settings.getRemotePort());
-            System.out.println("remote hostname and port is:");
-            System.out.println(Settings.getRemoteHostname() + " " + Settings.getRemotePort());
-            jp = new JSONParser();
-            dos = new DataOutputStream(socket.getOutputStream());
-            out = new PrintWriter(dos, true);
-            dis = new DataInputStream(socket.getInputStream());
-            isr = new InputStreamReader(dis);
-            br = new BufferedReader(isr);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        jp = new JSONParser();
         textFrame = new TextFrame();
+        addListener(textFrame);
+        new Dispatcher().start();
+        new Sender().start();
         start();
     }
 
+    public void addListener(MessageListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(MessageListener listener) {
+        listeners.remove(listener);
+    }
+
     @SuppressWarnings("unchecked")
     public void sendActivityObject(JSONObject activityObj) {
         if (activityObj.containsKey("activity")) {
@@ -60,118 +93,356 @@ public class ClientSkeleton extends Thread {
             //	{"activity":{"S":"S"}}
             activityObj = jo;
         }
-        out.write(activityObj.toJSONString() + "\n");
-        out.flush();
+        outbound.add(activityObj);
     }
 
     public void disconnect() {
+        term = true;
         textFrame.dispose();
         System.exit(0);
     }
 
     public void run() {
-        String msg;
-        try {
-            initMsg();
-            while (true) {
-                if (socket.isClosed()) {
+        long delay = 0;
+        while (!term && reconnect) {
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
                     break;
                 }
-                msg = br.readLine();
-                System.out.println(msg);
-                if (msg == null) {
-                    break;
+            }
+            if (!connect()) {
+                delay = backoff(delay);
+                continue;
+            }
+            try {
+                while (framer.next()) {
+                    process(framer.text());
+                }
+            } catch (LineFramer.FrameTooLongException e) {
+                log.error("received a " + e.getMessage() + ", closing connection");
+            } catch (IOException e) {
+                log.debug("connection to " + Settings.getRemoteHostname() + ":" + Settings.getRemotePort()
+                        + " lost: " + e);
+            } catch (ParseException e) {
+                log.error("received a message that is not valid JSON, closing connection");
+            }
+            closeSocket();
+            framer.release();
+            // only a server that let us in resets the backoff, one that accepts
+            // and drops us at once must not get a tight reconnect loop
+            delay = established ? RECONNECT_BASE_DELAY : backoff(delay);
+            if (redirected) {
+                redirected = false;
+                if (established) {
+                    delay = 0;
+                }
+            } else if (!term && reconnect) {
+                if (failover()) {
+                    // failover has paused already
+                    if (established) {
+                        delay = 0;
+                    }
+                } else {
+                    deliver(Message.connCloseMsg());
                 }
-                process(msg);
             }
-        } catch (IOException | ParseException e) {
-            e.printStackTrace();
         }
     }
 
+    private static long backoff(long delay) {
+        return delay == 0 ? RECONNECT_BASE_DELAY : Math.min(delay * 2, RECONNECT_MAX_DELAY);
+    }
+
     /**
-     * send initial message to server: LOGIN or REGISTER when socket established
+     * Open a socket to the current remote host and send the initial LOGIN or
+     * REGISTER before any queued messages.
      *
-     * @throws IOException
+     * @return true if connected
+     */
+    private boolean connect() {
+        try {
+            Socket s = new Socket(Settings.getRemoteHostname(), Settings.getRemotePort());
+            log.info("connected to " + Settings.getRemoteHostname() + ":" + Settings.getRemotePort());
+            established = false;
+            framer = new LineFramer(s.getInputStream(), Settings.getMaxFrameBytes());
+            synchronized (writeLock) {
+                socket = s;
+                out = new PrintWriter(new BufferedWriter(
+                        new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8)));
+                initMsg();
+                writeLock.notifyAll();
+            }
+            return true;
+        } catch (IOException e) {
+            log.warn("failed to connect to " + Settings.getRemoteHostname() + ":" + Settings.getRemotePort()
+                    + ": " + e);
+            return false;
+        }
+    }
+
+    /**
+     * Point the next connection at the standby of a server we lost, to
+     * resume the session there. The pause spreads out the reconnects of
+     * all the server's clients.
+     *
+     * @return false if there is no standby to fail over to
+     */
+    private boolean failover() {
+        String address = standby;
+        int colon = address != null ? address.lastIndexOf(':') : -1;
+        if (session == null || colon < 0) {
+            return false;
+        }
+        standby = null;
+        try {
+            Settings.setRemotePort(Integer.parseInt(address.substring(colon + 1)));
+        } catch (NumberFormatException e) {
+            log.error("received a standby address with a bad port: " + address);
+            return false;
+        }
+        Settings.setRemoteHostname(address.substring(0, colon));
+        log.info("lost the server, resuming the session at " + address);
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(RECONNECT_BASE_DELAY));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return true;
+    }
+
+    private void closeSocket() {
+        synchronized (writeLock) {
+            out = null;
+            try {
+                if (socket != null && !socket.isClosed()) {
+                    socket.close();
+                }
+            } catch (IOException e) {
+                log.debug("received exception closing the socket: " + e);
+            }
+        }
+    }
+
+    /**
+     * send initial message to server: LOGIN or REGISTER when socket established
      */
     private void initMsg() {
-        //dos.wirteUTF fail to write \n as normal
-        if (Settings.getUserSecret() != null) {
+        resuming = session != null;
+        if (resuming) {
+            writeLine(Message.resume(session));
+        } else if (Settings.getUserSecret() != null) {
             // login
-            out.write(Message.login(Settings.getUsername()) + "\n");
-            out.flush();
+            writeLine(Message.batchLogin(Settings.getUsername()));
         } else if (Settings.getUsername().equals("anonymous")) {
             // login as anonymous
-            out.write(Message.login() + "\n");
-            out.flush();
+            writeLine(Message.batchLogin(null));
         } else {
             // register
             Settings.setUserSecret(Settings.genRandomString());
             System.out.println("ur secret is: " + Settings.getUserSecret());
-            out.write(Message.register(Settings.getUsername(), Settings.getUserSecret()) + "\n");
-            out.flush();
+            writeLine(Message.register(Settings.getUsername(), Settings.getUserSecret()));
         }
+    }
 
+    // caller must hold writeLock
+    private void writeLine(String msg) {
+        out.write(msg);
+        out.write('\n');
+        out.flush();
     }
 
+    private void deliver(JSONObject jo) {
+        try {
+            inbound.put(jo);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
     /**
      * process incoming message
      *
      * @param msg
-     * @return JSONObject
      * @throws ParseException
      * @throws IOException
      */
     private void process(String msg) throws ParseException, IOException {
         JSONObject jo = (JSONObject) jp.parse(msg);
-        textFrame.setOutputText(jo);
         String cmd = (String) jo.get("command");
+        if (Message.ACTIVITY_BROADCAST_BATCH.equals(cmd)) {
+            deliverBatch(jo);
+            return;
+        }
+        // blocks the reader when listeners fall behind, pushing back on the server
+        deliver(jo);
+        if (cmd == null) {
+            return;
+        }
         switch (cmd) {
             case Message.REGISTER_SUCCESS:
-                out.write(Message.login(Settings.getUsername()) + "\n");
-                out.flush();
+                established = true;
+                synchronized (writeLock) {
+                    writeLine(Message.batchLogin(Settings.getUsername()));
+                }
                 break;
-
             case Message.REDIRECT:
                 redirect(jo);
                 break;
+            case Message.SESSION:
+                session = (String) jo.get("session");
+                standby = (String) jo.get("standby");
+                break;
+            case Message.LOGIN_SUCCESS:
+                established = true;
+                resuming = false;
+                break;
             case Message.REGISTER_FAILED:
             case Message.INVALID_MESSAGE:
-                if (!socket.isClosed()) {
-                    socket.close();
+            case Message.AUTHENTICATION_FAIL:
+            case Message.LOGIN_FAILED:
+                if (resuming) {
+                    // the standby does not have the session, log in again there
+                    session = null;
+                    redirected = true;
+                    closeSocket();
+                    break;
                 }
-                textFrame.setOutputText(Message.connCloseMsg());
+                reconnect = false;
+                closeSocket();
+                deliver(Message.connCloseMsg());
                 break;
         }
     }
 
+    @SuppressWarnings("unchecked")
+    private void deliverBatch(JSONObject batch) {
+        Object activities = batch.get("activities");
+        if (!(activities instanceof JSONArray)) {
+            log.error("received an ACTIVITY_BROADCAST_BATCH without activities");
+            return;
+        }
+        for (Object activity : (JSONArray) activities) {
+            JSONObject jo = new JSONObject();
+            jo.put("command", Message.ACTIVITY_BROADCAST);
+            jo.put("activity", activity);
+            deliver(jo);
+        }
+    }
+
     /**
-     * deal with REDIRECT message received
+     * deal with REDIRECT message received, the run loop reconnects to the new
+     * server once the current socket is closed
      *
      * @param jo
-     * @throws IOException
      */
-    private void redirect(JSONObject jo) throws IOException {
-        String hostname = (String) jo.get("hostname");
-        int port = ((Long) jo.get("port")).intValue();
-        if (!socket.isClosed()) {
-            socket.close();
+    private void redirect(JSONObject jo) {
+        Settings.setRemoteHostname((String) jo.get("hostname"));
+        Settings.setRemotePort(((Long) jo.get("port")).intValue());
+        session = null;
+        redirected = true;
+        deliver(Message.redirectMsg());
+        closeSocket();
+    }
+
+    /**
+     * Hands inbound messages to the listeners off the socket reader thread.
+     */
+    private class Dispatcher extends Thread {
+        Dispatcher() {
+            super("client-dispatcher");
+            setDaemon(true);
         }
-        Settings.setRemoteHostname(hostname);
-        Settings.setRemotePort(port);
 
-        try {
-            textFrame.setOutputText(Message.redirectMsg());
-            socket = new Socket(Settings.getRemoteHostname(), Settings.getRemotePort());
-            dos = new DataOutputStream(socket.getOutputStream());
-            out = new PrintWriter(dos, true);
-            isr = new InputStreamReader(socket.getInputStream());
-            br = new BufferedReader(isr);
-            initMsg();
+        @Override
+        public void run() {
+            while (!term) {
+                JSONObject jo;
+                try {
+                    jo = inbound.take();
+                } catch (InterruptedException e) {
+                    break;
+                }
+                for (MessageListener listener : listeners) {
+                    try {
+                        listener.onMessage(jo);
+                    } catch (RuntimeException e) {
+                        log.error("listener failed to handle message: " + e);
+                    }
+                }
+            }
+        }
+    }
 
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * Drains the outbound queue and writes everything that has accumulated with
+     * a single flush, packing runs of ACTIVITY_MESSAGEs into ACTIVITY_BATCHes.
+     * Messages wait here while the client is reconnecting.
+     */
+    private class Sender extends Thread {
+        Sender() {
+            super("client-sender");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            List<JSONObject> batch = new ArrayList<>(MAX_SEND_BATCH);
+            List<JSONObject> activities = new ArrayList<>();
+            while (!term) {
+                try {
+                    batch.add(outbound.take());
+                    outbound.drainTo(batch, MAX_SEND_BATCH - 1);
+                    synchronized (writeLock) {
+                        while (out == null && !term) {
+                            writeLock.wait();
+                        }
+                        if (term) {
+                            break;
+                        }
+                        for (JSONObject msg : batch) {
+                            if (Message.ACTIVITY_MESSAGE.equals(msg.get("command"))) {
+                                activities.add(msg);
+                                if (activities.size() >= Settings.getClientActivityBatch()) {
+                                    writeActivities(activities);
+                                }
+                            } else {
+                                writeActivities(activities);
+                                write(msg.toJSONString());
+                            }
+                        }
+                        writeActivities(activities);
+                        out.flush();
+                        if (out.checkError()) {
+                            log.warn("failed to send " + batch.size() + " messages");
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    break;
+                }
+                batch.clear();
+            }
+        }
+
+        // caller must hold writeLock; a lone activity goes as ACTIVITY_MESSAGE
+        private void writeActivities(List<JSONObject> activities) {
+            if (activities.size() == 1) {
+                write(activities.get(0).toJSONString());
+            } else if (activities.size() > 1) {
+                List<String> serialized = new ArrayList<>(activities.size());
+                for (JSONObject msg : activities) {
+                    serialized.add(JSONValue.toJSONString(msg.get("activity")));
+                }
+                write(Message.activityBatch(Settings.getUsername(), Settings.getUserSecret(), serialized));
+            }
+            activities.clear();
+        }
+
+        // caller must hold writeLock
+        private void write(String msg) {
+            out.write(msg);
+            out.write('\n');
         }
     }
 }
@@ -0,0 +1,13 @@
+package activitystreamer.client;
+
+import org.json.simple.JSONObject;
+
+/**
+ * Receives messages from the client engine. Called on the dispatcher thread,
+ * never on the socket reader thread, so a slow listener only delays other
+ * listeners and never the socket itself.
+ */
+public interface MessageListener {
+
+    void onMessage(JSONObject msg);
+}
@@ -5,6 +5,9 @@ import java.awt.Color;
 import java.awt.GridLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.swing.BorderFactory;
 import javax.swing.JButton;
@@ -12,7 +15,10 @@ import javax.swing.JFrame;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
+import javax.swing.SwingUtilities;
 import javax.swing.border.Border;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -20,23 +26,26 @@ import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
+import activitystreamer.util.Settings;
+
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonParser;
 
 @SuppressWarnings("serial")
-public class TextFrame extends JFrame implements ActionListener {
+public class TextFrame extends JFrame implements ActionListener, MessageListener {
     private static final Logger log = LogManager.getLogger();
+    private static final int PENDING_LIMIT = 1024;
     private JTextArea inputText;
     private JTextArea outputText;
     private JButton sendButton;
     private JButton disconnectButton;
     private JSONParser parser = new JSONParser();
-    private StringBuffer outputMSG;
+    private final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+    // messages pretty-printed and waiting for the next repaint, appended together on the EDT
+    private final BlockingQueue<String> pending = new ArrayBlockingQueue<>(PENDING_LIMIT);
+    private final AtomicBoolean renderScheduled = new AtomicBoolean(false);
 
     public TextFrame() {
-    		outputMSG = new StringBuffer();
         setTitle("ActivityStreamer Text I/O");
         JPanel mainPanel = new JPanel();
         mainPanel.setLayout(new GridLayout(1, 2));
@@ -78,15 +87,81 @@ public class TextFrame extends JFrame implements ActionListener {
         setVisible(true);
     }
 
+    @Override
+    public void onMessage(JSONObject msg) {
+        setOutputText(msg);
+    }
+
+    /**
+     * Queue a message for display; a burst of calls is coalesced into one
+     * update of the text area. Blocks while the window is PENDING_LIMIT
+     * messages behind, which holds up the client's dispatcher and so the
+     * socket reader. On the EDT itself the message is rendered at once.
+     *
+     * @param obj
+     */
     public void setOutputText(final JSONObject obj) {
-        Gson gson = new GsonBuilder().setPrettyPrinting().create();
-        JsonParser jp = new JsonParser();
-        JsonElement je = jp.parse(obj.toJSONString());
-        String prettyJsonString = gson.toJson(je);
-        outputMSG.append(prettyJsonString + "\n");
-        outputText.setText(outputMSG.toString());
-        outputText.revalidate();
-        outputText.repaint();
+        // gson walks the JSONObject's maps and lists itself, and off the EDT
+        String text = gson.toJson(obj);
+        if (SwingUtilities.isEventDispatchThread()) {
+            while (!pending.offer(text)) {
+                renderPending();
+            }
+            renderPending();
+            return;
+        }
+        try {
+            // a full queue always has a render scheduled that will empty it
+            pending.put(text);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        scheduleRender();
+    }
+
+    private void scheduleRender() {
+        if (renderScheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(this::renderPending);
+        }
+    }
+
+    private void renderPending() {
+        renderScheduled.set(false);
+        StringBuilder batch = new StringBuilder();
+        String text;
+        while ((text = pending.poll()) != null) {
+            batch.append(text).append('\n');
+        }
+        // append only the new text, the document keeps the history
+        outputText.append(batch.toString());
+        trimOutput();
+        outputText.setCaretPosition(outputText.getDocument().getLength());
+    }
+
+    /**
+     * Drop the oldest whole lines once the scrollback exceeds its line or
+     * character limit.
+     */
+    private void trimOutput() {
+        Document doc = outputText.getDocument();
+        try {
+            int cut = 0;
+            int maxLines = Settings.getOutputMaxLines();
+            if (maxLines > 0 && outputText.getLineCount() > maxLines) {
+                cut = outputText.getLineStartOffset(outputText.getLineCount() - maxLines);
+            }
+            int maxChars = Settings.getOutputMaxChars();
+            if (maxChars > 0 && doc.getLength() - cut > maxChars) {
+                int excess = doc.getLength() - maxChars;
+                cut = outputText.getLineEndOffset(outputText.getLineOfOffset(excess));
+            }
+            if (cut > 0) {
+                doc.remove(0, Math.min(cut, doc.getLength()));
+            }
+        } catch (BadLocationException e) {
+            log.error("failed to trim the output window: " + e);
+        }
     }
 
     @Override
@@ -0,0 +1,292 @@
+package activitystreamer.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Records every frame a server reads and writes to a binary capture file,
+ * for replaying real traffic later with CaptureReplay. Connections only
+ * queue records, without blocking: when the writer thread falls behind and
+ * the queued payloads reach MAX_QUEUED_BYTES, further records are dropped
+ * and counted, so leaving a capture on never slows the server down or runs
+ * it out of memory.
+ * <p>
+ * The file starts with MAGIC and the capture's start time in epoch
+ * milliseconds, followed by records of a type byte, the connection id, the
+ * microseconds since the previous record as a zigzag varint (records from
+ * different threads may be slightly out of order), the payload length and
+ * the payload in UTF-8. Ids and lengths are unsigned varints. An OPEN
+ * record's payload is the remote address, a CLOSE record's is empty.
+ */
+public class Capture {
+    private static final Logger log = LogManager.getLogger();
+    public static final int MAGIC = 0x41534331; // "ASC1"
+    public static final byte OPEN = 0;
+    public static final byte INBOUND = 1;
+    public static final byte OUTBOUND = 2;
+    public static final byte CLOSE = 3;
+    private static final long MAX_QUEUED_BYTES = 64L << 20;
+    private static final long FLUSH_INTERVAL = 1000; // milliseconds
+    private static volatile Capture active;
+    private final BlockingQueue<Record> queue = new LinkedBlockingQueue<>();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final DataOutputStream out;
+    private final long startNanos = System.nanoTime();
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writer;
+    private volatile boolean stopping;
+    private long lastMicros;
+
+    /**
+     * One frame or connection event.
+     */
+    public static final class Record {
+        public final byte type;
+        public final int connection;
+        public final long micros; // since the capture started
+        private final String text;
+        private final byte[] bytes;
+
+        Record(byte type, int connection, long micros, String text, byte[] bytes) {
+            this.type = type;
+            this.connection = connection;
+            this.micros = micros;
+            this.text = text;
+            this.bytes = bytes;
+        }
+
+        public String getPayload() {
+            return text != null ? text : new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        public byte[] getPayloadBytes() {
+            return bytes != null ? bytes : text.getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    private Capture(OutputStream os) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(os, 1 << 16));
+        out.writeInt(MAGIC);
+        out.writeLong(System.currentTimeMillis());
+        writer = new Thread(this::drain, "capture-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Start capturing to the file, replacing it if it exists.
+     */
+    public static void start(String file) throws IOException {
+        active = new Capture(new FileOutputStream(file));
+        log.info("capturing traffic to " + file);
+    }
+
+    /**
+     * Stop capturing and write out what is queued, waiting at most a second.
+     */
+    public static void stop() {
+        Capture c = active;
+        if (c == null) {
+            return;
+        }
+        active = null;
+        c.stopping = true;
+        try {
+            c.writer.join(FLUSH_INTERVAL);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public static boolean isActive() {
+        return active != null;
+    }
+
+    static void open(int connection, String address) {
+        Capture c = active;
+        if (c != null) {
+            c.offer(OPEN, connection, address, null);
+        }
+    }
+
+    /**
+     * Record a frame read from a connection; the bytes are copied.
+     */
+    static void inbound(int connection, byte[] buf, int offset, int length) {
+        Capture c = active;
+        if (c != null) {
+            byte[] copy = new byte[length];
+            System.arraycopy(buf, offset, copy, 0, length);
+            c.offer(INBOUND, connection, null, copy);
+        }
+    }
+
+    static void outbound(int connection, String msg) {
+        Capture c = active;
+        if (c != null) {
+            c.offer(OUTBOUND, connection, msg, null);
+        }
+    }
+
+    static void close(int connection) {
+        Capture c = active;
+        if (c != null) {
+            c.offer(CLOSE, connection, "", null);
+        }
+    }
+
+    private void offer(byte type, int connection, String text, byte[] bytes) {
+        long micros = (System.nanoTime() - startNanos) / 1000;
+        int size = size(text, bytes);
+        if (queuedBytes.addAndGet(size) > MAX_QUEUED_BYTES) {
+            queuedBytes.addAndGet(-size);
+            dropped.incrementAndGet();
+            return;
+        }
+        queue.offer(new Record(type, connection, micros, text, bytes));
+    }
+
+    // what a record's payload holds in memory, near enough
+    private static int size(String text, byte[] bytes) {
+        return text != null ? 2 * text.length() : bytes.length;
+    }
+
+    private void drain() {
+        long lastFlush = System.currentTimeMillis();
+        long reportedDrops = 0;
+        try {
+            while (true) {
+                Record r = stopping ? queue.poll() : queue.poll(FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+                if (r != null) {
+                    queuedBytes.addAndGet(-size(r.text, r.bytes));
+                    write(r);
+                } else if (stopping) {
+                    out.close();
+                    return;
+                }
+                if (r == null || System.currentTimeMillis() - lastFlush >= FLUSH_INTERVAL) {
+                    out.flush();
+                    lastFlush = System.currentTimeMillis();
+                    if (dropped.get() != reportedDrops) {
+                        reportedDrops = dropped.get();
+                        log.warn("capture has dropped " + reportedDrops + " records, the disk is too slow");
+                    }
+                }
+            }
+        } catch (IOException e) {
+            log.error("stopping the capture after a write failed: " + e);
+            active = null;
+            queue.clear();
+            try {
+                out.close();
+            } catch (IOException e1) {
+                // the file is already broken
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void write(Record r) throws IOException {
+        byte[] payload = r.getPayloadBytes();
+        out.writeByte(r.type);
+        writeVarint(out, r.connection);
+        long delta = r.micros - lastMicros;
+        lastMicros = r.micros;
+        writeVarint(out, (delta << 1) ^ (delta >> 63));
+        writeVarint(out, payload.length);
+        out.write(payload);
+    }
+
+    private static void writeVarint(DataOutputStream out, long v) throws IOException {
+        while ((v & ~0x7fL) != 0) {
+            out.writeByte((int) (v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+
+    /**
+     * Reads a capture file record by record.
+     */
+    public static class Reader implements AutoCloseable {
+        private final DataInputStream in;
+        private final long startMillis;
+        private long micros;
+
+        public Reader(String file) throws IOException {
+            this(new FileInputStream(file));
+        }
+
+        public Reader(InputStream is) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(is, 1 << 16));
+            if (in.readInt() != MAGIC) {
+                in.close();
+                throw new IOException("not a capture file");
+            }
+            startMillis = in.readLong();
+        }
+
+        /**
+         * @return epoch milliseconds when the capture started
+         */
+        public long getStartMillis() {
+            return startMillis;
+        }
+
+        /**
+         * @return the next record, or null at the end of the file; a record
+         * cut short by a crash also ends the file
+         */
+        public Record next() throws IOException {
+            int type = in.read();
+            if (type < 0) {
+                return null;
+            }
+            try {
+                int connection = (int) readVarint();
+                long zigzag = readVarint();
+                micros += (zigzag >>> 1) ^ -(zigzag & 1);
+                int length = (int) readVarint();
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                return new Record((byte) type, connection, micros, null, payload);
+            } catch (EOFException e) {
+                return null;
+            }
+        }
+
+        private long readVarint() throws IOException {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = in.readUnsignedByte();
+                v |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return v;
+                }
+            }
+            throw new IOException("malformed varint in capture file");
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -1,57 +1,506 @@
 package activitystreamer.server;
 
-import java.io.BufferedReader;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import activitystreamer.util.LatencyHistogram;
+import activitystreamer.util.LineFramer;
+import activitystreamer.util.Message;
 import activitystreamer.util.Settings;
+import activitystreamer.util.User;
 
 public class Connection extends Thread {
     private static final Logger log = LogManager.getLogger();
+    private static final AtomicInteger connectionIds = new AtomicInteger();
+    // identifies the connection in traffic captures
+    private final int connectionId = connectionIds.incrementAndGet();
     private DataInputStream dis;
     private DataOutputStream dos;
-    private BufferedReader br;
+    private LineFramer framer;
     private PrintWriter pw;
     private boolean open = false;
     private Socket socket;
-    private boolean term = false;
+    private volatile boolean term = false;
+    private final TokenBucket activityBucket;
+    private final TokenBucket registerBucket;
+    private final Control control;
+    // time the last line arrived, server links use it as a heartbeat
+    private volatile long lastReceived = System.currentTimeMillis();
+    private volatile boolean acceptsBatches;
+    // registered user logged in on this connection, null for anonymous and servers
+    private volatile String sessionUser;
+    // set once a client has logged in and stays
+    private volatile boolean loggedIn;
+    // resumes the session at our standby, null until logged in
+    private volatile String sessionToken;
+    // sessions of a multiplexed connection, e.g. from a gateway, by channel
+    private final Map<Long, User> channels = new ConcurrentHashMap<>();
+    private volatile boolean multiplexed;
+    // spliced into broadcasts to fan them out to every channel, null while there are none
+    private volatile String fanOut;
+    // characters queued in both lanes and not written yet
+    private final AtomicLong backlog = new AtomicLong();
+    // outbound lanes, see writeQueued(). Control messages are copied, newline terminated, into
+    // controlChars; the writer swaps it with controlSpare and writes it in one go, so queueing one
+    // allocates nothing once the buffers have grown to fit
+    private static final int CONTROL_BUFFER = 4096;
+    private static final int CONTROL_BUFFER_KEPT = 1 << 16;
+    private final Object controlLock = new Object();
+    private char[] controlChars = new char[CONTROL_BUFFER];
+    private int controlLength;
+    private int controlCount;
+    private long controlQueued; // when the oldest waiting control message was queued
+    private char[] controlSpare = new char[CONTROL_BUFFER]; // used only while writing
+    private final Queue<Outbound> bulkLane = new ConcurrentLinkedQueue<>();
+    // characters in the bulk lane, bounded by Settings.getBulkQueueBytes()
+    private final AtomicLong bulkChars = new AtomicLong();
+    // senders waiting for room in the bulk lane wait on bulkRoom, the writer wakes them
+    private final Object bulkRoom = new Object();
+    private volatile int bulkWaiters;
+    // relayed broadcasts a server link dropped since its lane last ran empty
+    private final AtomicLong shed = new AtomicLong();
+    private final AtomicBoolean writing = new AtomicBoolean();
+    private final LatencyHistogram controlLatency = new LatencyHistogram();
+    private final LatencyHistogram bulkLatency = new LatencyHistogram();
+    // coalescing of relayed broadcasts on server links, see writeCoalesced()
+    private static final String FRAME_OPEN = "{\"command\":\"" + Message.ACTIVITY_FRAME + "\",\"messages\":[";
+    // runs link lingers and close timeouts, which only ever hand work to the writers
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "connection-timer");
+        t.setDaemon(true);
+        return t;
+    });
+    // socket writes block on a slow peer, so they happen here, at most one thread per connection
+    private static final ExecutorService WRITERS = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "connection-writer");
+        t.setDaemon(true);
+        return t;
+    });
+    // milliseconds a closing connection's writer gets for its last replies
+    private static final long CLOSE_TIMEOUT = 2000;
+    // set once closeCon has been called, the socket closes when the writer is done
+    private volatile boolean closing;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final AtomicBoolean lingering = new AtomicBoolean();
+    private final AtomicLong coalescedChars = new AtomicLong();
+    private volatile long lastDrained;
+    private final StringBuilder frame = new StringBuilder(); // used only while writing
 
-    Connection(Socket socket) throws IOException {
+    private static final class Outbound {
+        final String msg;
+        final boolean coalesce;
+        // a broadcast relayed to another server, which a link may shed
+        final boolean relayed;
+        final long queued = System.nanoTime();
+
+        Outbound(String msg, boolean coalesce, boolean relayed) {
+            this.msg = msg;
+            this.coalesce = coalesce;
+            this.relayed = relayed;
+        }
+    }
+
+    Connection(Socket socket, Control control) throws IOException {
+        this.control = control;
+        // writeQueued() already writes whatever is queued in one go, Nagle would only hold the last reply back
+        socket.setTcpNoDelay(true);
         dis = new DataInputStream(socket.getInputStream());
         dos = new DataOutputStream(socket.getOutputStream());
-        br = new BufferedReader(new InputStreamReader(dis));
-        pw = new PrintWriter(dos, true);
+        framer = new LineFramer(dis, Settings.getMaxFrameBytes());
+        // flushed by writeQueued() once the queued messages are written
+        pw = new PrintWriter(dos, false);
         this.socket = socket;
+        activityBucket = new TokenBucket(Settings.getActivityRate(), Settings.getActivityBurst());
+        registerBucket = new TokenBucket(Settings.getRegisterRate(), Settings.getRegisterBurst());
         open = true;
-        start();
+        Capture.open(connectionId, Settings.socketAddress(socket));
+        // Control starts the reader once it knows the connection, see incomingConnection
     }
 
     /*
-     * returns true if the message was written, otherwise false
+     * queues a control message, written ahead of any queued bulk traffic;
+     * returns true if the message was queued, otherwise false
      */
     public boolean writeMsg(String msg) {
-        if (open) {
-            pw.println(msg);
-            pw.flush();
+        if (!open) {
+            return false;
+        }
+        synchronized (controlLock) {
+            int at = reserveControl(msg.length());
+            msg.getChars(0, msg.length(), controlChars, at);
+        }
+        backlog.addAndGet(msg.length());
+        drain();
+        return true;
+    }
+
+    /*
+     * queues the first len characters of buf as one control message; the
+     * encoders reuse buf, so it is copied into the control buffer
+     */
+    public boolean writeMsg(char[] buf, int len) {
+        if (!open) {
+            return false;
+        }
+        synchronized (controlLock) {
+            int at = reserveControl(len);
+            System.arraycopy(buf, 0, controlChars, at, len);
+        }
+        backlog.addAndGet(len);
+        drain();
+        return true;
+    }
+
+    // room for a message of len characters and its newline, returns where the message goes; may
+    // replace controlChars, so callers copy into it only afterwards
+    private int reserveControl(int len) {
+        if (controlLength + len + 1 > controlChars.length) {
+            controlChars = Arrays.copyOf(controlChars, Math.max(controlChars.length * 2, controlLength + len + 1));
+        }
+        if (controlCount == 0) {
+            controlQueued = System.nanoTime();
+        }
+        int at = controlLength;
+        controlLength += len + 1;
+        controlChars[controlLength - 1] = '\n';
+        controlCount++;
+        return at;
+    }
+
+    private boolean hasControl() {
+        synchronized (controlLock) {
+            return controlLength > 0;
+        }
+    }
+
+    /*
+     * queues a bulk message such as an activity broadcast. A full bulk lane
+     * means the other side reads slower than it is sent to, and waiting for
+     * it would hold up the caller's other connections, so a slow client is
+     * disconnected instead. A server link is never cut for it, see
+     * enqueueBulk.
+     */
+    public boolean writeBulk(String msg) {
+        return writeBulk(msg, false);
+    }
+
+    /*
+     * queues a bulk message, optionally waiting while the bulk lane is full
+     * instead of disconnecting, which pushes back on the caller as a
+     * blocking write would. Only a thread serving this one connection, such
+     * as a snapshot or backlog sender, may wait, and never under the
+     * Control lock.
+     */
+    public boolean writeBulk(String msg, boolean wait) {
+        if (enqueueBulk(new Outbound(msg, false, false), wait)) {
+            drain();
             return true;
         }
         return false;
     }
 
+    /*
+     * queues a broadcast relayed to another server. While broadcasts keep
+     * arriving within the link linger of each other they are held back until
+     * the linger runs out or a frame's worth has queued, then written as one
+     * ACTIVITY_FRAME line. A broadcast arriving after a quiet spell is
+     * written straight away, so a lightly loaded link adds no delay.
+     */
+    public boolean writeCoalesced(String msg) {
+        long linger = Settings.getLinkLinger();
+        if (!enqueueBulk(new Outbound(msg, linger > 0, true), false)) {
+            return false;
+        }
+        if (linger <= 0) {
+            drain();
+            return true;
+        }
+        if (coalescedChars.addAndGet(msg.length()) >= Settings.getLinkFrameBytes()
+                || System.nanoTime() - lastDrained > linger * 1000) {
+            drain();
+        } else if (lingering.compareAndSet(false, true)) {
+            TIMER.schedule(() -> {
+                lingering.set(false);
+                drain();
+            }, linger, TimeUnit.MICROSECONDS);
+        }
+        return true;
+    }
+
+    /*
+     * false if the message was not queued, because the connection is closing
+     * or the lane is full. A lane is full once its characters would pass
+     * Settings.getBulkQueueBytes(), though a message longer than that still
+     * goes through an empty lane. On a full lane a client is disconnected as
+     * a slow consumer. A server link is not: cutting it would split the
+     * tree, and waiting would stall the relaying thread, possibly on a link
+     * waiting for it in turn. It drops relayed broadcasts instead and queues
+     * everything else, presence, directory and statistics messages being
+     * few and small.
+     */
+    private boolean enqueueBulk(Outbound out, boolean wait) {
+        if (!open || closing) {
+            return false;
+        }
+        int length = out.msg.length();
+        if (!hasBulkRoom(length)) {
+            if (wait) {
+                if (!awaitBulkRoom(length)) {
+                    return false;
+                }
+            } else if (!control.isServerConnection(this)) {
+                if (!closing) {
+                    log.warn("disconnecting slow consumer " + Settings.socketAddress(socket) + ", "
+                            + bulkChars.get() + " characters of bulk messages are waiting to be written");
+                    closeCon();
+                }
+                return false;
+            } else if (out.relayed) {
+                if (shed.getAndIncrement() == 0) {
+                    log.warn("server link " + Settings.socketAddress(socket) + " is not keeping up, "
+                            + bulkChars.get() + " characters are waiting, dropping relayed broadcasts");
+                }
+                return false;
+            }
+        }
+        bulkChars.addAndGet(length);
+        bulkLane.add(out);
+        backlog.addAndGet(length);
+        return true;
+    }
+
+    // checked and then added to without a lock, so concurrent senders may overshoot by a message each
+    private boolean hasBulkRoom(int length) {
+        long queued = bulkChars.get();
+        return queued == 0 || queued + length <= Settings.getBulkQueueBytes();
+    }
+
+    // false if the connection closed or the thread was interrupted while waiting
+    private boolean awaitBulkRoom(int length) {
+        synchronized (bulkRoom) {
+            bulkWaiters++;
+            try {
+                while (!hasBulkRoom(length) && open && !closing) {
+                    bulkRoom.wait(100);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                bulkWaiters--;
+            }
+        }
+        return open && !closing;
+    }
+
+    // only the writer takes from the bulk lane
+    private Outbound pollBulk() {
+        Outbound out = bulkLane.poll();
+        if (out != null) {
+            bulkChars.addAndGet(-out.msg.length());
+            if (bulkWaiters > 0) {
+                synchronized (bulkRoom) {
+                    bulkRoom.notifyAll();
+                }
+            }
+        }
+        return out;
+    }
+
+    // hands the queued messages to a writer unless one is already at it
+    private void drain() {
+        if (writing.compareAndSet(false, true)) {
+            WRITERS.execute(this::writeQueued);
+        }
+    }
+
+    /*
+     * writes everything queued, on a writer thread, one at a time per
+     * connection, so neither the Control lock nor a relay ever waits on
+     * this socket. The control messages queued so far go first, all at
+     * once, then one bulk message gets its turn before the control messages
+     * queued meanwhile. Consecutive coalesced broadcasts are packed into
+     * frames. The stream is flushed
+     * once the lanes are empty. Once the connection is closing, queued bulk
+     * messages are dropped and the socket is closed after the control
+     * messages, the last replies, are written.
+     */
+    private void writeQueued() {
+        do {
+            try {
+                writeLanes();
+            } finally {
+                writing.set(false);
+            }
+            if (closing) {
+                closeSocket();
+                return;
+            }
+        } while ((hasControl() || !bulkLane.isEmpty()) && writing.compareAndSet(false, true));
+    }
+
+    private void writeLanes() {
+        while (true) {
+            if (closing) {
+                for (Outbound dropped; (dropped = pollBulk()) != null; ) {
+                    backlog.addAndGet(-dropped.msg.length());
+                }
+            }
+            boolean wroteControl = writeControl();
+            Outbound out = pollBulk();
+            if (out == null) {
+                if (wroteControl) {
+                    continue;
+                }
+                break;
+            }
+            if (out.coalesce) {
+                writeFrame(out);
+                continue;
+            }
+            pw.println(out.msg);
+            backlog.addAndGet(-out.msg.length());
+            bulkLatency.record((System.nanoTime() - out.queued) / 1000);
+            Capture.outbound(connectionId, out.msg);
+        }
+        pw.flush();
+        lastDrained = System.nanoTime();
+        long dropped = shed.getAndSet(0);
+        if (dropped > 0) {
+            log.warn("server link " + Settings.socketAddress(socket) + " caught up after dropping " + dropped
+                    + " relayed broadcasts");
+        }
+    }
+
+    // writes the control messages queued so far, returns false if there were none
+    private boolean writeControl() {
+        char[] chars;
+        int length;
+        int count;
+        long queued;
+        synchronized (controlLock) {
+            if (controlLength == 0) {
+                return false;
+            }
+            chars = controlChars;
+            length = controlLength;
+            count = controlCount;
+            queued = controlQueued;
+            controlChars = controlSpare;
+            controlLength = 0;
+            controlCount = 0;
+        }
+        pw.write(chars, 0, length);
+        backlog.addAndGet(count - length);
+        // every message in the batch is counted with the wait of the oldest
+        long wait = (System.nanoTime() - queued) / 1000;
+        for (int i = 0; i < count; i++) {
+            controlLatency.record(wait);
+        }
+        if (Capture.isActive()) {
+            for (int start = 0, i = 0; i < length; i++) {
+                if (chars[i] == '\n') {
+                    Capture.outbound(connectionId, new String(chars, start, i - start));
+                    start = i + 1;
+                }
+            }
+        }
+        // a burst of large messages need not keep its buffer
+        controlSpare = chars.length > CONTROL_BUFFER_KEPT ? new char[CONTROL_BUFFER] : chars;
+        return true;
+    }
+
+    /*
+     * writes first and the coalesced broadcasts queued right behind it, up to
+     * the frame size, as one ACTIVITY_FRAME; a lone broadcast is written as
+     * it is
+     */
+    private void writeFrame(Outbound first) {
+        Outbound next = bulkLane.peek();
+        coalescedChars.addAndGet(-first.msg.length());
+        backlog.addAndGet(-first.msg.length());
+        if (next == null || !next.coalesce) {
+            pw.println(first.msg);
+            bulkLatency.record((System.nanoTime() - first.queued) / 1000);
+            Capture.outbound(connectionId, first.msg);
+            return;
+        }
+        frame.setLength(0);
+        frame.append(FRAME_OPEN).append(first.msg);
+        long now = System.nanoTime();
+        bulkLatency.record((now - first.queued) / 1000);
+        while (next != null && next.coalesce && frame.length() + next.msg.length() < Settings.getLinkFrameBytes()) {
+            pollBulk(); // only the writer takes from the lanes, so this is next
+            coalescedChars.addAndGet(-next.msg.length());
+            backlog.addAndGet(-next.msg.length());
+            frame.append(',').append(next.msg);
+            bulkLatency.record((now - next.queued) / 1000);
+            next = bulkLane.peek();
+        }
+        pw.println(frame.append("]}"));
+        if (Capture.isActive()) {
+            Capture.outbound(connectionId, frame.toString());
+        }
+    }
+
+    /**
+     * @return microseconds control messages waited to be written
+     */
+    public LatencyHistogram getControlLatency() {
+        return controlLatency;
+    }
+
+    /**
+     * @return microseconds bulk messages waited to be written
+     */
+    public LatencyHistogram getBulkLatency() {
+        return bulkLatency;
+    }
+
+    /*
+     * closes the connection once the control messages already queued, such
+     * as a last INVALID_MESSAGE, are written, or after CLOSE_TIMEOUT if the
+     * other side does not read them. The reader is released straight away.
+     */
     public void closeCon() {
-        if (open) {
+        if (open && !closing) {
             log.info("closing connection by closeCon" + Settings.socketAddress(socket));
+            closing = true;
+            term = true;
             try {
-                term = true;
-                br.close();
-                dos.close();
+                // a reader blocked in read sees the end of the stream
+                socket.shutdownInput();
+            } catch (IOException e) {
+                log.debug("received exception shutting down input of " + Settings.socketAddress(socket) + ": " + e);
+            }
+            drain();
+            TIMER.schedule(this::closeSocket, CLOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void closeSocket() {
+        if (closed.compareAndSet(false, true)) {
+            try {
+                socket.close();
             } catch (IOException e) {
                 // already closed?
                 log.error("received exception closing the connection " + Settings.socketAddress(socket) + ": " + e);
@@ -61,16 +510,28 @@ public class Connection extends Thread {
 
     public void run() {
         try {
-            String data;
-            while (!term && (data = br.readLine()) != null) {
-                term = Control.getInstance().process(this, data);
+            // frames already buffered when closeCon is called are dropped, not processed
+            while (!term && framer.next() && !term) {
+                lastReceived = System.currentTimeMillis();
+                Capture.inbound(connectionId, framer.bytes(), framer.offset(), framer.length());
+                term = control.process(this, framer.text());
             }
             log.debug("connection closed to " + Settings.socketAddress(socket));
-            Control.getInstance().connectionClosed(this);
-            dis.close();
+            control.connectionClosed(this);
+            closeCon();
+        } catch (LineFramer.FrameTooLongException e) {
+            log.error("connection " + Settings.socketAddress(socket) + " sent a " + e.getMessage());
+            Message.invalidMsg(this, "the received message is longer than " + Settings.getMaxFrameBytes()
+                    + " bytes");
+            closeCon();
+            control.connectionClosed(this);
         } catch (IOException e) {
             log.error("connection " + Settings.socketAddress(socket) + " closed with exception: " + e);
-            Control.getInstance().connectionClosed(this);
+            control.connectionClosed(this);
+            closeCon();
+        } finally {
+            framer.release();
+            Capture.close(connectionId);
         }
         open = false;
     }
@@ -79,6 +540,111 @@ public class Connection extends Thread {
         return socket;
     }
 
+    public TokenBucket getActivityBucket() {
+        return activityBucket;
+    }
+
+    public TokenBucket getRegisterBucket() {
+        return registerBucket;
+    }
+
+    public long getLastReceived() {
+        return lastReceived;
+    }
+
+    /**
+     * @return true if the client asked at login for ACTIVITY_BROADCAST_BATCH
+     */
+    public boolean acceptsBatches() {
+        return acceptsBatches;
+    }
+
+    public void setAcceptsBatches(boolean acceptsBatches) {
+        this.acceptsBatches = acceptsBatches;
+    }
+
+    /**
+     * @return characters queued to be written, about the bytes for JSON
+     */
+    public long getBacklog() {
+        return backlog.get();
+    }
+
+    public boolean isLoggedIn() {
+        return loggedIn;
+    }
+
+    public void setLoggedIn(boolean loggedIn) {
+        this.loggedIn = loggedIn;
+    }
+
+    /**
+     * @return true once a LOGIN has named a channel, from then on sessions
+     * are kept per channel
+     */
+    public boolean isMultiplexed() {
+        return multiplexed;
+    }
+
+    public User getChannel(long channel) {
+        return channels.get(channel);
+    }
+
+    /**
+     * @return the channels logged in, read-only
+     */
+    public Map<Long, User> getChannels() {
+        return Collections.unmodifiableMap(channels);
+    }
+
+    public int getChannelCount() {
+        return channels.size();
+    }
+
+    /**
+     * @return the user the channel was logged in as before, or null
+     */
+    public User openChannel(long channel, User user) {
+        multiplexed = true;
+        User previous = channels.put(channel, user);
+        fanOut = Message.channelsPrefix(channels.keySet());
+        return previous;
+    }
+
+    public User closeChannel(long channel) {
+        User user = channels.remove(channel);
+        fanOut = channels.isEmpty() ? null : Message.channelsPrefix(channels.keySet());
+        return user;
+    }
+
+    /**
+     * Queue a broadcast on the bulk lane once, listing every channel it is
+     * for when the connection is multiplexed.
+     */
+    public boolean writeBroadcast(String msg) {
+        if (!multiplexed) {
+            return writeBulk(msg);
+        }
+        String prefix = fanOut;
+        return prefix == null || writeBulk(prefix + msg.substring(1));
+    }
+
+    public String getSessionToken() {
+        return sessionToken;
+    }
+
+    public void setSessionToken(String sessionToken) {
+        this.sessionToken = sessionToken;
+    }
+
+    public String getSessionUser() {
+        return sessionUser;
+    }
+
+    public void setSessionUser(String sessionUser) {
+        this.sessionUser = sessionUser;
+    }
+
     public boolean isOpen() {
         return open;
     }
@@ -1,82 +1,249 @@
 package activitystreamer.server;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.SocketAddress;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+import activitystreamer.util.LatencyHistogram;
 import activitystreamer.util.Message;
 import activitystreamer.util.User;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
 
 import activitystreamer.util.Settings;
 
+/**
+ * The server runtime. Every piece of node state lives on the instance, so
+ * several servers can run side by side in one JVM, each with its own id,
+ * ports and links; {@link #getInstance()} is the node started by Server.
+ * Tuning such as rate limits still comes from the JVM-wide Settings.
+ */
 public class Control extends Thread {
     private static final Logger log = LogManager.getLogger();
-    private static List<Connection> clientConnections;
-    private static boolean term = false;
-    private static Listener listener;
-
     private static Control control = null;
-    private static Connection parentConnection, lChildConnection, rChildConnection;
-    private static Map<String, Integer> loadMap = new ConcurrentHashMap<>();
-    private static List<User> userList; // the global registered users
-    private static Vector<SocketAddress> loginVector = new Vector<>();
-    private static Map<Connection, String[]> validateMap = new ConcurrentHashMap<>();
-    private static Map<Connection, String> registerMap = new ConcurrentHashMap<>();
-    private static Map<String, String[]> allowMap = new ConcurrentHashMap<>();
+    private List<Connection> clientConnections;
+    private volatile boolean term = false;
+    private Listener listener;
+
+    private final String serverId;
+    private final String localHostname;
+    private final int localPort;
+    private final String remoteHostname;
+    private final int remotePort;
+    private final String serverSecret;
+    private volatile Connection parentConnection, lChildConnection, rChildConnection;
+    // id of the server behind parentConnection, known once it has announced itself
+    private volatile String parentId;
+    // every other server in the tree, by id, refreshed by their announces
+    private Map<String, ServerInfo> servers = new ConcurrentHashMap<>();
+    // set while a background thread is rejoining or moving within the tree
+    private final AtomicBoolean repairing = new AtomicBoolean();
+    // where the server we are joining sent us instead
+    private volatile String joinRedirect;
+    private volatile long lastTopologyChange;
+    private static final int MAX_REDIRECTS = 8;
+    // users per USER_SNAPSHOT chunk
+    private static final int SNAPSHOT_CHUNK = 512;
+    // false until a joining server has the parent's registered users
+    private volatile boolean synced;
+    // users removed by lock traffic while the snapshot was arriving
+    private Set<String> removedDuringSync = new HashSet<>();
+    // partitioned directory: the users this server owns or replicates, name to secret
+    private final UserStore directory;
+    // child links by the id of the server at the other end
+    private Map<String, Connection> childLinks = new ConcurrentHashMap<>();
+    private Map<Long, DirectoryLookup> lookups = new ConcurrentHashMap<>();
+    private final AtomicLong nextLookup = new AtomicLong();
+    private HashRing ring;
+    private Set<String> ringMembers;
+    // the members the last hand-off started for, and the ring it finished with
+    private volatile Set<String> handedOffMembers;
+    private volatile HashRing handedOffRing;
+    // users being handed to new owners, by request id, and the owners each user we no longer
+    // own still waits for; the user is dropped here once they have all acknowledged it
+    private final Map<Long, HandOff> handOffs = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> handOffsAwaited = new ConcurrentHashMap<>();
+    // users handed off between yields of the hand-off thread
+    private static final int HANDOFF_CHUNK = 512;
+    private static final String DIRECTORY_OK = "ok";
+    private static final String DIRECTORY_EXISTS = "exists";
+    private static final String DIRECTORY_UNKNOWN = "unknown";
+    private static final String DIRECTORY_WRONG_SECRET = "wrong_secret";
+    private static final String DIRECTORY_UNAVAILABLE = "unavailable";
+    private final UserStore users; // the global registered users
+    private Map<Connection, String[]> validateMap = new ConcurrentHashMap<>();
+    private Map<Connection, String> registerMap = new ConcurrentHashMap<>();
+    private Map<String, String[]> allowMap = new ConcurrentHashMap<>();
+    // per-user rate limits of users logged in here, the per-connection ones live on the Connection
+    private Map<String, TokenBucket> userActivityBuckets = new ConcurrentHashMap<>();
+    private Tracer tracer;
+    // registered users away from the cluster, and the local sessions of those who are not
+    private final Mailboxes mailboxes;
+    private final Map<String, Integer> sessions = new HashMap<>();
+    // the other servers each registered user has a session at, from USER_ONLINE and USER_OFFLINE
+    private final Map<String, Set<String>> presence = new HashMap<>();
+    // the secrets registered users with a session here logged in with, which their activities must carry
+    private final Map<String, String> sessionSecrets = new ConcurrentHashMap<>();
+    // what this server announces as its score and redirects on
+    private final LoadScore loadScore = new LoadScore();
+    private final AtomicLong messagesProcessed = new AtomicLong();
+    // queue wait of the client connections over the last activity interval
+    private volatile LatencyHistogram clientQueueWait = new LatencyHistogram();
+    // cluster statistics being collected, and the last answers, by the link asking, null for clients
+    private final Map<Connection, StatsQuery> statsQueries = new HashMap<>();
+    private final Map<Connection, CachedStats> statsCache = new HashMap<>();
+    // warm standby: our sessions by token, where they are replicated to, and the sessions
+    // other servers replicate to us, by their id
+    private final Map<String, String> localSessions = new HashMap<>();
+    private String standbyId;
+    private long standbySyncedAt = -1;
+    private final Map<String, Map<String, StandbySession>> replicas = new HashMap<>();
+    private final Map<String, Long> replicaSeen = new HashMap<>();
+    private static final ScheduledExecutorService STATS_TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "stats-timeout");
+        t.setDaemon(true);
+        return t;
+    });
     // list to record if of cooperated servers;
     private String[] serverIdList = {"0", "0", "0"};
 
-    public static Control getInstance() {
+    public static synchronized Control getInstance() {
         if (control == null) {
-            control = new Control();
+            try {
+                control = new Control(Settings.getServerId(), Settings.getLocalHostname(), Settings.getLocalPort(),
+                        Settings.getRemoteHostname(), Settings.getRemotePort());
+            } catch (IOException e1) {
+                log.fatal("failed to startup a listening thread: " + e1);
+                System.exit(-1);
+            }
         }
         return control;
     }
 
-    private Control() {
-        // initialize the clientConnections array
-        clientConnections = Collections.synchronizedList(new ArrayList<>());
-        userList = new CopyOnWriteArrayList<>();
-        // userList = Collections.synchronizedList(new ArrayList<>());
+    /**
+     * Start a server listening on localPort. Call {@link #initiateConnection()}
+     * to join the server at remoteHostname:remotePort.
+     *
+     * @param serverId
+     * @param localHostname hostname announced to other servers
+     * @param localPort
+     * @param remoteHostname null to start a new cluster
+     * @param remotePort
+     * @throws IOException if the listening socket cannot be bound
+     */
+    public Control(String serverId, String localHostname, int localPort, String remoteHostname, int remotePort)
+            throws IOException {
+        this.serverId = serverId;
+        this.localHostname = localHostname;
+        this.localPort = localPort;
+        this.remoteHostname = remoteHostname;
+        this.remotePort = remotePort;
+        this.serverSecret = Settings.getServerSecret();
+        // a partitioned directory is never copied whole, only the owners hold a user
+        this.synced = remoteHostname == null || isPartitioned();
+        tracer = new Tracer(serverId);
+        String mailboxDir = Settings.getMailboxDir();
+        mailboxes = new Mailboxes(Settings.getMailboxMemory(), Settings.getMailboxDisk(),
+                Settings.getMailboxUserLimit(), Settings.getMailboxMaxAge(), mailboxDir != null ? new File(mailboxDir)
+                : new File(System.getProperty("java.io.tmpdir"), "activitystreamer-mailbox-" + serverId));
+        // initialize the clientConnections array, copy-on-write so broadcasts can
+        // iterate while acceptors add connections without holding the Control lock
+        clientConnections = new CopyOnWriteArrayList<>();
+        // only one of the two is ever filled, depending on the directory mode
+        users = isPartitioned() ? new HeapUserStore() : UserStore.create();
+        directory = isPartitioned() ? UserStore.create() : new HeapUserStore();
         // start a listener
-        try {
-            listener = new Listener();
-        } catch (IOException e1) {
-            log.fatal("failed to startup a listening thread: " + e1);
-            System.exit(-1);
-        }
+        listener = new Listener(this, localPort);
         start();
     }
 
-    public void initiateConnection() {
-        // make a connection to another server if remote hostname is supplied
-        if (Settings.getRemoteHostname() != null) {
+    /**
+     * make a connection to another server if remote hostname is supplied
+     *
+     * @return false if the connection could not be made
+     */
+    public boolean initiateConnection() {
+        if (remoteHostname != null) {
             try {
-                Connection c = outgoingConnection(new Socket(Settings.getRemoteHostname(), Settings.getRemotePort()));
-            } catch (IOException e) {
-                log.error("failed to make connection to " + Settings.getRemoteHostname() + ":"
-                        + Settings.getRemotePort() + " :" + e);
-                System.exit(-1);
+                if (!join(remoteHostname, remotePort, Settings.getRepairTimeout())) {
+                    log.error("failed to join the tree through " + remoteHostname + ":" + remotePort);
+                    return false;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
             }
         }
+        return true;
+    }
+
+    public String getServerId() {
+        return serverId;
+    }
+
+    public String getLocalHostname() {
+        return localHostname;
+    }
+
+    public int getLocalPort() {
+        return localPort;
+    }
+
+    /**
+     * @return number of client and not yet authenticated connections
+     */
+    public int getConnectionCount() {
+        return clientConnections.size();
+    }
+
+    /**
+     * @return true if this server has a link to a parent or child server
+     */
+    public boolean hasServerLinks() {
+        return parentConnection != null || lChildConnection != null || rChildConnection != null;
     }
 
     /**
      * Processing incoming messages from the connection. Return true if the
-     * connection should close.
+     * connection should close. Parsing and rate limiting happen before taking
+     * the lock so that an over-limit client is shed without stalling others.
      *
      * @param con
      * @param msg result JSON string
      * @return
      */
-    public synchronized boolean process(Connection con, String msg) {
+    public boolean process(Connection con, String msg) {
+        messagesProcessed.incrementAndGet();
+        if (isServerConnection(con)) {
+            String command = Message.peekCommand(msg);
+            if (Message.ACTIVITY_FRAME.equals(command)) {
+                List<String> messages = Message.unframe(msg);
+                if (messages == null) {
+                    log.error("dropping a malformed ACTIVITY_FRAME from " + Settings.socketAddress(con.getSocket()));
+                    return false;
+                }
+                for (String m : messages) {
+                    passThrough(con, Message.peekCommand(m), m);
+                }
+                return false;
+            }
+            if (passThrough(con, command, msg)) {
+                return false;
+            }
+        }
         JSONObject request;
         try {
             request = (JSONObject) new JSONParser().parse(msg);
@@ -89,6 +256,41 @@ public class Control extends Thread {
         }
 
         String command = (String) request.get("command");
+        if (!admit(con, command, request)) {
+            return onOverload(con, command);
+        }
+        if (!synced && (command.equals(Message.LOGIN) || command.equals(Message.REGISTER))) {
+            // clients wait until we know the registered users, servers do not
+            awaitSync();
+        }
+        synchronized (this) {
+            return dispatch(con, command, request, msg);
+        }
+    }
+
+    /**
+     * Forward a broadcast from another server as received, without parsing
+     * or the lock.
+     *
+     * @return false if the message is not a broadcast
+     */
+    private boolean passThrough(Connection con, String command, String msg) {
+        boolean single = Message.ACTIVITY_BROADCAST.equals(command);
+        if (!single && !Message.ACTIVITY_BROADCAST_BATCH.equals(command)) {
+            return false;
+        }
+        if (Tracer.isTraced(msg)) {
+            msg = tracer.onRelay(msg);
+        }
+        if (single) {
+            relayActivity(con, msg);
+        } else {
+            relayActivityBatch(con, msg, null);
+        }
+        return true;
+    }
+
+    private boolean dispatch(Connection con, String command, JSONObject request, String msg) {
         switch (command) {
             case Message.INVALID_MESSAGE:
                 return true;
@@ -111,13 +313,46 @@ public class Control extends Thread {
             case Message.LOGIN:
                 return login(con, request);
             case Message.LOGOUT:
-                return logout(con);
+                return logout(con, request);
             case Message.ACTIVITY_MESSAGE:
                 return onReceiveActivityMessage(con, request);
             case Message.ACTIVITY_BROADCAST:
                 return broadcastActivity(con, request);
+            case Message.ACTIVITY_BATCH:
+                return onReceiveActivityBatch(con, request);
+            case Message.ACTIVITY_BROADCAST_BATCH:
+            case Message.ACTIVITY_FRAME:
+                // only servers send these, and theirs never get here
+                return Message.invalidMsg(con, command + " from an unauthenticated connection");
             case Message.SERVER_ANNOUNCE:
-                return onReceiveServerAnnounce(con, request);
+                return onReceiveServerAnnounce(con, request, msg);
+            case Message.REDIRECT:
+                return onJoinRedirect(con, request);
+            case Message.USER_SNAPSHOT:
+                return onUserSnapshot(con, request);
+            case Message.USER_SNAPSHOT_END:
+                return onUserSnapshotEnd(con, request);
+            case Message.DIRECTORY_REQUEST:
+                return onDirectoryRequest(con, request, msg);
+            case Message.DIRECTORY_REPLY:
+                return onDirectoryReply(con, request, msg);
+            case Message.BLOOM_DELTA:
+            case Message.BLOOM_FILTER:
+                // servers from before the filter was dropped still send these
+                return false;
+            case Message.USER_ONLINE:
+            case Message.USER_OFFLINE:
+                return onUserPresence(con, command, request);
+            case Message.STATS_QUERY:
+                return onStatsQuery(con, request);
+            case Message.STATS_REQUEST:
+                return onStatsRequest(con, request);
+            case Message.STATS_RESPONSE:
+                return onStatsResponse(con, request);
+            case Message.RESUME:
+                return onResume(con, request);
+            case Message.SESSION_SYNC:
+                return onSessionSync(con, request, msg);
             default:
                 return Message.invalidMsg(con, "the received message is not in valid format");
 
@@ -125,12 +360,118 @@ public class Control extends Thread {
 
     }
 
+    /**
+     * Check the per-connection token buckets for client ACTIVITY_MESSAGE and
+     * REGISTER, and the per-user one for activities of a user logged in on
+     * the connection or channel they are sent on. Anyone may claim any name,
+     * so a name alone never costs its owner tokens. Server links are never
+     * limited here, the limit applies where the traffic enters the tree.
+     *
+     * @return true if the message may be processed
+     */
+    private boolean admit(Connection con, String command, JSONObject request) {
+        TokenBucket conBucket;
+        TokenBucket userBucket = null;
+        int tokens = 1;
+        if (command.equals(Message.ACTIVITY_MESSAGE) || command.equals(Message.ACTIVITY_BATCH)) {
+            conBucket = con.getActivityBucket();
+            if (request.get("activities") instanceof JSONArray) {
+                // a batch costs as much as its activities sent singly
+                tokens = Math.max(1, ((JSONArray) request.get("activities")).size());
+            }
+            if (!conBucket.isUnlimited() && !isServerConnection(con)) {
+                String username = loggedInSender(con, request);
+                if (username != null) {
+                    userBucket = userActivityBuckets.computeIfAbsent(username,
+                            k -> new TokenBucket(Settings.getActivityRate(), Settings.getActivityBurst()));
+                }
+            }
+        } else if (command.equals(Message.REGISTER)) {
+            // nobody is logged in yet, so registration is only limited per connection
+            conBucket = con.getRegisterBucket();
+        } else {
+            return true;
+        }
+        if (conBucket.isUnlimited() || isServerConnection(con)) {
+            return true;
+        }
+        // the sessions of a multiplexed connection are only limited per user, not all together
+        if (con.isMultiplexed()) {
+            conBucket = null;
+        }
+        if (Settings.getOverloadPolicy().equals(Settings.OVERLOAD_DELAY)) {
+            // only this connection's reader thread waits, TCP pushes back on the client
+            long wait = conBucket != null ? conBucket.nanosUntilAvailable(tokens) : 0;
+            if (userBucket != null) {
+                wait = Math.max(wait, userBucket.nanosUntilAvailable(tokens));
+            }
+            if (wait > 0 && wait <= Settings.getMaxOverloadDelay() * 1000000L) {
+                try {
+                    Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return TokenBucket.tryAcquireBoth(conBucket, userBucket, tokens);
+    }
+
+    /**
+     * @return the registered user an activity message claims to be from, if
+     * that user is logged in with the given secret on the connection, or on
+     * the channel the message names; otherwise null
+     */
+    private String loggedInSender(Connection con, JSONObject request) {
+        Object username = request.get("username");
+        Object secret = request.get("secret");
+        if (!(username instanceof String) || !(secret instanceof String) || username.equals("anonymous")) {
+            return null;
+        }
+        if (con.isMultiplexed()) {
+            return isSender(con, request.get("channel"), (String) username, (String) secret)
+                    ? (String) username : null;
+        }
+        return username.equals(con.getSessionUser()) && isUserLoggedInLocally((String) username, (String) secret)
+                ? (String) username : null;
+    }
+
+    /**
+     * Handle a message that exceeded its rate limit. Return true if the
+     * connection should close.
+     */
+    private boolean onOverload(Connection con, String command) {
+        if (Settings.getOverloadPolicy().equals(Settings.OVERLOAD_REDIRECT)) {
+            String target = leastLoadedServer();
+            if (target != null) {
+                return Message.redirect(con, target);
+            }
+        }
+        if (command.equals(Message.REGISTER)) {
+            // a dropped REGISTER would leave the client waiting for an answer forever
+            return Message.registerFailed(con, "the server is overloaded, try again later");
+        }
+        return false;
+    }
+
+    // true for the links to the parent and the children
+    boolean isServerConnection(Connection con) {
+        return con == parentConnection || con == lChildConnection || con == rChildConnection;
+    }
+
+    /**
+     * @return true if another incoming connection may be accepted
+     */
+    public boolean hasConnectionCapacity() {
+        return Settings.getMaxConnections() <= 0 || clientConnections.size() < Settings.getMaxConnections();
+    }
+
     private boolean authenticateIncomingConnection(Connection con, JSONObject request) {
         if (request.get("secret") == null) {
             return Message.invalidMsg(con, "the received message did not contain a secret");
         }
         String secret = (String) request.get("secret");
-        if (!secret.equals(Settings.getServerSecret())) {
+        if (!secret.equals(serverSecret)) {
             // if the secret is incorrect
             return Message.authenticationFail(con, "the supplied secret is incorrect: " + secret);
         } else if (lChildConnection == con || rChildConnection == con) {
@@ -138,15 +479,117 @@ public class Control extends Thread {
         }
         // No reply if the authentication succeeded.
         clientConnections.remove(con);
-        if (lChildConnection == null) {
-            lChildConnection = con;
-        } else if (rChildConnection == null) {
-            rChildConnection = con;
-        } else {
+        boolean full = lChildConnection != null && rChildConnection != null;
+        String joiner = request.get("id") instanceof String ? (String) request.get("id") : null;
+        ServerInfo better = placement(joiner, new ArrayList<>(servers.values()));
+        if (better != null && (full || Settings.getBalanceThreshold() > 0 && isTopologySettled()
+                && better.getDepth() < getDepth())) {
+            // a shallower free slot keeps broadcasts from travelling further than they need to
+            log.debug("redirecting joining server " + joiner + " to " + better.getAddress());
+            return Message.redirect(con, better.getAddress());
+        }
+        if (full) {
             // socket require closing
             con.closeCon();
             log.debug("the connection was refused");
+            return false;
+        }
+        // announce ourselves before the link carries anything else, so the
+        // first announce a child sees on its parent link names its parent
+        announce(con);
+        lastTopologyChange = System.currentTimeMillis();
+        if (lChildConnection == null) {
+            lChildConnection = con;
+        } else {
+            rChildConnection = con;
+        }
+        if (Boolean.TRUE.equals(request.get("snapshot"))) {
+            sendUserSnapshot(con);
+        }
+        return false;
+    }
+
+    /**
+     * Stream the registered users to a new child on a thread of its own, in
+     * chunks that interleave with the link's normal traffic. The child is
+     * already linked, so registrations and denials made while the snapshot
+     * is being sent reach it through the lock protocol as usual, and the
+     * store's iterator returns every user present throughout.
+     *
+     * @param child
+     */
+    private void sendUserSnapshot(Connection child) {
+        Thread sender = new Thread(() -> {
+            awaitSync();
+            Iterator<Map.Entry<String, String>> registered = users.iterator();
+            long count = 0;
+            while (registered.hasNext() && child.isOpen() && !term) {
+                count += Message.userSnapshot(child, registered, SNAPSHOT_CHUNK);
+                Thread.yield();
+            }
+            Message.userSnapshotEnd(child, count);
+            log.info("sent " + count + " registered users to a new server");
+        }, "snapshot");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     * Wait, for at most the repair timeout, until a joining server has
+     * received its parent's registered users.
+     */
+    private synchronized void awaitSync() {
+        long deadline = System.currentTimeMillis() + Settings.getRepairTimeout();
+        long remaining;
+        while (!synced && (remaining = deadline - System.currentTimeMillis()) > 0) {
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private boolean onUserSnapshot(Connection con, JSONObject request) {
+        if (con != parentConnection || synced) {
+            return Message.invalidMsg(con, "unexpected user snapshot");
+        }
+        if (!(request.get("users") instanceof JSONArray)) {
+            return Message.invalidMsg(con, "the user snapshot did not contain users");
+        }
+        // users the lock protocol added meanwhile are kept, the ones it removed stay removed
+        int malformed = 0;
+        for (Object entry : (JSONArray) request.get("users")) {
+            JSONArray pair = entry instanceof JSONArray ? (JSONArray) entry : null;
+            if (pair == null || pair.size() != 2 || !(pair.get(0) instanceof String)
+                    || !(pair.get(1) instanceof String)) {
+                malformed++;
+                continue;
+            }
+            String username = (String) pair.get(0);
+            String secret = (String) pair.get(1);
+            if (!removedDuringSync.contains(username) && UserStore.fits(username, secret)) {
+                users.putIfAbsent(username, secret);
+            }
+        }
+        if (malformed > 0) {
+            log.error("skipped " + malformed + " malformed entries of a user snapshot");
+        }
+        return false;
+    }
+
+    /**
+     * The whole snapshot has arrived and the users are in the store.
+     */
+    private boolean onUserSnapshotEnd(Connection con, JSONObject request) {
+        if (con != parentConnection || synced) {
+            return Message.invalidMsg(con, "unexpected user snapshot");
         }
+        log.info("received " + request.get("count") + " registered users from the parent, " + users.summary());
+        removedDuringSync.clear();
+        synced = true;
+        notifyAll();
         return false;
     }
 
@@ -166,29 +609,38 @@ public class Control extends Thread {
         }
         // INVALID_MESSAGE - if receiving a REGISTER message from a client that has
         // already logged in on this connection.
-        for (User user : userList) {
-            if (isUserLoggedIn(user, con)) {
-                Message.invalidMsg(con, "You have already logged in.");
-                return true;
-            }
+        if (con.isLoggedIn() || con.isMultiplexed()) {
+            Message.invalidMsg(con, "You have already logged in.");
+            return true;
         }
         String username = (String) request.get("username");
         String secret = (String) request.get("secret");
+        if (!UserStore.fits(username, secret)) {
+            return Message.registerFailed(con, "the username or secret is longer than "
+                    + UserStore.MAX_FIELD_BYTES + " bytes");
+        }
+        if (username.startsWith("\u0000")) {
+            // reserved for the standby mailboxes, see standbyKey
+            return Message.registerFailed(con, "a username may not start with a NUL character");
+        }
+        // answer names we hold straight away, instead of after a round of lock requests
+        if (isPartitioned() ? directory.contains(username) : users.contains(username)) {
+            return Message.registerFailed(con, username + " is already registered with the system"); // true
+        }
+        if (isPartitioned()) {
+            return directoryLookup(con, Message.REGISTER, username, secret, null);
+        }
         //System.out.println("1");
-        // If there's only one server in the system
+        // If there's only one server in the system, the name is free: the store said so above
         if (parentConnection == null && lChildConnection == null && rChildConnection == null) {
-            if (isUserRegistered(username)) {
-                return Message.registerFailed(con, username + " is already registered with the system"); // true
-            } else {
-                addUser(con, username, secret);
-                return Message.registerSuccess(con, "register success for " + username);
-            }
+            addUser(username, secret);
+            return Message.registerSuccess(con, "register success for " + username);
         } else { // If there're multiple servers in the system
             String[] validatedList = {"0", "0", "0"};
             validateMap.put(con, validatedList);
             registerMap.put(con, username);
             //allowMap.put(username, validatedList);
-            addUser(con, username, secret);
+            addUser(username, secret);
             if (parentConnection != null) {
                 Message.lockRequest(parentConnection, username, secret);
             }
@@ -324,10 +776,9 @@ public class Control extends Thread {
             }
         }
 
-        for (User user : userList) {
-            if (user.getUserName().equals(username) & user.getPassword().equals(secret)) {
-                userList.remove(user);
-            }
+        users.remove(username, secret);
+        if (!synced) {
+            removedDuringSync.add(username);
         }
     }
 
@@ -340,11 +791,10 @@ public class Control extends Thread {
         //System.out.println("4");
         String[] validatedList = {"0", "0", "0"};
         allowMap.put(username, validatedList);
-        if (isUserRegistered(username)) { // almost useless
-            for (User user : userList) {
-                if (user.getUserName().equals(username) & user.getPassword().equals(secret)) {
-                    userList.remove(user);
-                }
+        if (users.contains(username)) { // almost useless
+            users.remove(username, secret);
+            if (!synced) {
+                removedDuringSync.add(username);
             }
             if (lChildConnection != null) {
                 Message.lockDenied(lChildConnection, username, secret);
@@ -356,7 +806,7 @@ public class Control extends Thread {
                 Message.lockDenied(parentConnection, username, secret);
             }
         } else { // if the username is not already known to the server
-            addUser(con, username, secret); // record this username and secret pair in its local storage.
+            addUser(username, secret); // record this username and secret pair in its local storage.
             if (con.equals(parentConnection)) { // if from parent
                 if (lChildConnection == null & rChildConnection == null) {
                     Message.lockAllowed(parentConnection, username, secret);
@@ -384,40 +834,48 @@ public class Control extends Thread {
         return false;
     }
 
-    private void addUser(Connection con, String username, String secret) {
-        if (con.equals(null)) {
-            User user = new User(null, username, secret);
+    private void addUser(String username, String secret) {
+        // a name too long for the store is refused at REGISTER, another server may not have
+        if (UserStore.fits(username, secret)) {
+            users.putIfAbsent(username, secret);
         }
-        User user = new User(con.getSocket().getRemoteSocketAddress(), username, secret);
-        userList.add(user);
     }
 
-    private boolean isUserRegistered(String username) {
-        boolean flag = false;
-        for (User user : userList) {
-            if (user.getUserName().equals(username)) {
-                flag = true;
+    private boolean onReceiveServerAnnounce(Connection con, JSONObject request, String msg) {
+        if (!(request.get("id") instanceof String) || !(request.get("load") instanceof Long)
+                || !(request.get("hostname") instanceof String) || !(request.get("port") instanceof Long)) {
+            return Message.invalidMsg(con, "the server announce is incomplete");
+        }
+        String id = (String) request.get("id");
+        if (!id.equals(serverId)) {
+            onPrimaryAnnounce(id);
+            int size = request.get("size") instanceof Long ? ((Long) request.get("size")).intValue() : 1;
+            int depth = request.get("depth") instanceof Long ? ((Long) request.get("depth")).intValue() : 0;
+            // servers from before the score announce only the connection count
+            double score = request.get("score") instanceof Number ? ((Number) request.get("score")).doubleValue()
+                    : Double.NaN;
+            if (servers.computeIfAbsent(id, ServerInfo::new).update((String) request.get("hostname"),
+                    ((Long) request.get("port")).intValue(), ((Long) request.get("load")).intValue(), score,
+                    (String) request.get("parent"), size, depth)) {
+                lastTopologyChange = System.currentTimeMillis();
             }
         }
-        return flag;
-    }
-
-    private boolean isUserLoggedIn(User user, Connection con) {
-        return user.getLocalSocketAddress().equals(con.getSocket().getRemoteSocketAddress())
-                && loginVector.contains(user.getLocalSocketAddress());
-    }
-
-    private boolean onReceiveServerAnnounce(Connection con, JSONObject request) {
-        // loadMap.put(con, ((Long) request.get("load")).intValue());
-        loadMap.put(request.get("hostname") + ":" + request.get("port"), ((Long) request.get("load")).intValue());
+        if (serverId.equals(request.get("parent")) && (con == lChildConnection || con == rChildConnection)) {
+            childLinks.put(id, con);
+        }
+        if (con == parentConnection && parentId == null) {
+            parentId = id;
+            log.info("joined the tree under " + id);
+        }
+        // forward the announce exactly as it was received
         if (parentConnection != null && con != parentConnection) {
-            parentConnection.writeMsg(request.toJSONString());
+            parentConnection.writeMsg(msg);
         }
         if (lChildConnection != null && con != lChildConnection) {
-            lChildConnection.writeMsg(request.toJSONString());
+            lChildConnection.writeMsg(msg);
         }
         if (rChildConnection != null && con != rChildConnection) {
-            rChildConnection.writeMsg(request.toJSONString());
+            rChildConnection.writeMsg(msg);
         }
 
         if (con.equals(parentConnection)) {
@@ -433,157 +891,1795 @@ public class Control extends Thread {
 
     }
 
-    private String checkOtherLoads() {
-        for (Map.Entry<String, Integer> entry : loadMap.entrySet()) {
-            if (clientConnections.size() - entry.getValue() >= 2) {
-                return entry.getKey();
-            }
+    /**
+     * A REDIRECT on a parent link that has not been confirmed yet: the server
+     * we tried to join sent us somewhere better.
+     */
+    private boolean onJoinRedirect(Connection con, JSONObject request) {
+        if (con != parentConnection || parentId != null || !(request.get("hostname") instanceof String)
+                || !(request.get("port") instanceof Long)) {
+            return Message.invalidMsg(con, "unexpected redirect");
         }
-        return null;
+        joinRedirect = request.get("hostname") + ":" + request.get("port");
+        return true;
     }
 
-    private boolean login(Connection con, JSONObject request) {
-        if (request.containsKey("username") && request.get("username").equals("anonymous")) { // anonymous login
-            Message.loginSuccess(con, "logged in as user " + request.get("username"));
-            loginVector.add(con.getSocket().getRemoteSocketAddress());
-            if (checkOtherLoads() != null) {
-                return Message.redirect(con, checkOtherLoads());
+    /**
+     * @return hops from this server to the root
+     */
+    private int getDepth() {
+        String parent = parentId;
+        if (parent == null) {
+            return 0;
+        }
+        ServerInfo info = servers.get(parent);
+        return info == null ? 1 : info.getDepth() + 1;
+    }
+
+    /**
+     * @return servers in this server's subtree, including itself
+     */
+    private int getSubtreeSize() {
+        int size = 1;
+        for (ServerInfo info : servers.values()) {
+            if (serverId.equals(info.getParentId())) {
+                size += info.getSize();
             }
-            return false;
-        } else if (request.containsKey("username") && request.containsKey("secret")) { // username login
-            String username = (String) request.get("username");
-            String secret = (String) request.get("secret");
-            boolean foundUser = false;
-            for (User user : userList) {
-                if (user.getUserName().equals(username)) {
-                    foundUser = true;
-                    if (user.getPassword().equals(secret)) {
-                        Message.loginSuccess(con, "logged in as user " + username);
-                        // Here's a bug.
-                        loginVector.add(user.getLocalSocketAddress());
-                        if (checkOtherLoads() != null) {
-                            return Message.redirect(con, Objects.requireNonNull(checkOtherLoads()));
-                        }
-                        return false;
-                    } else {
-                        return Message.loginFailed(con, "attempt to login with wrong secret");
-                    }
-                }
+        }
+        return size;
+    }
+
+    /**
+     * The shallowest server with a free child slot, smaller subtrees first,
+     * that is neither the joining server nor below it.
+     *
+     * @param joiner id of the joining server, null if unknown
+     * @param nodes  the servers to choose from
+     * @return null if none qualifies
+     */
+    private ServerInfo placement(String joiner, List<ServerInfo> nodes) {
+        ServerInfo best = null;
+        for (ServerInfo info : nodes) {
+            if (info.getId().equals(joiner) || joiner != null && isDescendant(info.getId(), joiner)
+                    || childCount(info.getId()) >= 2) {
+                continue;
             }
-            if (!foundUser) {
-                return Message.loginFailed(con, "attempt to login with wrong username");
+            if (best == null || info.getDepth() < best.getDepth()
+                    || info.getDepth() == best.getDepth() && info.getSize() < best.getSize()) {
+                best = info;
             }
-        } else {
-            return Message.invalidMsg(con, "missed username or secret");
         }
-        loginVector.add(con.getSocket().getRemoteSocketAddress());
-        return false;
+        return best;
     }
 
-    private boolean logout(Connection con) {
-        boolean logout = false;
-        for (User user : userList) {
-            if (user.getLocalSocketAddress().equals(con.getSocket().getRemoteSocketAddress())) {
-                loginVector.remove(con.getSocket().getRemoteSocketAddress());
-                logout = true;
-            }
+    /**
+     * @return true if no link or announced parent has changed for a few
+     * intervals, so our view of the tree is likely to be complete
+     */
+    private boolean isTopologySettled() {
+        return System.currentTimeMillis() - lastTopologyChange >= 3L * Settings.getActivityInterval();
+    }
+
+    private int childCount(String id) {
+        if (id.equals(serverId)) {
+            return (lChildConnection == null ? 0 : 1) + (rChildConnection == null ? 0 : 1);
         }
-        if (logout) {
-            con.closeCon();
+        // we never appear in servers, count ourselves below our parent
+        int children = id.equals(parentId) ? 1 : 0;
+        for (ServerInfo info : servers.values()) {
+            if (id.equals(info.getParentId())) {
+                children++;
+            }
         }
-        return logout;
+        return children;
     }
 
-    private boolean isUserLoggedInLocally(String username, String secret) {
-        boolean flag = false;
-        for (User user : userList) {
-            if (user.getUserName().equals(username) && user.getPassword().equals(secret)
-                    && loginVector.contains(user.getLocalSocketAddress())) {
-                flag = true;
+    /**
+     * Move this server, with its subtree, closer to the root when that is
+     * the best single move in the tree. Every server scores the same moves
+     * from the same announced view, so only one of them acts at a time, and
+     * none does until the tree has been still for a few intervals.
+     */
+    private void rebalance() {
+        int threshold = Settings.getBalanceThreshold();
+        if (threshold <= 0 || parentId == null || repairing.get() || !isTopologySettled()) {
+            return;
+        }
+        List<ServerInfo> nodes = new ArrayList<>(servers.values());
+        ServerInfo self = new ServerInfo(serverId);
+        self.update(localHostname, localPort, clientConnections.size(), loadScore.get(countSessions()), parentId,
+                getSubtreeSize(), getDepth());
+        nodes.add(self);
+        ServerInfo mover = null;
+        ServerInfo moverTarget = null;
+        long bestGain = 0;
+        for (ServerInfo node : nodes) {
+            if (node.getParentId() == null) {
+                continue;
+            }
+            ServerInfo target = placement(node.getId(), nodes);
+            if (target == null || node.getDepth() - target.getDepth() - 1 < threshold) {
+                continue;
             }
+            // every server in the subtree gets the shorter path
+            long gain = (long) (node.getDepth() - target.getDepth() - 1) * node.getSize();
+            if (gain > bestGain || gain == bestGain && node.getId().compareTo(mover.getId()) < 0) {
+                bestGain = gain;
+                mover = node;
+                moverTarget = target;
+            }
+        }
+        if (mover != self || !repairing.compareAndSet(false, true)) {
+            return;
         }
-        return flag;
+        lastTopologyChange = System.currentTimeMillis();
+        String oldParent = parentId;
+        ServerInfo target = moverTarget;
+        log.info("moving from depth " + self.getDepth() + " to below " + target.getId() + " at depth "
+                + target.getDepth());
+        inBackground(() -> {
+            if (join(target.getHostname(), target.getPort(), Settings.getRepairTimeout())) {
+                log.info("moved below " + target.getId());
+                return;
+            }
+            // go back where we were, or anywhere outside our own subtree
+            List<ServerInfo> candidates = new ArrayList<>();
+            if (servers.get(oldParent) != null) {
+                candidates.add(servers.get(oldParent));
+            }
+            for (ServerInfo info : servers.values()) {
+                if (!candidates.contains(info) && !isDescendant(info.getId(), serverId)) {
+                    candidates.add(info);
+                }
+            }
+            repair(candidates);
+        });
     }
 
-    private boolean onReceiveActivityMessage(Connection con, JSONObject request) {
-        if (!request.containsKey("username")) {
-            return Message.invalidMsg(con, "the message did not contain a username");
+    /**
+     * Log how long messages waited in each outbound lane during the last
+     * interval, per server link and over all clients, in microseconds.
+     */
+    private void reportQueueLatency() {
+        String[] names = {"parent", "left child", "right child"};
+        Connection[] links = {parentConnection, lChildConnection, rChildConnection};
+        for (int i = 0; i < links.length; i++) {
+            if (links[i] != null) {
+                reportQueueLatency(names[i], links[i].getControlLatency(), links[i].getBulkLatency());
+            }
         }
-        if (!request.containsKey("secret")) {
-            return Message.invalidMsg(con, "the message did not contain a secret");
+        LatencyHistogram control = new LatencyHistogram();
+        LatencyHistogram bulk = new LatencyHistogram();
+        for (Connection c : clientConnections) {
+            control.merge(c.getControlLatency());
+            bulk.merge(c.getBulkLatency());
+            c.getControlLatency().reset();
+            c.getBulkLatency().reset();
         }
-        if (!request.containsKey("activity")) {
-            return Message.invalidMsg(con, "the message did not contain an activity");
+        LatencyHistogram wait = new LatencyHistogram();
+        wait.merge(control);
+        wait.merge(bulk);
+        clientQueueWait = wait;
+        reportQueueLatency("clients", control, bulk);
+    }
+
+    private static void reportQueueLatency(String name, LatencyHistogram control, LatencyHistogram bulk) {
+        if (control.getCount() > 0 || bulk.getCount() > 0) {
+            log.info("queue wait us to " + name + ": control " + control.summary() + ", bulk " + bulk.summary());
         }
-        String username = (String) request.get("username");
-        String secret = (String) request.get("secret");
-        JSONObject activity = (JSONObject) request.get("activity");
-        activity.put("authenticated_user", username);
+        control.reset();
+        bulk.reset();
+    }
 
-        JSONObject broadcastAct = new JSONObject();
-        broadcastAct.put("activity", activity);
-        broadcastAct.put("command", Message.ACTIVITY_BROADCAST);
+    private static boolean isPartitioned() {
+        return Settings.getDirectoryMode().equals(Settings.DIRECTORY_PARTITIONED);
+    }
+
+    /**
+     * A client REGISTER or LOGIN waiting for the primary owner of its
+     * username to answer.
+     */
+    private static final class DirectoryLookup {
+        final Connection con;
+        final String command;
+        final String username;
+        final String secret;
+        final Long channel; // of a multiplexed connection, else null
+        final long started = System.currentTimeMillis();
 
-        if (!username.equals("anonymous") && !isUserLoggedInLocally(username, secret)) {
-            return Message.authenticationFail(con, "the username and secret do not match the logged in the user, "
-                    + "or the user has not logged in yet");
+        DirectoryLookup(Connection con, String command, String username, String secret, Long channel) {
+            this.con = con;
+            this.command = command;
+            this.username = username;
+            this.secret = secret;
+            this.channel = channel;
         }
-        return broadcastActivity(con, broadcastAct);
     }
 
-    private boolean broadcastActivity(Connection sourceConnection, JSONObject activity) {
-        for (Connection c : clientConnections) {
-            Message.activityBroadcast(c, activity);
+    /**
+     * A user sent to a new owner that has yet to acknowledge it.
+     */
+    private static final class HandOff {
+        final String username;
+        final String secret;
+        final String owner;
+        final long sent = System.currentTimeMillis();
+
+        HandOff(String username, String secret, String owner) {
+            this.username = username;
+            this.secret = secret;
+            this.owner = owner;
         }
-        // broadcast activity to other servers except the one it comes from
-        if (parentConnection != null && parentConnection != sourceConnection) {
-            Message.activityBroadcast(parentConnection, activity);
+    }
+
+    /**
+     * The ring over every server we currently know of, rebuilt when that set
+     * changes.
+     */
+    private synchronized HashRing ring() {
+        Set<String> members = new HashSet<>(servers.keySet());
+        members.add(serverId);
+        if (!members.equals(ringMembers)) {
+            ring = new HashRing(members);
+            ringMembers = members;
         }
-        if (lChildConnection != null && lChildConnection != sourceConnection) {
-            Message.activityBroadcast(lChildConnection, activity);
+        return ring;
+    }
+
+    /**
+     * Send a client's REGISTER or LOGIN to the primary owner of the username,
+     * or answer it here if that is us. Return true if the connection should
+     * close.
+     */
+    private boolean directoryLookup(Connection con, String command, String username, String secret, Long channel) {
+        List<String> owners = ring().owners(username, Settings.getReplicationFactor());
+        String primary = owners.get(0);
+        String op = command.equals(Message.REGISTER) ? "register" : "login";
+        if (primary.equals(serverId)) {
+            return completeLookup(new DirectoryLookup(con, command, username, secret, channel),
+                    applyDirectory(op, username, secret, owners));
         }
-        if (rChildConnection != null && rChildConnection != sourceConnection) {
-            Message.activityBroadcast(rChildConnection, activity);
+        Connection hop = nextHop(primary);
+        if (hop == null) {
+            return completeLookup(new DirectoryLookup(con, command, username, secret, channel), DIRECTORY_UNAVAILABLE);
         }
+        long rid = nextLookup.incrementAndGet();
+        lookups.put(rid, new DirectoryLookup(con, command, username, secret, channel));
+        Message.directoryRequest(hop, primary, serverId, rid, op, username, secret);
         return false;
     }
 
     /**
-     * The connection has been closed by the other party.
+     * Act on this server's part of the directory.
      *
-     * @param con
+     * @param owners all owners of username, primary first, for register
+     * @return the result to report
      */
-    public synchronized void connectionClosed(Connection con) {
-        if (term) {
+    private String applyDirectory(String op, String username, String secret, List<String> owners) {
+        switch (op) {
+            case "register":
+                if (!directory.putIfAbsent(username, secret)) {
+                    return DIRECTORY_EXISTS;
+                }
+                for (String owner : owners) {
+                    Connection hop = owner.equals(serverId) ? null : nextHop(owner);
+                    if (hop != null) {
+                        Message.directoryRequest(hop, owner, serverId, 0, "replicate", username, secret);
+                    }
+                }
+                return DIRECTORY_OK;
+            case "replicate":
+                directory.putIfAbsent(username, secret);
+                return DIRECTORY_OK;
+            default:
+                String stored = directory.getSecret(username);
+                if (stored == null) {
+                    return DIRECTORY_UNKNOWN;
+                }
+                return stored.equals(secret) ? DIRECTORY_OK : DIRECTORY_WRONG_SECRET;
+        }
+    }
+
+    /**
+     * Answer the client of a lookup. Return true if its connection should
+     * close.
+     */
+    private boolean completeLookup(DirectoryLookup lookup, String result) {
+        Connection con = lookup.con;
+        if (lookup.command.equals(Message.REGISTER)) {
+            switch (result) {
+                case DIRECTORY_OK:
+                    return Message.registerSuccess(con, "register success for " + lookup.username);
+                case DIRECTORY_EXISTS:
+                    return Message.registerFailed(con, lookup.username + " is already registered with the system");
+                default:
+                    return Message.registerFailed(con, "the user directory is unavailable, try again later");
+            }
+        }
+        if (lookup.channel != null) {
+            return result.equals(DIRECTORY_OK) ? openChannel(con, lookup.channel, lookup.username, lookup.secret)
+                    : Message.channelReply(con, Message.LOGIN_FAILED, lookup.channel, loginFailure(result));
+        }
+        if (!result.equals(DIRECTORY_OK)) {
+            return Message.loginFailed(con, loginFailure(result));
+        }
+        Message.loginSuccess(con, "logged in as user " + lookup.username);
+        String target = checkOtherLoads();
+        if (target != null) {
+            return Message.redirect(con, target);
+        }
+        startSession(con, lookup.username, lookup.secret);
+        return false;
+    }
+
+    private static String loginFailure(String result) {
+        switch (result) {
+            case DIRECTORY_WRONG_SECRET:
+                return "attempt to login with wrong secret";
+            case DIRECTORY_UNKNOWN:
+                return "attempt to login with wrong username";
+            default:
+                return "the user directory is unavailable, try again later";
+        }
+    }
+
+    private boolean onDirectoryRequest(Connection con, JSONObject request, String msg) {
+        if (!isServerConnection(con)) {
+            return Message.invalidMsg(con, "The connection has not authenticated");
+        }
+        String to = (String) request.get("to");
+        if (!serverId.equals(to)) {
+            // hand-offs come in streams, which must not crowd out the lookups
+            if ("replicate".equals(request.get("op"))) {
+                routeBulk(con, to, msg);
+            } else {
+                route(con, to, msg);
+            }
+            return false;
+        }
+        String op = (String) request.get("op");
+        String username = (String) request.get("username");
+        String secret = (String) request.get("secret");
+        if (!"register".equals(op) && !"replicate".equals(op) && !"login".equals(op) || username == null
+                || secret == null || !(request.get("rid") instanceof Long)) {
+            return Message.invalidMsg(con, "the directory request is incomplete");
+        }
+        String result = applyDirectory(op, username, secret,
+                op.equals("register") ? ring().owners(username, Settings.getReplicationFactor()) : null);
+        // a replicate is only acknowledged when a hand-off asks for it
+        if (!op.equals("replicate") || (Long) request.get("rid") != 0) {
+            String from = (String) request.get("from");
+            Connection hop = nextHop(from);
+            if (hop != null) {
+                Message.directoryReply(hop, from, (Long) request.get("rid"), result);
+            }
+        }
+        return false;
+    }
+
+    private boolean onDirectoryReply(Connection con, JSONObject request, String msg) {
+        if (!isServerConnection(con)) {
+            return Message.invalidMsg(con, "The connection has not authenticated");
+        }
+        String to = (String) request.get("to");
+        if (!serverId.equals(to)) {
+            route(con, to, msg);
+            return false;
+        }
+        HandOff handOff = request.get("rid") instanceof Long ? handOffs.remove(request.get("rid")) : null;
+        if (handOff != null) {
+            handedOff(handOff);
+            return false;
+        }
+        DirectoryLookup lookup = request.get("rid") instanceof Long ? lookups.remove(request.get("rid")) : null;
+        if (lookup == null) {
+            // answered after it timed out
+            return false;
+        }
+        if (completeLookup(lookup, String.valueOf(request.get("result")))) {
+            lookup.con.closeCon();
+        }
+        return false;
+    }
+
+    /**
+     * Fail the lookups whose owner has not answered within the heartbeat
+     * timeout.
+     */
+    private synchronized void expireLookups() {
+        long cutoff = System.currentTimeMillis() - Settings.getHeartbeatTimeout();
+        for (Map.Entry<Long, DirectoryLookup> entry : lookups.entrySet()) {
+            if (entry.getValue().started < cutoff && lookups.remove(entry.getKey()) != null) {
+                if (completeLookup(entry.getValue(), DIRECTORY_UNAVAILABLE)) {
+                    entry.getValue().con.closeCon();
+                }
+            }
+        }
+    }
+
+    /**
+     * After the set of servers has changed and settled, send the users whose
+     * owners changed to the owners they gained, on a thread of its own that
+     * pauses every HANDOFF_CHUNK users and waits for the links to keep up,
+     * so a membership change costs the users that move rather than every
+     * user. A user we no longer own is dropped once all its new owners have
+     * acknowledged it.
+     */
+    private void handOff() {
+        HashRing current = ring();
+        Set<String> members = ringMembers;
+        if (members == handedOffMembers || !isTopologySettled()) {
+            return;
+        }
+        handedOffMembers = members;
+        HashRing previous = handedOffRing;
+        if (previous == null) {
+            // the first settled ring: what we hold was sent to us by owners of this ring
+            handedOffRing = current;
+            return;
+        }
+        Thread sender = new Thread(() -> handOff(previous, current, members), "handoff");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     * @param previous the ring of the last finished hand-off
+     */
+    private void handOff(HashRing previous, HashRing current, Set<String> members) {
+        int replicas = Settings.getReplicationFactor();
+        int moved = 0;
+        int dropped = 0;
+        Iterator<Map.Entry<String, String>> entries = directory.iterator();
+        while (entries.hasNext() && !term) {
+            if (handedOffMembers != members) {
+                // the servers changed again, a newer hand-off starts over from the same ring
+                return;
+            }
+            for (int i = 0; i < HANDOFF_CHUNK && entries.hasNext(); i++) {
+                Map.Entry<String, String> entry = entries.next();
+                String username = entry.getKey();
+                List<String> owners = current.owners(username, replicas);
+                List<String> before = previous.owners(username, replicas);
+                if (owners.equals(before)) {
+                    continue;
+                }
+                List<String> gained = new ArrayList<>();
+                for (String owner : owners) {
+                    if (!before.contains(owner) && !owner.equals(serverId)) {
+                        gained.add(owner);
+                    }
+                }
+                if (gained.isEmpty()) {
+                    if (!owners.contains(serverId) && directory.remove(username, entry.getValue())) {
+                        // the owners that remain already hold it
+                        dropped++;
+                    }
+                    continue;
+                }
+                moved++;
+                if (owners.contains(serverId)) {
+                    // we keep it, so nothing waits for the new owners to acknowledge
+                    for (String owner : gained) {
+                        Connection hop = nextHop(owner);
+                        if (hop != null) {
+                            Message.directoryHandOff(hop, owner, serverId, 0, username, entry.getValue());
+                        }
+                    }
+                    continue;
+                }
+                Set<String> awaited = ConcurrentHashMap.newKeySet();
+                awaited.addAll(gained);
+                handOffsAwaited.put(username, awaited);
+                for (String owner : gained) {
+                    sendHandOff(new HandOff(username, entry.getValue(), owner));
+                }
+            }
+            Thread.yield();
+        }
+        handedOffRing = current;
+        log.info("directory holds " + directory.size() + " users across " + members.size() + " servers, handed "
+                + moved + " to new owners, dropped " + dropped);
+    }
+
+    // send a user we no longer own to a new owner, who acknowledges it; retried if it cannot be routed yet
+    private void sendHandOff(HandOff handOff) {
+        long rid = nextLookup.incrementAndGet();
+        handOffs.put(rid, handOff);
+        Connection hop = nextHop(handOff.owner);
+        if (hop != null) {
+            Message.directoryHandOff(hop, handOff.owner, serverId, rid, handOff.username, handOff.secret);
+        }
+    }
+
+    // a new owner has the user: once all of them do, and we still do not own it, let it go
+    private void handedOff(HandOff handOff) {
+        Set<String> awaited = handOffsAwaited.get(handOff.username);
+        if (awaited == null || !awaited.remove(handOff.owner) || !awaited.isEmpty()
+                || !handOffsAwaited.remove(handOff.username, awaited)) {
+            return;
+        }
+        if (!ring().owners(handOff.username, Settings.getReplicationFactor()).contains(serverId)) {
+            directory.remove(handOff.username, handOff.secret);
+        }
+    }
+
+    /**
+     * Send again the hand-offs not acknowledged within the heartbeat timeout
+     * whose owner is still awaited, e.g. because there was no route to it.
+     */
+    private void retryHandOffs() {
+        long cutoff = System.currentTimeMillis() - Settings.getHeartbeatTimeout();
+        List<HandOff> retries = new ArrayList<>();
+        for (Iterator<HandOff> it = handOffs.values().iterator(); it.hasNext(); ) {
+            HandOff handOff = it.next();
+            if (handOff.sent < cutoff) {
+                it.remove();
+                Set<String> awaited = handOffsAwaited.get(handOff.username);
+                if (awaited != null && awaited.contains(handOff.owner)) {
+                    retries.add(new HandOff(handOff.username, handOff.secret, handOff.owner));
+                }
+            }
+        }
+        if (!retries.isEmpty()) {
+            log.debug("handing " + retries.size() + " users to their new owners again");
+            Thread sender = new Thread(() -> retries.forEach(this::sendHandOff), "handoff");
+            sender.setDaemon(true);
+            sender.start();
+        }
+    }
+
+    /**
+     * @return the link towards the server with the given id: the child whose
+     * subtree holds it, otherwise the parent
+     */
+    private Connection nextHop(String to) {
+        String id = to;
+        for (int hops = 0; id != null && hops <= servers.size(); hops++) {
+            ServerInfo info = servers.get(id);
+            if (info == null) {
+                break;
+            }
+            if (serverId.equals(info.getParentId())) {
+                Connection link = childLinks.get(id);
+                return link != null ? link : parentConnection;
+            }
+            id = info.getParentId();
+        }
+        return parentConnection;
+    }
+
+    /**
+     * Forward a directory message towards its target. One that would go back
+     * where it came from is dropped: the two ends disagree about the tree
+     * until the next announces, and the lookup times out instead of bouncing.
+     */
+    private void route(Connection from, String to, String msg) {
+        Connection hop = nextHop(to);
+        if (hop != null && hop != from) {
+            hop.writeMsg(msg);
+        } else {
+            log.debug("no route to server " + to);
+        }
+    }
+
+    // as route, in the bulk lane
+    private void routeBulk(Connection from, String to, String msg) {
+        Connection hop = nextHop(to);
+        if (hop != null && hop != from) {
+            hop.writeBulk(msg);
+        } else {
+            log.debug("no route to server " + to);
+        }
+    }
+
+    /**
+     * Pick a server for a client that has just logged in: the one with the
+     * lowest load score, if ours is higher by at least the hysteresis, so
+     * clients do not bounce between servers whose scores are close. The
+     * target's score counts the client until its next announce. Servers
+     * that announce no score are compared by connection count as before.
+     *
+     * @return hostname:port to redirect to, or null to stay
+     */
+    private String checkOtherLoads() {
+        double own = loadScore.get(countSessions());
+        ServerInfo target = null;
+        for (ServerInfo info : servers.values()) {
+            if (Double.isNaN(info.getScore())) {
+                if (clientConnections.size() - info.getLoad() >= 2) {
+                    return info.getAddress();
+                }
+            } else if (own - info.getScore() >= Settings.getScoreHysteresis()
+                    && (target == null || info.getScore() < target.getScore())) {
+                target = info;
+            }
+        }
+        if (target == null) {
+            return null;
+        }
+        target.addRedirected(LoadScore.perSession());
+        return target.getAddress();
+    }
+
+    /**
+     * @return the server with the lowest load score, if lower than ours,
+     * for shedding a client that is over its rate limit
+     */
+    private String leastLoadedServer() {
+        double min = loadScore.get(countSessions());
+        ServerInfo target = null;
+        for (ServerInfo info : servers.values()) {
+            double score = Double.isNaN(info.getScore()) ? Double.POSITIVE_INFINITY : info.getScore();
+            if (score < min) {
+                min = score;
+                target = info;
+            }
+        }
+        if (target == null) {
+            return null;
+        }
+        target.addRedirected(LoadScore.perSession());
+        return target.getAddress();
+    }
+
+    private int countSessions() {
+        int sessions = 0;
+        for (Connection c : clientConnections) {
+            if (c.isLoggedIn()) {
+                sessions++;
+            }
+            sessions += c.getChannelCount();
+        }
+        return sessions;
+    }
+
+    private long totalBacklog() {
+        long backlog = 0;
+        for (Connection c : clientConnections) {
+            backlog += c.getBacklog();
+        }
+        for (Connection link : new Connection[]{parentConnection, lChildConnection, rChildConnection}) {
+            if (link != null) {
+                backlog += link.getBacklog();
+            }
+        }
+        return backlog;
+    }
+
+    private void sampleLoad() {
+        loadScore.sample(countSessions(), totalBacklog(), messagesProcessed.get());
+        log.debug(loadScore.describe());
+    }
+
+    private boolean login(Connection con, JSONObject request) {
+        if (request.containsKey("channel") || con.isMultiplexed()) {
+            return channelLogin(con, request);
+        }
+        con.setAcceptsBatches(Boolean.TRUE.equals(request.get("batch")));
+        if (request.containsKey("username") && request.get("username").equals("anonymous")) { // anonymous login
+            Message.loginSuccess(con, "logged in as user " + request.get("username"));
+            String target = checkOtherLoads();
+            if (target != null) {
+                return Message.redirect(con, target);
+            }
+            startSession(con, "anonymous", null);
+            return false;
+        } else if (request.containsKey("username") && request.containsKey("secret")) { // username login
+            String username = (String) request.get("username");
+            String secret = (String) request.get("secret");
+            if (isPartitioned()) {
+                return directoryLookup(con, Message.LOGIN, username, secret, null);
+            }
+            String stored = users.getSecret(username);
+            if (stored == null) {
+                return Message.loginFailed(con, "attempt to login with wrong username");
+            }
+            if (!stored.equals(secret)) {
+                return Message.loginFailed(con, "attempt to login with wrong secret");
+            }
+            Message.loginSuccess(con, "logged in as user " + username);
+            String target = checkOtherLoads();
+            if (target != null) {
+                return Message.redirect(con, target);
+            }
+            startSession(con, username, secret);
+            return false;
+        } else {
+            return Message.invalidMsg(con, "missed username or secret");
+        }
+    }
+
+    /**
+     * Log in one session of a multiplexed connection, which may hold any
+     * number of them, each under a channel id of the client's choosing.
+     */
+    private boolean channelLogin(Connection con, JSONObject request) {
+        Object channel = request.get("channel");
+        if (!(channel instanceof Long) || (Long) channel < 0) {
+            return Message.invalidMsg(con, "a multiplexed LOGIN needs a non-negative integer channel");
+        }
+        if (con.isLoggedIn()) {
+            return Message.invalidMsg(con, "the connection is already logged in without a channel");
+        }
+        long id = (Long) channel;
+        if (Boolean.TRUE.equals(request.get("batch"))) {
+            con.setAcceptsBatches(true);
+        }
+        if ("anonymous".equals(request.get("username"))) {
+            return openChannel(con, id, "anonymous", null);
+        }
+        if (!(request.get("username") instanceof String) || !(request.get("secret") instanceof String)) {
+            return Message.invalidMsg(con, "missed username or secret");
+        }
+        String username = (String) request.get("username");
+        String secret = (String) request.get("secret");
+        if (isPartitioned()) {
+            return directoryLookup(con, Message.LOGIN, username, secret, id);
+        }
+        String stored = users.getSecret(username);
+        String result = stored == null ? DIRECTORY_UNKNOWN
+                : stored.equals(secret) ? DIRECTORY_OK : DIRECTORY_WRONG_SECRET;
+        if (!result.equals(DIRECTORY_OK)) {
+            return Message.channelReply(con, Message.LOGIN_FAILED, id, loginFailure(result));
+        }
+        return openChannel(con, id, username, secret);
+    }
+
+    /**
+     * A session of a multiplexed connection has logged in. It is neither
+     * redirected, which would move all the connection's sessions, nor
+     * replicated to the standby; a gateway that loses its server logs its
+     * channels in again elsewhere.
+     *
+     * @param secret null for anonymous
+     */
+    private boolean openChannel(Connection con, long channel, String username, String secret) {
+        User previous = con.openChannel(channel, new User(con.getSocket().getRemoteSocketAddress(), username, secret));
+        Message.channelReply(con, Message.LOGIN_SUCCESS, channel, "logged in as user " + username);
+        if (previous != null && previous.getPassword() != null) {
+            userLeft(previous.getUserName());
+        }
+        if (secret != null) {
+            userArrived(con, channel, username, secret);
+        }
+        return false;
+    }
+
+    private boolean logout(Connection con, JSONObject request) {
+        if (con.isMultiplexed()) {
+            Object channel = request.get("channel");
+            if (!(channel instanceof Long)) {
+                return Message.invalidMsg(con, "a multiplexed LOGOUT needs the channel to log out");
+            }
+            User user = con.closeChannel((Long) channel);
+            if (user != null && user.getPassword() != null) {
+                userLeft(user.getUserName());
+            }
+            return false;
+        }
+        // the session ends when the connection closes
+        boolean logout = con.isLoggedIn();
+        if (logout) {
+            con.closeCon();
+        }
+        return logout;
+    }
+
+    private boolean isUserLoggedInLocally(String username, String secret) {
+        return secret != null && secret.equals(sessionSecrets.get(username));
+    }
+
+    /**
+     * @return true if the connection, or the channel of a multiplexed one,
+     * may send activities as username
+     */
+    private boolean isSender(Connection con, Object channel, String username, String secret) {
+        if (!con.isMultiplexed()) {
+            return username.equals("anonymous") || isUserLoggedInLocally(username, secret);
+        }
+        User user = channel instanceof Long ? con.getChannel((Long) channel) : null;
+        return user != null && user.getUserName().equals(username)
+                && (user.getPassword() == null || user.getPassword().equals(secret));
+    }
+
+    private boolean senderFail(Connection con, Object channel) {
+        String info = "the username and secret do not match the logged in the user, or the user has not logged in yet";
+        if (con.isMultiplexed() && channel instanceof Long) {
+            // only this channel failed, the connection's other sessions carry on
+            return Message.channelReply(con, Message.AUTHENTICATION_FAIL, (Long) channel, info);
+        }
+        return Message.authenticationFail(con, info);
+    }
+
+    private boolean onReceiveActivityMessage(Connection con, JSONObject request) {
+        if (!request.containsKey("username")) {
+            return Message.invalidMsg(con, "the message did not contain a username");
+        }
+        if (!request.containsKey("secret")) {
+            return Message.invalidMsg(con, "the message did not contain a secret");
+        }
+        if (!request.containsKey("activity")) {
+            return Message.invalidMsg(con, "the message did not contain an activity");
+        }
+        String username = (String) request.get("username");
+        String secret = (String) request.get("secret");
+        JSONObject activity = (JSONObject) request.get("activity");
+        activity.put("authenticated_user", username);
+
+        JSONObject broadcastAct = new JSONObject();
+        broadcastAct.put("activity", activity);
+        broadcastAct.put("command", Message.ACTIVITY_BROADCAST);
+
+        if (!isSender(con, request.get("channel"), username, secret)) {
+            return senderFail(con, request.get("channel"));
+        }
+        return broadcastActivity(con, broadcastAct);
+    }
+
+    /**
+     * Check the sender once for a whole ACTIVITY_BATCH and broadcast its
+     * activities as one ACTIVITY_BROADCAST_BATCH.
+     */
+    private boolean onReceiveActivityBatch(Connection con, JSONObject request) {
+        if (!request.containsKey("username")) {
+            return Message.invalidMsg(con, "the message did not contain a username");
+        }
+        if (!request.containsKey("secret")) {
+            return Message.invalidMsg(con, "the message did not contain a secret");
+        }
+        if (!(request.get("activities") instanceof JSONArray)) {
+            return Message.invalidMsg(con, "the message did not contain an array of activities");
+        }
+        JSONArray activities = (JSONArray) request.get("activities");
+        if (activities.isEmpty() || activities.size() > Settings.getMaxActivityBatch()) {
+            return Message.invalidMsg(con, "a batch must hold between 1 and " + Settings.getMaxActivityBatch()
+                    + " activities");
+        }
+        String username = (String) request.get("username");
+        String secret = (String) request.get("secret");
+        if (!isSender(con, request.get("channel"), username, secret)) {
+            return senderFail(con, request.get("channel"));
+        }
+        List<String> serialized = new ArrayList<>(activities.size());
+        List<String> singles = new ArrayList<>(activities.size());
+        for (Object activity : activities) {
+            if (!(activity instanceof JSONObject)) {
+                return Message.invalidMsg(con, "every activity in a batch must be an object");
+            }
+            String json = Message.authenticatedActivity((JSONObject) activity, username);
+            serialized.add(json);
+            singles.add(Message.activityBroadcast(json));
+        }
+        String msg = Message.activityBroadcastBatch(serialized);
+        if (tracer.sample()) {
+            msg = tracer.start(msg);
+        }
+        relayActivityBatch(con, msg, singles);
+        return false;
+    }
+
+    private boolean broadcastActivity(Connection sourceConnection, JSONObject activity) {
+        String msg = activity.toJSONString();
+        if (tracer.sample()) {
+            msg = tracer.start(msg);
+        }
+        relayActivity(sourceConnection, msg);
+        return false;
+    }
+
+    /**
+     * Write a serialized ACTIVITY_BROADCAST to every local client and to every
+     * other server except the one it came from. Safe without the Control lock:
+     * clientConnections is copy-on-write and each link is read once.
+     *
+     * @param sourceConnection
+     * @param msg
+     */
+    private void relayActivity(Connection sourceConnection, String msg) {
+        mailboxes.append(msg);
+        for (Connection c : clientConnections) {
+            c.writeBroadcast(msg);
+        }
+        relayToLinks(sourceConnection, msg);
+    }
+
+    /**
+     * Write a serialized ACTIVITY_BROADCAST_BATCH to every other server as it
+     * is and to every local client, as single ACTIVITY_BROADCASTs for those
+     * that did not ask for batches.
+     *
+     * @param singles the batch's activities as ACTIVITY_BROADCASTs, or null
+     *                to split msg when a client needs them
+     */
+    private void relayActivityBatch(Connection sourceConnection, String msg, List<String> singles) {
+        mailboxes.append(msg);
+        for (Connection c : clientConnections) {
+            if (c.acceptsBatches()) {
+                c.writeBroadcast(msg);
+                continue;
+            }
+            if (singles == null) {
+                singles = splitActivityBatch(msg);
+            }
+            for (String single : singles) {
+                c.writeBroadcast(single);
+            }
+        }
+        relayToLinks(sourceConnection, msg);
+    }
+
+    private static List<String> splitActivityBatch(String msg) {
+        List<String> singles = new ArrayList<>();
+        try {
+            JSONObject batch = (JSONObject) new JSONParser().parse(msg);
+            for (Object activity : (JSONArray) batch.get("activities")) {
+                singles.add(Message.activityBroadcast(((JSONObject) activity).toJSONString()));
+            }
+        } catch (ParseException | ClassCastException | NullPointerException e) {
+            log.error("dropping a malformed ACTIVITY_BROADCAST_BATCH: " + e);
+        }
+        return singles;
+    }
+
+    private void relayToLinks(Connection sourceConnection, String msg) {
+        Connection link = parentConnection;
+        if (link != null && link != sourceConnection) {
+            link.writeCoalesced(msg);
+        }
+        link = lChildConnection;
+        if (link != null && link != sourceConnection) {
+            link.writeCoalesced(msg);
+        }
+        link = rChildConnection;
+        if (link != null && link != sourceConnection) {
+            link.writeCoalesced(msg);
+        }
+    }
+
+    /**
+     * A statistics query waiting for the neighbours it was forwarded to,
+     * which answer for their side of the tree. Queries that arrive from the
+     * same direction while it is open wait for its answer instead of asking
+     * the tree again.
+     */
+    private static final class StatsQuery {
+        final Connection from;
+        final long rid;
+        final Set<Connection> waiting = new HashSet<>();
+        final JSONArray nodes = new JSONArray();
+        final List<Connection> clients = new ArrayList<>();
+        final List<Long> requests = new ArrayList<>();
+
+        StatsQuery(Connection from, long rid) {
+            this.from = from;
+            this.rid = rid;
+        }
+    }
+
+    private static final class CachedStats {
+        final JSONArray nodes;
+        final long collected = System.currentTimeMillis();
+
+        CachedStats(JSONArray nodes) {
+            this.nodes = nodes;
+        }
+    }
+
+    /**
+     * An admin asks for statistics of the whole cluster. Any server will
+     * do: it asks its neighbours, which ask theirs, and every server merges
+     * the answers from its side of the tree with its own before answering.
+     */
+    private boolean onStatsQuery(Connection con, JSONObject request) {
+        if (!serverSecret.equals(request.get("secret"))) {
+            return Message.authenticationFail(con, "the supplied secret is incorrect");
+        }
+        collectStats(null, con, 0, Settings.getStatsTimeout());
+        return false;
+    }
+
+    private boolean onStatsRequest(Connection con, JSONObject request) {
+        if (!isServerConnection(con)) {
+            return Message.invalidMsg(con, "The connection has not authenticated");
+        }
+        if (!(request.get("rid") instanceof Long)) {
+            return Message.invalidMsg(con, "STATS_REQUEST without a request id");
+        }
+        long timeout = request.get("timeout") instanceof Long ? (Long) request.get("timeout")
+                : Settings.getStatsTimeout();
+        collectStats(con, null, (Long) request.get("rid"), timeout);
+        return false;
+    }
+
+    private boolean onStatsResponse(Connection con, JSONObject request) {
+        if (!isServerConnection(con)) {
+            return Message.invalidMsg(con, "The connection has not authenticated");
+        }
+        Object rid = request.get("rid");
+        for (StatsQuery query : statsQueries.values()) {
+            if (rid instanceof Long && query.rid == (Long) rid && query.waiting.remove(con)) {
+                if (request.get("nodes") instanceof JSONArray) {
+                    for (Object node : (JSONArray) request.get("nodes")) {
+                        if (node instanceof JSONObject) {
+                            addNode(query.nodes, node);
+                        }
+                    }
+                }
+                if (query.waiting.isEmpty()) {
+                    finishStats(query);
+                }
+                return false;
+            }
+        }
+        // answered after the query timed out
+        return false;
+    }
+
+    /**
+     * Answer a client (from is null) or the neighbour from, from the cache
+     * while it is fresh, else by asking every other neighbour. Each
+     * neighbour gets three quarters of our time, so that a slow server deep
+     * in the tree times out below us and the rest of its side still makes
+     * it.
+     */
+    private void collectStats(Connection from, Connection client, long rid, long timeout) {
+        CachedStats cached = statsCache.get(from);
+        if (cached != null && System.currentTimeMillis() - cached.collected < Settings.getStatsCacheTtl()) {
+            answerStats(from, client, rid, cached);
+            return;
+        }
+        StatsQuery query = statsQueries.get(from);
+        if (query == null) {
+            query = new StatsQuery(from, nextLookup.incrementAndGet());
+            for (Connection link : new Connection[]{parentConnection, lChildConnection, rChildConnection}) {
+                if (link != null && link != from) {
+                    Message.statsRequest(link, query.rid, timeout * 3 / 4);
+                    query.waiting.add(link);
+                }
+            }
+            statsQueries.put(from, query);
+            StatsQuery started = query;
+            STATS_TIMER.schedule(() -> {
+                synchronized (Control.this) {
+                    if (statsQueries.get(from) == started) {
+                        finishStats(started);
+                    }
+                }
+            }, timeout, TimeUnit.MILLISECONDS);
+        }
+        if (client != null) {
+            query.clients.add(client);
+        } else {
+            query.requests.add(rid);
+        }
+        if (query.waiting.isEmpty()) {
+            finishStats(query);
+        }
+    }
+
+    private void finishStats(StatsQuery query) {
+        statsQueries.remove(query.from);
+        addNode(query.nodes, localStats());
+        CachedStats stats = new CachedStats(query.nodes);
+        statsCache.put(query.from, stats);
+        for (Connection client : query.clients) {
+            answerStats(null, client, 0, stats);
+        }
+        for (long rid : query.requests) {
+            answerStats(query.from, null, rid, stats);
+        }
+    }
+
+    private void answerStats(Connection from, Connection client, long rid, CachedStats stats) {
+        if (client == null) {
+            Message.statsResponse(from, rid, stats.nodes.toJSONString());
+            return;
+        }
+        if (client.isOpen()) {
+            Message.statsReply(client, stats.nodes.toJSONString(), clusterTotals(stats.nodes).toJSONString(),
+                    Math.max(0, servers.size() + 1 - stats.nodes.size()),
+                    System.currentTimeMillis() - stats.collected);
+        }
+    }
+
+    // a link has gone: stop waiting for it, and drop what it asked for
+    private void forgetStats(Connection con) {
+        statsCache.remove(con);
+        statsQueries.remove(con);
+        for (StatsQuery query : new ArrayList<>(statsQueries.values())) {
+            if (query.waiting.remove(con) && query.waiting.isEmpty()) {
+                finishStats(query);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void addNode(JSONArray nodes, Object node) {
+        nodes.add(node);
+    }
+
+    /**
+     * @return this server's statistics, one entry of a STATS_REPLY
+     */
+    @SuppressWarnings("unchecked")
+    private JSONObject localStats() {
+        int sessions = countSessions();
+        JSONObject node = new JSONObject();
+        node.put("id", serverId);
+        node.put("address", localHostname + ":" + localPort);
+        node.put("parent", parentId);
+        node.put("connections", clientConnections.size());
+        node.put("sessions", sessions);
+        node.put("users", isPartitioned() ? directory.size() : users.size());
+        node.put("messages_per_second", Math.round(loadScore.getMessageRate()));
+        node.put("backlog", totalBacklog());
+        node.put("score", loadScore.get(sessions));
+        LatencyHistogram wait = clientQueueWait;
+        JSONObject queueWait = new JSONObject();
+        queueWait.put("n", wait.getCount());
+        queueWait.put("p50", wait.percentile(0.5));
+        queueWait.put("p99", wait.percentile(0.99));
+        queueWait.put("max", wait.getMax());
+        node.put("queue_wait_us", queueWait);
+        return node;
+    }
+
+    /**
+     * Sum the servers' statistics. Queue wait percentiles cannot be added,
+     * the totals give the worst server's. Replicated servers each hold every
+     * user, partitioned ones about replication factor copies of each.
+     */
+    @SuppressWarnings("unchecked")
+    private JSONObject clusterTotals(JSONArray nodes) {
+        long connections = 0;
+        long sessions = 0;
+        long users = 0;
+        long rate = 0;
+        long backlog = 0;
+        double maxScore = 0;
+        long waitCount = 0;
+        long waitP99 = 0;
+        long waitMax = 0;
+        for (Object o : nodes) {
+            JSONObject node = (JSONObject) o;
+            connections += longOf(node, "connections");
+            sessions += longOf(node, "sessions");
+            users = isPartitioned() ? users + longOf(node, "users") : Math.max(users, longOf(node, "users"));
+            rate += longOf(node, "messages_per_second");
+            backlog += longOf(node, "backlog");
+            if (node.get("score") instanceof Number) {
+                maxScore = Math.max(maxScore, ((Number) node.get("score")).doubleValue());
+            }
+            if (node.get("queue_wait_us") instanceof JSONObject) {
+                JSONObject wait = (JSONObject) node.get("queue_wait_us");
+                waitCount += longOf(wait, "n");
+                waitP99 = Math.max(waitP99, longOf(wait, "p99"));
+                waitMax = Math.max(waitMax, longOf(wait, "max"));
+            }
+        }
+        if (isPartitioned() && !nodes.isEmpty()) {
+            users /= Math.min(Settings.getReplicationFactor(), nodes.size());
+        }
+        JSONObject totals = new JSONObject();
+        totals.put("servers", nodes.size());
+        totals.put("connections", connections);
+        totals.put("sessions", sessions);
+        totals.put("users", users);
+        totals.put("messages_per_second", rate);
+        totals.put("backlog", backlog);
+        totals.put("max_score", maxScore);
+        JSONObject queueWait = new JSONObject();
+        queueWait.put("n", waitCount);
+        queueWait.put("worst_p99", waitP99);
+        queueWait.put("max", waitMax);
+        totals.put("queue_wait_us", queueWait);
+        return totals;
+    }
+
+    private static long longOf(JSONObject o, String key) {
+        return o.get(key) instanceof Number ? ((Number) o.get(key)).longValue() : 0;
+    }
+
+    /**
+     * A client has logged in here and is not being redirected: give it a
+     * token to resume the session at our standby and, for a registered
+     * user, deliver their offline mailbox and tell the other servers the
+     * user is back so they drop theirs.
+     *
+     * @param secret null for anonymous
+     */
+    private synchronized void startSession(Connection con, String username, String secret) {
+        con.setLoggedIn(true);
+        openStandbySession(con, username, secret);
+        if (secret == null) {
+            return;
+        }
+        con.setSessionUser(username);
+        userArrived(con, null, username, secret);
+    }
+
+    /**
+     * A registered user has a session here, on a connection or one of its
+     * channels: the other servers can drop their mailbox for the user and
+     * ours is delivered.
+     */
+    private void userArrived(Connection con, Long channel, String username, String secret) {
+        sessions.merge(username, 1, Integer::sum);
+        sessionSecrets.put(username, secret);
+        if (!mailboxes.isEnabled()) {
+            return;
+        }
+        floodUserPresence(null, Message.USER_ONLINE, username, serverId);
+        Mailboxes.Backlog backlog = mailboxes.take(username);
+        if (!backlog.isEmpty()) {
+            log.debug("delivering " + backlog.size() + " broadcasts from the offline mailbox of " + username);
+            deliverLater(con, channel, backlog);
+        }
+    }
+
+    // once a registered user has no session left here, tell the other servers, and start their
+    // offline mailbox if they have no session anywhere else either
+    private void userLeft(String username) {
+        if (sessions.merge(username, -1, Integer::sum) > 0) {
+            return;
+        }
+        sessions.remove(username);
+        sessionSecrets.remove(username);
+        if (mailboxes.isEnabled()) {
+            userMaybeAway(username);
+            floodUserPresence(null, Message.USER_OFFLINE, username, serverId);
+        }
+    }
+
+    // the bulk lane may make us wait for a slow client and the spill files are read from disk,
+    // neither of which may hold the lock
+    private void deliverLater(Connection con, Long channel, Mailboxes.Backlog backlog) {
+        Thread delivery = new Thread(() -> deliverBacklog(con, channel, backlog.read()), "mailbox");
+        delivery.setDaemon(true);
+        delivery.start();
+    }
+
+    /**
+     * Write a mailbox to a client on the bulk lane, which flushes it in
+     * large writes. Broadcasts relayed meanwhile may arrive in between.
+     */
+    private void deliverBacklog(Connection con, Long channel, List<String> backlog) {
+        // for a channel, every broadcast names just that channel
+        String prefix = channel != null ? Message.channelsPrefix(Collections.singletonList(channel)) : null;
+        for (String msg : backlog) {
+            if (!con.isOpen() || channel != null && con.getChannel(channel) == null) {
+                return;
+            }
+            List<String> singles = !Message.ACTIVITY_BROADCAST_BATCH.equals(Message.peekCommand(msg))
+                    || con.acceptsBatches() ? Collections.singletonList(msg) : splitActivityBatch(msg);
+            for (String single : singles) {
+                // on the delivery thread, which may wait for the client to keep up
+                con.writeBulk(prefix != null ? prefix + single.substring(1) : single, true);
+            }
+        }
+    }
+
+    /**
+     * A client connection has gone, with its session or the sessions of
+     * all its channels.
+     */
+    private void endSession(Connection con) {
+        closeStandbySession(con);
+        for (User user : con.getChannels().values()) {
+            if (user.getPassword() != null) {
+                userLeft(user.getUserName());
+            }
+        }
+        String username = con.getSessionUser();
+        if (username == null) {
+            return;
+        }
+        con.setSessionUser(null);
+        userLeft(username);
+    }
+
+    /**
+     * A session another server has replicated to us, which its client may
+     * resume here if that server fails.
+     */
+    private static final class StandbySession {
+        final String username;
+        final String secret; // null for anonymous
+        final boolean batch;
+
+        StandbySession(String username, String secret, boolean batch) {
+            this.username = username;
+            this.secret = secret;
+            this.batch = batch;
+        }
+    }
+
+    /**
+     * @return id of the server our sessions are replicated to: the one
+     * configured, else the parent, else the child with the smallest id;
+     * null if there is none
+     */
+    private String pickStandby() {
+        String configured = Settings.getStandby();
+        if (Settings.STANDBY_NONE.equals(configured)) {
+            return null;
+        }
+        if (configured != null) {
+            for (ServerInfo info : servers.values()) {
+                if (info.getAddress().equals(configured)) {
+                    return info.getId();
+                }
+            }
+            return null;
+        }
+        if (parentId != null) {
+            return parentId;
+        }
+        return childLinks.isEmpty() ? null : Collections.min(childLinks.keySet());
+    }
+
+    private String standbyAddress() {
+        ServerInfo info = standbyId != null ? servers.get(standbyId) : null;
+        return info != null ? info.getAddress() : null;
+    }
+
+    private void openStandbySession(Connection con, String username, String secret) {
+        if (Settings.STANDBY_NONE.equals(Settings.getStandby())) {
+            return;
+        }
+        String token = Settings.nextSecret();
+        con.setSessionToken(token);
+        String session = Message.sessionElement(token, username, secret, con.acceptsBatches());
+        localSessions.put(token, session);
+        Message.session(con, token, standbyAddress());
+        syncStandby(standbyId, "add", Collections.singletonList(session));
+    }
+
+    private void closeStandbySession(Connection con) {
+        String token = con.getSessionToken();
+        if (token == null) {
+            return;
+        }
+        con.setSessionToken(null);
+        String session = localSessions.remove(token);
+        if (session != null) {
+            syncStandby(standbyId, "remove", Collections.singletonList(session));
+        }
+    }
+
+    private void syncStandby(String standby, String op, List<String> sessions) {
+        Connection hop = standby != null ? nextHop(standby) : null;
+        if (hop != null) {
+            Message.sessionSync(hop, standby, serverId, op, sessions);
+        }
+    }
+
+    /**
+     * Follow the choice of standby. When it changes, or the tree does and
+     * replication messages may have been lost, send the standby all our
+     * sessions; when it changes, the old one drops ours and the clients
+     * learn where the new one is.
+     */
+    private synchronized void checkStandby() {
+        String current = pickStandby();
+        boolean moved = !Objects.equals(current, standbyId);
+        if (!moved && standbySyncedAt == lastTopologyChange) {
+            return;
+        }
+        if (moved) {
+            syncStandby(standbyId, "reset", Collections.emptyList());
+        }
+        standbyId = current;
+        standbySyncedAt = lastTopologyChange;
+        List<String> all = new ArrayList<>(localSessions.values());
+        for (int i = 0; i == 0 || i < all.size(); i += SNAPSHOT_CHUNK) {
+            syncStandby(current, i == 0 ? "reset" : "add", all.subList(i, Math.min(all.size(), i + SNAPSHOT_CHUNK)));
+        }
+        if (moved) {
+            String address = standbyAddress();
+            for (Connection c : clientConnections) {
+                String token = c.getSessionToken();
+                if (token != null) {
+                    Message.session(c, token, address);
+                }
+            }
+        }
+    }
+
+    // a mailbox per primary, not a user: register refuses usernames starting with a NUL
+    private static String standbyKey(String primary) {
+        return "\u0000standby:" + primary;
+    }
+
+    private boolean onSessionSync(Connection con, JSONObject request, String msg) {
+        if (!isServerConnection(con)) {
+            return Message.invalidMsg(con, "The connection has not authenticated");
+        }
+        String to = (String) request.get("to");
+        if (!serverId.equals(to)) {
+            route(con, to, msg);
+            return false;
+        }
+        Object from = request.get("from");
+        Object op = request.get("op");
+        if (!(from instanceof String) || !(request.get("sessions") instanceof JSONArray)
+                || !"add".equals(op) && !"remove".equals(op) && !"reset".equals(op)) {
+            return Message.invalidMsg(con, "the session sync is incomplete");
+        }
+        String primary = (String) from;
+        Map<String, StandbySession> replica = replicas.computeIfAbsent(primary, k -> new HashMap<>());
+        if (op.equals("reset")) {
+            replica.clear();
+        }
+        for (Object o : (JSONArray) request.get("sessions")) {
+            if (!(o instanceof JSONObject) || !(((JSONObject) o).get("session") instanceof String)) {
+                continue;
+            }
+            JSONObject session = (JSONObject) o;
+            if (op.equals("remove")) {
+                replica.remove(session.get("session"));
+            } else if (session.get("username") instanceof String) {
+                replica.put((String) session.get("session"), new StandbySession((String) session.get("username"),
+                        (String) session.get("secret"), Boolean.TRUE.equals(session.get("batch"))));
+            }
+        }
+        if (replica.isEmpty()) {
+            dropReplica(primary);
+        } else {
+            replicaSeen.put(primary, System.currentTimeMillis());
+            // broadcasts from here on are what its clients may miss if it fails
+            mailboxes.open(standbyKey(primary));
+        }
+        return false;
+    }
+
+    /**
+     * Every announce of a server whose sessions we hold shows it was alive
+     * then; the activities its clients may miss start there.
+     */
+    private void onPrimaryAnnounce(String primary) {
+        if (replicas.containsKey(primary)) {
+            replicaSeen.put(primary, System.currentTimeMillis());
+            mailboxes.remove(standbyKey(primary));
+            mailboxes.open(standbyKey(primary));
+        }
+    }
+
+    private void dropReplica(String primary) {
+        replicas.remove(primary);
+        replicaSeen.remove(primary);
+        mailboxes.remove(standbyKey(primary));
+    }
+
+    // forget the sessions of servers that failed longer than the resume window ago
+    private synchronized void expireReplicas() {
+        long cutoff = System.currentTimeMillis() - Settings.getHeartbeatTimeout() - Settings.getResumeWindow();
+        for (String primary : new ArrayList<>(replicas.keySet())) {
+            if (replicaSeen.getOrDefault(primary, 0L) < cutoff) {
+                log.info("dropping " + replicas.get(primary).size() + " unresumed sessions of server " + primary);
+                dropReplica(primary);
+            }
+        }
+    }
+
+    /**
+     * A client of a failed server takes over its session here, without
+     * logging in again and without being redirected, and gets the
+     * broadcasts since the server's last announce, some of which it may
+     * have seen already.
+     */
+    private boolean onResume(Connection con, JSONObject request) {
+        // only a fresh client, or it would take over a second session and lose track of its first
+        if (isServerConnection(con)) {
+            return Message.invalidMsg(con, "a server cannot resume a client session");
+        }
+        if (con.isLoggedIn() || con.isMultiplexed() || con.getSessionUser() != null) {
+            return Message.invalidMsg(con, "You have already logged in.");
+        }
+        Object token = request.get("session");
+        String primary = null;
+        StandbySession session = null;
+        for (Map.Entry<String, Map<String, StandbySession>> replica : replicas.entrySet()) {
+            session = token instanceof String ? replica.getValue().remove(token) : null;
+            if (session != null) {
+                primary = replica.getKey();
+                break;
+            }
+        }
+        if (session == null) {
+            return Message.loginFailed(con, "the session is unknown or has expired");
+        }
+        Mailboxes.Backlog backlog = mailboxes.peek(standbyKey(primary));
+        if (replicas.get(primary).isEmpty()) {
+            dropReplica(primary);
+        }
+        con.setAcceptsBatches(session.batch);
+        Message.loginSuccess(con, "resumed the session of " + session.username);
+        startSession(con, session.username, session.secret);
+        if (!backlog.isEmpty()) {
+            deliverLater(con, null, backlog);
+        }
+        return false;
+    }
+
+    private boolean onUserPresence(Connection con, String command, JSONObject request) {
+        if (!isServerConnection(con)) {
+            return Message.invalidMsg(con, "The connection has not authenticated");
+        }
+        if (!(request.get("username") instanceof String)) {
+            return Message.invalidMsg(con, command + " without a username");
+        }
+        if (!(request.get("server") instanceof String)) {
+            return Message.invalidMsg(con, command + " without a server");
+        }
+        String username = (String) request.get("username");
+        String server = (String) request.get("server");
+        if (command.equals(Message.USER_ONLINE)) {
+            presence.computeIfAbsent(username, k -> new HashSet<>()).add(server);
+            mailboxes.remove(username);
+        } else {
+            Set<String> at = presence.get(username);
+            if (at != null && at.remove(server) && at.isEmpty()) {
+                presence.remove(username);
+            }
+            userMaybeAway(username);
+        }
+        floodUserPresence(con, command, username, server);
+        return false;
+    }
+
+    // a user with no session here or at any other server we know of is away from the cluster
+    private void userMaybeAway(String username) {
+        if (!sessions.containsKey(username) && !presence.containsKey(username)) {
+            mailboxes.open(username);
+        }
+    }
+
+    /**
+     * Servers that have gone no longer hold sessions: the users who had
+     * one only there are away unless they resume elsewhere, which floods a
+     * USER_ONLINE that closes the mailbox again.
+     */
+    private synchronized void forgetPresence(Collection<String> gone) {
+        for (Iterator<Map.Entry<String, Set<String>>> it = presence.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Set<String>> entry = it.next();
+            if (entry.getValue().removeAll(gone) && entry.getValue().isEmpty()) {
+                it.remove();
+                userMaybeAway(entry.getKey());
+            }
+        }
+    }
+
+    private void floodUserPresence(Connection sourceConnection, String command, String username, String server) {
+        for (Connection link : new Connection[]{parentConnection, lChildConnection, rChildConnection}) {
+            if (link != null && link != sourceConnection) {
+                Message.userPresence(link, command, username, server);
+            }
+        }
+    }
+
+    /**
+     * The connection has been closed by the other party.
+     *
+     * @param con
+     */
+    public synchronized void connectionClosed(Connection con) {
+        if (term) {
             return;
         }
         if (clientConnections.contains(con)) {
             clientConnections.remove(con);
+            endSession(con);
+        } else {
+            lastTopologyChange = System.currentTimeMillis();
         }
         if (parentConnection == con) {
             parentConnection = null;
+            serverIdList[0] = "0";
+            String lost = parentId;
+            parentId = null;
+            if (lost != null) {
+                startRepair(lost);
+            }
         }
+        childLinks.values().remove(con);
+        forgetStats(con);
         if (lChildConnection == con) {
             lChildConnection = null;
+            serverIdList[1] = "0";
         }
         if (rChildConnection == con) {
             rChildConnection = null;
+            serverIdList[2] = "0";
+        }
+
+    }
+
+    /**
+     * The parent has gone: pick the servers to reattach to from what the
+     * announces told us about the tree and start rejoining in the background.
+     * Ancestors of the lost parent come first, nearest first, then any server
+     * outside the lost parent's subtree. If the root was lost, its child with
+     * the smallest id becomes the new root and its siblings join its subtree.
+     *
+     * @param lost id of the lost parent
+     */
+    private void startRepair(String lost) {
+        ServerInfo dead = servers.remove(lost);
+        forgetPresence(Collections.singleton(lost));
+        List<ServerInfo> candidates = new ArrayList<>();
+        if (dead != null && dead.getParentId() != null) {
+            for (String a = dead.getParentId(); a != null && candidates.size() <= servers.size(); ) {
+                ServerInfo ancestor = servers.get(a);
+                if (ancestor == null) {
+                    break;
+                }
+                candidates.add(ancestor);
+                a = ancestor.getParentId();
+            }
+            for (ServerInfo info : servers.values()) {
+                if (!candidates.contains(info) && !isDescendant(info.getId(), lost)) {
+                    candidates.add(info);
+                }
+            }
+        } else {
+            String root = serverId;
+            for (ServerInfo info : servers.values()) {
+                if (lost.equals(info.getParentId()) && info.getId().compareTo(root) < 0) {
+                    root = info.getId();
+                }
+            }
+            if (!root.equals(serverId)) {
+                candidates.add(servers.get(root));
+                for (ServerInfo info : servers.values()) {
+                    if (isDescendant(info.getId(), root)) {
+                        candidates.add(info);
+                    }
+                }
+            }
+        }
+        if (candidates.isEmpty()) {
+            log.info("lost parent " + lost + ", continuing as the root");
+            return;
+        }
+        if (repairing.compareAndSet(false, true)) {
+            log.warn("lost parent " + lost + ", trying to rejoin the tree through " + candidates.size() + " servers");
+            inBackground(() -> repair(candidates));
+        }
+    }
+
+    private interface RepairTask {
+        void run() throws InterruptedException;
+    }
+
+    /**
+     * Run a repair or move on its own thread and clear the repairing flag,
+     * which the caller has set, when it is done.
+     */
+    private void inBackground(RepairTask task) {
+        Thread repair = new Thread(() -> {
+            try {
+                task.run();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                repairing.set(false);
+            }
+        }, "repair");
+        repair.setDaemon(true);
+        repair.start();
+    }
+
+    /**
+     * @return true if the server with the given id is below ancestor in the
+     * tree as last announced
+     */
+    private boolean isDescendant(String id, String ancestor) {
+        ServerInfo info = servers.get(id);
+        for (int hops = 0; info != null && hops <= servers.size(); hops++) {
+            if (ancestor.equals(info.getParentId())) {
+                return true;
+            }
+            info = info.getParentId() == null ? null : servers.get(info.getParentId());
+        }
+        return false;
+    }
+
+    /**
+     * Try the candidates in order, round after round, until one accepts us as
+     * a child or the repair timeout runs out.
+     */
+    private void repair(List<ServerInfo> candidates) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + Settings.getRepairTimeout();
+        while (!term && System.currentTimeMillis() < deadline) {
+            for (ServerInfo target : candidates) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (term || remaining <= 0) {
+                    break;
+                }
+                if (join(target.getHostname(), target.getPort(), remaining)) {
+                    log.info("rejoined the tree through " + target.getId() + " at " + target.getAddress());
+                    return;
+                }
+            }
+            Thread.sleep(Math.max(0, Math.min(Settings.getActivityInterval(),
+                    deadline - System.currentTimeMillis())));
+        }
+        if (!term) {
+            log.warn("failed to rejoin the tree within " + Settings.getRepairTimeout()
+                    + " milliseconds, continuing as the root");
         }
+    }
 
+    /**
+     * Connect and authenticate to hostname:port, then wait for the parent to
+     * announce itself on the new link. Redirects to a better place in the tree
+     * are followed; a server that already has two children and nowhere to
+     * send us closes the link.
+     *
+     * @return true if we now have a confirmed parent
+     */
+    private boolean join(String hostname, int port, long budget) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + budget;
+        for (int hops = 0; hops <= MAX_REDIRECTS; hops++) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            joinRedirect = null;
+            Socket s = new Socket();
+            Connection c;
+            try {
+                s.connect(new InetSocketAddress(hostname, port), (int) Math.min(remaining,
+                        Settings.getHeartbeatTimeout()));
+                c = outgoingConnection(s);
+            } catch (IOException e) {
+                log.debug("failed to reach " + hostname + ":" + port + ": " + e);
+                try {
+                    s.close();
+                } catch (IOException e1) {
+                    // nothing to release
+                }
+                return false;
+            }
+            long until = System.currentTimeMillis() + Math.min(remaining, Settings.getHeartbeatTimeout());
+            while (parentId == null && parentConnection == c && joinRedirect == null
+                    && System.currentTimeMillis() < until) {
+                Thread.sleep(10);
+            }
+            if (parentId != null && parentConnection == c) {
+                return true;
+            }
+            String next = joinRedirect;
+            c.closeCon();
+            if (next == null) {
+                return false;
+            }
+            log.info("redirected from " + hostname + ":" + port + " to " + next);
+            int colon = next.lastIndexOf(':');
+            hostname = next.substring(0, colon);
+            port = Integer.parseInt(next.substring(colon + 1));
+        }
+        return false;
     }
 
     /**
      * A new incoming connection has been established, and a reference is returned
      * to it. 1. remote server -> local server 2. client -> local server
+     * Not synchronized: acceptors must not queue behind a long process() call,
+     * clientConnections is already thread-safe.
      *
      * @param s
      * @return
      * @throws IOException
      */
-    public synchronized Connection incomingConnection(Socket s) throws IOException {
+    public Connection incomingConnection(Socket s) throws IOException {
         log.debug("incoming connection: " + Settings.socketAddress(s));
-        Connection c = new Connection(s);
+        Connection c = new Connection(s, this);
+        // before the reader starts, or replies to its first messages, e.g. LOCK_ALLOWED, could miss it
         clientConnections.add(c);
+        c.start();
         return c;
     }
 
@@ -598,9 +2694,19 @@ public class Control extends Thread {
      */
     public synchronized Connection outgoingConnection(Socket s) throws IOException {
         log.debug("outgoing connection: " + Settings.socketAddress(s));
-        Connection c = new Connection(s);
+        Connection c = new Connection(s, this);
+        Connection old = parentConnection;
         parentConnection = c;
-        Message.authenticate(c);
+        parentId = null;
+        lastTopologyChange = System.currentTimeMillis();
+        serverIdList[0] = "0";
+        // a snapshot cut short by a lost parent is asked for again in full, what arrived is kept
+        if (old != null) {
+            // moving within the tree, nothing more may arrive on the old link
+            old.closeCon();
+        }
+        Message.authenticate(c, serverSecret, serverId, !synced);
+        c.start();
         return c;
     }
 
@@ -609,15 +2715,28 @@ public class Control extends Thread {
         log.info("using activity interval of " + Settings.getActivityInterval() + " milliseconds");
         while (!term) {
             // do something with 5 second intervals in between
-            if (parentConnection != null) {
-                Message.serverAnnounce(parentConnection, clientConnections.size());
+            sampleLoad();
+            for (Connection link : new Connection[]{parentConnection, lChildConnection, rChildConnection}) {
+                if (link != null) {
+                    announce(link);
+                }
             }
-            if (lChildConnection != null) {
-                Message.serverAnnounce(lChildConnection, clientConnections.size());
+            checkHeartbeats();
+            rebalance();
+            if (isPartitioned()) {
+                expireLookups();
+                retryHandOffs();
+                handOff();
             }
-            if (rChildConnection != null) {
-                Message.serverAnnounce(rChildConnection, clientConnections.size());
+            tracer.report();
+            reportQueueLatency();
+            if (mailboxes.isEnabled()) {
+                mailboxes.expire();
             }
+            checkStandby();
+            expireReplicas();
+            // a full bucket has been idle long enough to be the same as a new one
+            userActivityBuckets.values().removeIf(TokenBucket::isFull);
             try {
                 Thread.sleep(Settings.getActivityInterval());
             } catch (InterruptedException e) {
@@ -630,8 +2749,48 @@ public class Control extends Thread {
         for (Connection connection : clientConnections) {
             connection.closeCon();
         }
+        for (Connection link : new Connection[]{parentConnection, lChildConnection, rChildConnection}) {
+            if (link != null) {
+                link.closeCon();
+            }
+        }
 
         listener.setTerm(true);
+        mailboxes.close();
+    }
+
+    private void announce(Connection link) {
+        Message.serverAnnounce(link, serverId, clientConnections.size(), loadScore.get(countSessions()),
+                localHostname, localPort, parentId,
+                getSubtreeSize(), getDepth());
+    }
+
+    /**
+     * Announces double as heartbeats: close any link that has been silent
+     * for longer than the heartbeat timeout, which starts the usual repair,
+     * and forget servers that have stopped announcing.
+     */
+    private void checkHeartbeats() {
+        long now = System.currentTimeMillis();
+        long timeout = Settings.getHeartbeatTimeout();
+        for (Connection link : new Connection[]{parentConnection, lChildConnection, rChildConnection}) {
+            if (link != null && now - link.getLastReceived() > timeout) {
+                log.warn("nothing heard from " + Settings.socketAddress(link.getSocket()) + " for " + timeout
+                        + " milliseconds, closing the link");
+                link.closeCon();
+            }
+        }
+        List<String> gone = new ArrayList<>();
+        for (Iterator<ServerInfo> it = servers.values().iterator(); it.hasNext(); ) {
+            ServerInfo info = it.next();
+            if (now - info.getLastSeen() > timeout) {
+                it.remove();
+                gone.add(info.getId());
+            }
+        }
+        if (!gone.isEmpty()) {
+            forgetPresence(gone);
+        }
     }
 
     public final void setTerm(boolean t) {
@@ -0,0 +1,76 @@
+package activitystreamer.server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Consistent-hash ring of server ids. Each server is placed at several
+ * points so keys spread evenly, and a membership change only moves the keys
+ * next to the points that were added or removed. Every server builds the
+ * same ring from the same set of ids, so all of them agree on the owners of
+ * a key without talking to each other.
+ */
+public class HashRing {
+    private static final int POINTS_PER_SERVER = 64;
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+    private final int members;
+
+    public HashRing(Collection<String> serverIds) {
+        for (String id : serverIds) {
+            for (int i = 0; i < POINTS_PER_SERVER; i++) {
+                ring.put(hash(id + "#" + i), id);
+            }
+        }
+        members = serverIds.size();
+    }
+
+    /**
+     * @param key
+     * @param replicas number of owners wanted
+     * @return the distinct servers clockwise from the key, primary first
+     */
+    public List<String> owners(String key, int replicas) {
+        List<String> owners = new ArrayList<>(replicas);
+        int wanted = Math.min(replicas, members);
+        if (wanted == 0) {
+            return owners;
+        }
+        long h = hash(key);
+        if (!collect(ring.tailMap(h).values(), owners, wanted)) {
+            collect(ring.headMap(h).values(), owners, wanted);
+        }
+        return owners;
+    }
+
+    // true once owners holds wanted servers
+    private static boolean collect(Collection<String> ids, List<String> owners, int wanted) {
+        for (String id : ids) {
+            if (!owners.contains(id)) {
+                owners.add(id);
+                if (owners.size() == wanted) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static long hash(String s) {
+        try {
+            byte[] d = MessageDigest.getInstance("MD5").digest(s.getBytes(StandardCharsets.UTF_8));
+            long h = 0;
+            for (int i = 0; i < 8; i++) {
+                h = (h << 8) | (d[i] & 0xff);
+            }
+            return h;
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to provide MD5
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package activitystreamer.server;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registered users in a concurrent map on the heap, two Strings and an
+ * entry per user. The default, fine up to a few million users.
+ */
+public class HeapUserStore implements UserStore {
+    private final Map<String, String> users = new ConcurrentHashMap<>();
+
+    @Override
+    public String getSecret(String username) {
+        return users.get(username);
+    }
+
+    @Override
+    public boolean contains(String username) {
+        return users.containsKey(username);
+    }
+
+    @Override
+    public boolean putIfAbsent(String username, String secret) {
+        return users.putIfAbsent(username, secret) == null;
+    }
+
+    @Override
+    public boolean remove(String username) {
+        return users.remove(username) != null;
+    }
+
+    @Override
+    public boolean remove(String username, String secret) {
+        return users.remove(username, secret);
+    }
+
+    @Override
+    public int size() {
+        return users.size();
+    }
+
+    @Override
+    public Iterator<Map.Entry<String, String>> iterator() {
+        return users.entrySet().iterator();
+    }
+
+    @Override
+    public String summary() {
+        return users.size() + " users on the heap";
+    }
+}
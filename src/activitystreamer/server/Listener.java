@@ -1,37 +1,80 @@
 package activitystreamer.server;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import activitystreamer.util.Settings;
 
+/**
+ * Accepts incoming connections. With more than one acceptor each acceptor
+ * gets its own socket bound with SO_REUSEPORT so the kernel spreads incoming
+ * connections across them; where SO_REUSEPORT is not available the acceptors
+ * share a single socket.
+ */
 public class Listener extends Thread {
     private static final Logger log = LogManager.getLogger();
-    private ServerSocket serverSocket = null;
-    private boolean term = false;
+    private List<ServerSocket> serverSockets = new ArrayList<>();
+    private volatile boolean term = false;
     private int portnum;
+    private final Control control;
 
-    public Listener() throws IOException {
-        portnum = Settings.getLocalPort(); // keep our own copy in case it changes later
-        serverSocket = new ServerSocket(portnum);
+    public Listener(Control control, int portnum) throws IOException {
+        this.control = control;
+        this.portnum = portnum;
+        int acceptors = Math.max(1, Settings.getAcceptors());
+        ServerSocket first = new ServerSocket();
+        boolean reusePort = acceptors > 1
+                && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        if (reusePort) {
+            first.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        first.bind(new InetSocketAddress(portnum), Settings.getAcceptBacklog());
+        serverSockets.add(first);
+        for (int i = 1; i < acceptors; i++) {
+            ServerSocket ss = first;
+            if (reusePort) {
+                ss = new ServerSocket();
+                ss.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                ss.bind(new InetSocketAddress(portnum), Settings.getAcceptBacklog());
+                serverSockets.add(ss);
+            }
+            new Acceptor(ss, i).start();
+        }
+        if (acceptors > 1) {
+            log.info("using " + acceptors + " acceptors" + (reusePort ? " with SO_REUSEPORT" : " on a shared socket"));
+        }
         start();
     }
 
     @Override
     public void run() {
         log.info("listening for new connections on " + portnum);
+        acceptLoop(serverSockets.get(0));
+    }
+
+    private void acceptLoop(ServerSocket serverSocket) {
         while (!term) {
             Socket clientSocket;
             try {
                 clientSocket = serverSocket.accept();
-                Control.getInstance().incomingConnection(clientSocket);
-                System.out.println("get new client or server");
+                if (!control.hasConnectionCapacity()) {
+                    log.debug("connection limit reached, refused " + Settings.socketAddress(clientSocket));
+                    clientSocket.close();
+                    continue;
+                }
+                control.incomingConnection(clientSocket);
             } catch (IOException e) {
-                log.info("received exception, shutting down");
+                if (!term) {
+                    log.info("received exception, shutting down");
+                }
                 term = true;
             }
         }
@@ -41,7 +84,29 @@ public class Listener extends Thread {
         this.term = term;
         if (term) {
             interrupt();
-		}
-	}
+            // accept() does not respond to interrupts, closing the sockets releases every acceptor
+            for (ServerSocket ss : serverSockets) {
+                try {
+                    ss.close();
+                } catch (IOException e) {
+                    log.debug("received exception closing the listening socket: " + e);
+                }
+            }
+        }
+    }
+
+    private class Acceptor extends Thread {
+        private final ServerSocket serverSocket;
+
+        Acceptor(ServerSocket serverSocket, int id) {
+            super("acceptor-" + id);
+            this.serverSocket = serverSocket;
+        }
+
+        @Override
+        public void run() {
+            acceptLoop(serverSocket);
+        }
+    }
 
 }
@@ -0,0 +1,104 @@
+package activitystreamer.server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+
+import activitystreamer.util.Settings;
+
+/**
+ * The load a server announces as its score and that redirects compare. A
+ * sample takes logged-in sessions, bytes waiting in outbound queues,
+ * messages processed per second and the process's share of the CPUs, each
+ * as a fraction of the capacity configured for it, and weighs them into
+ * one number that is 100 for a server at capacity. Samples are folded into
+ * an exponentially weighted moving average, so a burst does not move
+ * clients around, but sessions started since the last sample are counted
+ * straight away, so a wave of logins does not all land on one server.
+ */
+public class LoadScore {
+    private static final double SESSION_WEIGHT = 40;
+    private static final double BACKLOG_WEIGHT = 20;
+    private static final double RATE_WEIGHT = 20;
+    private static final double CPU_WEIGHT = 20;
+    private final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    private final int processors = Runtime.getRuntime().availableProcessors();
+    private long lastNanos;
+    private long lastMessages;
+    private long lastCpuNanos = -1;
+    private volatile double smoothed;
+    private volatile int sampledSessions;
+    private volatile double messageRate;
+    // the last sample's parts, for the log
+    private double backlogPart;
+    private double ratePart;
+    private double cpuPart;
+
+    /**
+     * @return points one more logged-in session adds to the score
+     */
+    public static double perSession() {
+        return SESSION_WEIGHT / Settings.getSessionCapacity();
+    }
+
+    /**
+     * Take a sample and fold it into the average.
+     *
+     * @param sessions logged-in client sessions
+     * @param backlog  bytes waiting in outbound queues
+     * @param messages messages processed since the server started
+     */
+    public synchronized void sample(int sessions, long backlog, long messages) {
+        long now = System.nanoTime();
+        long cpuNanos = processCpuNanos();
+        double seconds = (now - lastNanos) / 1e9;
+        boolean first = lastNanos == 0;
+        double rate = first ? 0 : (messages - lastMessages) / seconds;
+        messageRate = rate;
+        double cpu = first || cpuNanos < 0 || lastCpuNanos < 0 ? 0
+                : (cpuNanos - lastCpuNanos) / 1e9 / seconds / processors;
+        lastNanos = now;
+        lastMessages = messages;
+        lastCpuNanos = cpuNanos;
+
+        backlogPart = BACKLOG_WEIGHT * backlog / Settings.getBacklogCapacity();
+        ratePart = RATE_WEIGHT * rate / Settings.getMessageRateCapacity();
+        cpuPart = CPU_WEIGHT * Math.min(1, cpu);
+        double raw = SESSION_WEIGHT * sessions / Settings.getSessionCapacity() + backlogPart + ratePart + cpuPart;
+        int tau = Settings.getScoreSmoothing();
+        if (first || tau == 0) {
+            smoothed = raw;
+        } else {
+            double alpha = 1 - Math.exp(-seconds * 1000 / tau);
+            smoothed += alpha * (raw - smoothed);
+        }
+        sampledSessions = sessions;
+    }
+
+    /**
+     * @param sessions logged-in client sessions now
+     * @return the average, corrected for sessions started or ended since
+     * the last sample
+     */
+    public double get(int sessions) {
+        return Math.max(0, smoothed + (sessions - sampledSessions) * perSession());
+    }
+
+    /**
+     * @return messages processed per second at the last sample
+     */
+    public double getMessageRate() {
+        return messageRate;
+    }
+
+    public synchronized String describe() {
+        return String.format("load score %.2f: sessions %d, backlog %.2f, rate %.2f, cpu %.2f", smoothed,
+                sampledSessions, backlogPart, ratePart, cpuPart);
+    }
+
+    private long processCpuNanos() {
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,471 @@
+package activitystreamer.server;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Offline mailboxes of registered users who are away. Every broadcast the
+ * server relays is appended once to a shared log, and a user who is away
+ * only has a cursor into it, at the first broadcast they missed, so a
+ * thousand absent users cost a thousand cursors and not a thousand copies.
+ * <p>
+ * The log is kept as UTF-8 in segments of consecutive broadcasts. Up to
+ * the memory budget they stay in memory; beyond it the oldest are written
+ * to files in the spill directory by a thread of their own, so relaying a
+ * broadcast never waits for the disk, keeping only their offsets in memory,
+ * and beyond the disk budget the oldest files are deleted. A user gets at
+ * most the newest userLimit broadcasts and loses their mailbox after being
+ * away for maxAge. Segments that no cursor needs any more are dropped, so
+ * while nobody is away nothing is kept and appending is a volatile read.
+ * <p>
+ * Taking a mailbox only claims its broadcasts under the lock, see
+ * {@link Backlog}; the spill files are read afterwards by whoever delivers
+ * it, so the disk never holds up appends or the caller's own lock.
+ */
+public class Mailboxes {
+    private static final Logger log = LogManager.getLogger();
+    private static final int MAX_SEGMENT = 1 << 20;
+    private static final String SPILL_PREFIX = "mailbox-";
+    private static final String SPILL_SUFFIX = ".seg";
+    private final long memoryBudget;
+    private final long diskBudget;
+    private final int userLimit;
+    private final long maxAge;
+    private final File dir;
+    private final int segmentSize;
+    // oldest first; spilled segments are always a prefix
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private final Map<String, Cursor> cursors = new HashMap<>();
+    private volatile boolean idle = true;
+    private long nextSeq;
+    private long memoryBytes;
+    private long spillingBytes; // of segments handed to the spill thread
+    private long diskBytes;
+    private long evicted;
+    private long reportedEvicted;
+    private final ExecutorService spiller = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "mailbox-spill");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static final class Cursor {
+        final long seq;
+        final long since;
+
+        Cursor(long seq, long since) {
+            this.seq = seq;
+            this.since = since;
+        }
+    }
+
+    private static final class Segment {
+        final long first;
+        byte[] data; // null once spilled to file
+        File file;
+        int[] ends = new int[64]; // end offset of each broadcast
+        int count;
+        int size;
+        boolean spilling; // being written by the spill thread
+        boolean dropped;
+        int readers; // backlogs still to read the spill file, which stays until they have
+
+        Segment(long first, int capacity) {
+            this.first = first;
+            this.data = new byte[capacity];
+        }
+
+        long end() {
+            return first + count;
+        }
+
+        // only ever appended to past size and count, and ends is replaced rather than changed, so a
+        // copy of these references reads the same broadcasts however the segment goes on
+        void add(byte[] bytes) {
+            System.arraycopy(bytes, 0, data, size, bytes.length);
+            size += bytes.length;
+            if (count == ends.length) {
+                ends = Arrays.copyOf(ends, count * 2);
+            }
+            ends[count++] = size;
+        }
+    }
+
+    // the broadcasts of one segment a backlog claimed, as they were when it did
+    private static final class Part {
+        final Segment segment;
+        final byte[] data; // null if spilled
+        final File file;
+        final int[] ends;
+        final int index;
+        final int count;
+        final int size;
+
+        Part(Segment s, int index) {
+            this.segment = s;
+            this.data = s.data;
+            this.file = s.file;
+            this.ends = s.ends;
+            this.index = index;
+            this.count = s.count;
+            this.size = s.size;
+        }
+    }
+
+    /**
+     * Broadcasts claimed from a mailbox, read with {@link #read()} without
+     * holding any lock. Segments in memory are kept by reference and the
+     * spill files claimed are not deleted until read() is done with them,
+     * so the backlog is the same whatever the mailboxes do meanwhile.
+     */
+    public final class Backlog {
+        private final List<Part> parts = new ArrayList<>();
+        private int size;
+        private boolean released;
+
+        private Backlog() {
+        }
+
+        // under the Mailboxes lock
+        private void claim(Segment s, int index) {
+            Part part = new Part(s, index);
+            if (part.count <= index) {
+                return;
+            }
+            if (part.data == null) {
+                s.readers++;
+            }
+            parts.add(part);
+            size += part.count - index;
+        }
+
+        /**
+         * @return the broadcasts claimed, at most userLimit
+         */
+        public int size() {
+            return size;
+        }
+
+        public boolean isEmpty() {
+            return size == 0;
+        }
+
+        /**
+         * @return the broadcasts, oldest first; reads the spill files, so
+         * call it once and without holding a lock
+         */
+        public List<String> read() {
+            List<String> backlog = new ArrayList<>(size);
+            try {
+                for (Part part : parts) {
+                    Mailboxes.read(part, backlog);
+                }
+            } finally {
+                release();
+            }
+            return backlog;
+        }
+
+        // lets the spill files claimed go, when they were dropped meanwhile
+        private void release() {
+            synchronized (Mailboxes.this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+                for (Part part : parts) {
+                    Segment s = part.segment;
+                    if (part.data == null && --s.readers == 0 && s.dropped) {
+                        deleteFile(s);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @param memoryBudget bytes of broadcasts kept in memory, 0 disables mailboxes
+     * @param diskBudget   bytes of broadcasts kept in spill files
+     * @param userLimit    most broadcasts kept for one user
+     * @param maxAge       milliseconds a user may be away and keep a mailbox
+     * @param dir          where segments spill to, created when first needed
+     */
+    public Mailboxes(long memoryBudget, long diskBudget, int userLimit, long maxAge, File dir) {
+        this.memoryBudget = memoryBudget;
+        this.diskBudget = diskBudget;
+        this.userLimit = userLimit;
+        this.maxAge = maxAge;
+        this.dir = dir;
+        this.segmentSize = (int) Math.min(MAX_SEGMENT, Math.max(4096, memoryBudget / 8));
+        // left behind by a server that did not shut down cleanly
+        deleteSpillFiles();
+    }
+
+    public boolean isEnabled() {
+        return memoryBudget > 0;
+    }
+
+    /**
+     * Add a serialized broadcast to the mailbox of everybody who is away.
+     */
+    public void append(String msg) {
+        if (idle) {
+            return;
+        }
+        byte[] bytes = msg.getBytes(StandardCharsets.UTF_8);
+        synchronized (this) {
+            if (cursors.isEmpty()) {
+                return;
+            }
+            Segment tail = segments.peekLast();
+            if (tail == null || tail.data == null || tail.size + bytes.length > tail.data.length) {
+                // a good moment to let go of what nobody needs any more
+                trim();
+                tail = new Segment(nextSeq, Math.max(segmentSize, bytes.length));
+                segments.addLast(tail);
+                memoryBytes += tail.data.length;
+                if (memoryBytes > memoryBudget) {
+                    spill();
+                }
+            }
+            tail.add(bytes);
+            nextSeq++;
+        }
+    }
+
+    /**
+     * A registered user has left the cluster: collect broadcasts from now
+     * on. A user who is already away keeps their older cursor.
+     */
+    public synchronized void open(String username) {
+        if (!isEnabled()) {
+            return;
+        }
+        cursors.putIfAbsent(username, new Cursor(nextSeq, System.currentTimeMillis()));
+        idle = false;
+    }
+
+    /**
+     * The user is back on another server, which delivers from its own
+     * mailbox.
+     */
+    public synchronized void remove(String username) {
+        if (cursors.remove(username) != null) {
+            trim();
+        }
+    }
+
+    /**
+     * Remove the user's mailbox and claim what it holds, at most userLimit
+     * broadcasts.
+     */
+    public synchronized Backlog take(String username) {
+        Backlog backlog = peek(username);
+        remove(username);
+        return backlog;
+    }
+
+    /**
+     * @return what the user's mailbox holds, at most userLimit broadcasts,
+     * leaving it in place
+     */
+    public synchronized Backlog peek(String username) {
+        Backlog backlog = new Backlog();
+        Cursor cursor = cursors.get(username);
+        if (cursor == null) {
+            return backlog;
+        }
+        long from = Math.max(cursor.seq, nextSeq - userLimit);
+        for (Segment s : segments) {
+            if (s.end() > from) {
+                backlog.claim(s, (int) Math.max(0, from - s.first));
+            }
+        }
+        return backlog;
+    }
+
+    // without the lock, from the references the part copied
+    private static void read(Part part, List<String> into) {
+        int offset = part.index == 0 ? 0 : part.ends[part.index - 1];
+        byte[] data = part.data;
+        int shift = 0;
+        if (data == null) {
+            // read from the first broadcast wanted, so offsets shift by it
+            shift = offset;
+            data = new byte[part.size - shift];
+            try (RandomAccessFile in = new RandomAccessFile(part.file, "r")) {
+                in.seek(shift);
+                in.readFully(data);
+            } catch (IOException e) {
+                log.error("lost " + (part.count - part.index) + " mailbox broadcasts, failed to read " + part.file
+                        + ": " + e);
+                return;
+            }
+        }
+        for (int i = part.index; i < part.count; i++) {
+            int end = part.ends[i];
+            into.add(new String(data, offset - shift, end - offset, StandardCharsets.UTF_8));
+            offset = end;
+        }
+    }
+
+    /**
+     * Drop the mailboxes of users away for longer than maxAge, and report
+     * broadcasts lost to the disk budget since the last call.
+     */
+    public synchronized void expire() {
+        long now = System.currentTimeMillis();
+        int expired = 0;
+        for (Iterator<Cursor> it = cursors.values().iterator(); it.hasNext(); ) {
+            if (now - it.next().since > maxAge) {
+                it.remove();
+                expired++;
+            }
+        }
+        if (expired > 0) {
+            log.info("dropped the offline mailboxes of " + expired + " users away for longer than " + maxAge
+                    + " ms");
+        }
+        trim();
+        if (evicted != reportedEvicted) {
+            log.warn("offline mailboxes are over their disk limit, " + (evicted - reportedEvicted)
+                    + " old broadcasts were dropped");
+            reportedEvicted = evicted;
+        }
+    }
+
+    /**
+     * Delete the spill files, and the directory if that leaves it empty.
+     */
+    public synchronized void close() {
+        spiller.shutdownNow();
+        cursors.clear();
+        trim();
+        deleteSpillFiles();
+        dir.delete();
+    }
+
+    public synchronized String summary() {
+        return cursors.size() + " users away, " + (segments.isEmpty() ? 0 : nextSeq - segments.peekFirst().first)
+                + " broadcasts kept, " + memoryBytes / 1024 + " KB in memory, " + diskBytes / 1024 + " KB on disk";
+    }
+
+    // drop segments before the oldest broadcast any cursor can still be given
+    private void trim() {
+        long floor = nextSeq;
+        for (Cursor c : cursors.values()) {
+            floor = Math.min(floor, Math.max(c.seq, nextSeq - userLimit));
+        }
+        while (!segments.isEmpty() && segments.peekFirst().end() <= floor) {
+            drop(segments.pollFirst());
+        }
+        idle = cursors.isEmpty();
+    }
+
+    // hand the oldest segments over the memory budget to the spill thread
+    private void spill() {
+        for (Segment s : segments) {
+            if (memoryBytes - spillingBytes <= memoryBudget || s == segments.peekLast()) {
+                break;
+            }
+            if (s.data == null || s.spilling) {
+                continue;
+            }
+            // only the last segment is appended to, so this one no longer changes
+            s.spilling = true;
+            spillingBytes += s.data.length;
+            spiller.execute(() -> write(s));
+        }
+        evictFromDisk();
+    }
+
+    // on the spill thread
+    private void write(Segment s) {
+        File file = new File(dir, SPILL_PREFIX + s.first + SPILL_SUFFIX);
+        IOException failure = null;
+        try {
+            dir.mkdirs();
+            try (OutputStream out = new FileOutputStream(file)) {
+                out.write(s.data, 0, s.size);
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+        synchronized (this) {
+            int capacity = s.data.length;
+            s.spilling = false;
+            spillingBytes -= capacity;
+            if (s.dropped) {
+                // nobody needs it any more, drop() has already let go of its memory
+                file.delete();
+                return;
+            }
+            if (failure == null) {
+                s.file = file;
+                diskBytes += s.size;
+            } else {
+                log.error("failed to spill offline mailboxes to " + dir + ", dropping " + s.count
+                        + " broadcasts: " + failure);
+                file.delete();
+                evicted += s.count;
+                s.count = 0;
+                s.size = 0;
+            }
+            s.data = null;
+            s.ends = s.count == 0 ? new int[0] : Arrays.copyOf(s.ends, s.count);
+            memoryBytes -= capacity;
+            evictFromDisk();
+        }
+    }
+
+    private void evictFromDisk() {
+        while (diskBytes > diskBudget && !segments.isEmpty() && segments.peekFirst().data == null) {
+            Segment oldest = segments.pollFirst();
+            evicted += oldest.count;
+            drop(oldest);
+        }
+    }
+
+    private void drop(Segment s) {
+        s.dropped = true;
+        if (s.data != null) {
+            memoryBytes -= s.data.length;
+        } else if (s.file != null) {
+            diskBytes -= s.size;
+            if (s.readers == 0) {
+                deleteFile(s);
+            }
+        }
+    }
+
+    private static void deleteFile(Segment s) {
+        if (!s.file.delete()) {
+            log.warn("failed to delete mailbox spill file " + s.file);
+        }
+    }
+
+    private void deleteSpillFiles() {
+        File[] files = dir.listFiles((d, name) -> name.startsWith(SPILL_PREFIX) && name.endsWith(SPILL_SUFFIX));
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,357 @@
+package activitystreamer.server;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Registered users in direct memory, so that the registry costs the heap
+ * and the collector next to nothing however large it grows.
+ * <p>
+ * A user is a record appended to the current slab: a sequence number, the
+ * username's hash, a live flag, then the UTF-8 username and secret with
+ * their lengths. Slabs are direct buffers of a fixed size. The index is an
+ * open-addressing table with linear probing, itself a direct buffer of
+ * longs, each the slab and offset of a record plus 16 bits of its hash so
+ * most probes never touch the record. Removing a user marks its record dead
+ * and shifts the following probe chain back, so the table has no
+ * tombstones; once dead records outweigh live ones the live ones are copied
+ * into fresh slabs, in order, and the old slabs are left to the collector.
+ * Records keep their order by sequence number, which lets an iterator
+ * resume after such a compaction.
+ */
+public class OffHeapUserStore implements UserStore {
+    // sequence number, hash, live flag, username length, secret length
+    private static final int HEADER = 8 + 4 + 1 + 2 + 2;
+    private static final int MIN_SLOTS = 1 << 10;
+    private static final int MAX_SLOTS = 1 << 27; // a 1 GB index, the most one buffer holds
+    private static final double MAX_LOAD = 0.7;
+    private final int slabSize;
+    private List<ByteBuffer> slabs = new ArrayList<>();
+    private List<Integer> slabUsed = new ArrayList<>();
+    private LongBuffer index;
+    private int mask;
+    private int size;
+    private long nextSeq = 1;
+    private long liveBytes;
+    private long deadBytes;
+    // changes whenever records move
+    private int epoch;
+
+    /**
+     * @param slabSize bytes of direct memory allocated at a time for records,
+     *                 at least enough for the longest record
+     */
+    public OffHeapUserStore(int slabSize) {
+        this.slabSize = Math.max(slabSize, HEADER + 2 * MAX_FIELD_BYTES);
+        index = allocateIndex(MIN_SLOTS);
+        mask = MIN_SLOTS - 1;
+    }
+
+    private static LongBuffer allocateIndex(int slots) {
+        return ByteBuffer.allocateDirect(slots * 8).asLongBuffer();
+    }
+
+    // package-private for the tests, which pick usernames by the slot they land in
+    static int hash(String username) {
+        int h = username.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        return h ^ h >>> 16;
+    }
+
+    // an index entry: the top 16 bits of the hash, slab + 1 so no entry is 0, offset
+    private static long entry(int hash, int slab, int offset) {
+        return (long) (hash >>> 16) << 48 | (long) (slab + 1) << 32 | offset;
+    }
+
+    private ByteBuffer slabOf(long entry) {
+        return slabs.get((int) (entry >>> 32 & 0xffff) - 1);
+    }
+
+    private static int offsetOf(long entry) {
+        return (int) entry;
+    }
+
+    private int hashOf(long entry) {
+        return slabOf(entry).getInt(offsetOf(entry) + 8);
+    }
+
+    private static int recordSize(ByteBuffer slab, int offset) {
+        return HEADER + slab.getChar(offset + 13) + slab.getChar(offset + 15);
+    }
+
+    /**
+     * @return the index slot of username's record, or -1
+     */
+    private int find(byte[] name, int hash) {
+        long tag = hash >>> 16;
+        for (int slot = hash & mask; ; slot = slot + 1 & mask) {
+            long e = index.get(slot);
+            if (e == 0) {
+                return -1;
+            }
+            if (e >>> 48 != tag) {
+                continue;
+            }
+            ByteBuffer slab = slabOf(e);
+            int offset = offsetOf(e);
+            if (slab.getInt(offset + 8) == hash && slab.getChar(offset + 13) == name.length
+                    && equals(slab, offset + HEADER, name)) {
+                return slot;
+            }
+        }
+    }
+
+    private static boolean equals(ByteBuffer slab, int at, byte[] bytes) {
+        for (int i = 0; i < bytes.length; i++) {
+            if (slab.get(at + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String read(ByteBuffer slab, int at, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = slab.get(at + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String secretOf(ByteBuffer slab, int offset) {
+        return read(slab, offset + HEADER + slab.getChar(offset + 13), slab.getChar(offset + 15));
+    }
+
+    @Override
+    public synchronized String getSecret(String username) {
+        int slot = find(username.getBytes(StandardCharsets.UTF_8), hash(username));
+        if (slot < 0) {
+            return null;
+        }
+        long e = index.get(slot);
+        return secretOf(slabOf(e), offsetOf(e));
+    }
+
+    @Override
+    public synchronized boolean contains(String username) {
+        return find(username.getBytes(StandardCharsets.UTF_8), hash(username)) >= 0;
+    }
+
+    @Override
+    public synchronized boolean putIfAbsent(String username, String secret) {
+        byte[] name = username.getBytes(StandardCharsets.UTF_8);
+        byte[] pass = secret.getBytes(StandardCharsets.UTF_8);
+        if (name.length > MAX_FIELD_BYTES || pass.length > MAX_FIELD_BYTES) {
+            throw new IllegalArgumentException("a username or secret is longer than " + MAX_FIELD_BYTES + " bytes");
+        }
+        int hash = hash(username);
+        if (find(name, hash) >= 0) {
+            return false;
+        }
+        if (deadBytes > liveBytes && deadBytes > slabSize) {
+            compact();
+        }
+        if (size + 1 > (mask + 1) * MAX_LOAD) {
+            if (mask + 1 < MAX_SLOTS) {
+                resize((mask + 1) * 2);
+            } else if (size + 1 > mask) {
+                throw new IllegalStateException("the user index is full at " + size + " users");
+            }
+        }
+        insert(append(nextSeq++, hash, name, pass));
+        size++;
+        liveBytes += HEADER + name.length + pass.length;
+        return true;
+    }
+
+    private long append(long seq, int hash, byte[] name, byte[] pass) {
+        int length = HEADER + name.length + pass.length;
+        int last = slabs.size() - 1;
+        if (last < 0 || slabUsed.get(last) + length > slabSize) {
+            if (slabs.size() == 0xffff) {
+                throw new IllegalStateException("the user store is full at " + slabs.size() + " slabs");
+            }
+            slabs.add(ByteBuffer.allocateDirect(slabSize));
+            slabUsed.add(0);
+            last++;
+        }
+        ByteBuffer slab = slabs.get(last);
+        int offset = slabUsed.get(last);
+        slab.putLong(offset, seq);
+        slab.putInt(offset + 8, hash);
+        slab.put(offset + 12, (byte) 1);
+        slab.putChar(offset + 13, (char) name.length);
+        slab.putChar(offset + 15, (char) pass.length);
+        int at = offset + HEADER;
+        for (byte b : name) {
+            slab.put(at++, b);
+        }
+        for (byte b : pass) {
+            slab.put(at++, b);
+        }
+        slabUsed.set(last, offset + length);
+        return entry(hash, last, offset);
+    }
+
+    private void insert(long e) {
+        int slot = hashOf(e) & mask;
+        while (index.get(slot) != 0) {
+            slot = slot + 1 & mask;
+        }
+        index.put(slot, e);
+    }
+
+    @Override
+    public synchronized boolean remove(String username) {
+        return remove(username, null);
+    }
+
+    @Override
+    public synchronized boolean remove(String username, String secret) {
+        int slot = find(username.getBytes(StandardCharsets.UTF_8), hash(username));
+        if (slot < 0) {
+            return false;
+        }
+        long e = index.get(slot);
+        ByteBuffer slab = slabOf(e);
+        int offset = offsetOf(e);
+        if (secret != null && !secret.equals(secretOf(slab, offset))) {
+            return false;
+        }
+        slab.put(offset + 12, (byte) 0);
+        int length = recordSize(slab, offset);
+        liveBytes -= length;
+        deadBytes += length;
+        size--;
+        // shift back every later entry of the chain that may move into the hole
+        int hole = slot;
+        for (int j = slot + 1 & mask; (e = index.get(j)) != 0; j = j + 1 & mask) {
+            int home = hashOf(e) & mask;
+            if (j > hole ? home <= hole || home > j : home <= hole && home > j) {
+                index.put(hole, e);
+                hole = j;
+            }
+        }
+        index.put(hole, 0);
+        return true;
+    }
+
+    private void resize(int slots) {
+        LongBuffer old = index;
+        index = allocateIndex(slots);
+        mask = slots - 1;
+        for (int i = 0; i < old.capacity(); i++) {
+            long e = old.get(i);
+            if (e != 0) {
+                insert(e);
+            }
+        }
+    }
+
+    // copy the live records into new slabs, in order, and index them again
+    private void compact() {
+        List<ByteBuffer> oldSlabs = slabs;
+        List<Integer> oldUsed = slabUsed;
+        slabs = new ArrayList<>();
+        slabUsed = new ArrayList<>();
+        index = allocateIndex(mask + 1);
+        for (int s = 0; s < oldSlabs.size(); s++) {
+            ByteBuffer slab = oldSlabs.get(s);
+            for (int offset = 0; offset < oldUsed.get(s); offset += recordSize(slab, offset)) {
+                if (slab.get(offset + 12) == 0) {
+                    continue;
+                }
+                int nameLength = slab.getChar(offset + 13);
+                byte[] name = new byte[nameLength];
+                byte[] pass = new byte[slab.getChar(offset + 15)];
+                for (int i = 0; i < name.length; i++) {
+                    name[i] = slab.get(offset + HEADER + i);
+                }
+                for (int i = 0; i < pass.length; i++) {
+                    pass[i] = slab.get(offset + HEADER + nameLength + i);
+                }
+                insert(append(slab.getLong(offset), slab.getInt(offset + 8), name, pass));
+            }
+        }
+        deadBytes = 0;
+        epoch++;
+    }
+
+    @Override
+    public synchronized int size() {
+        return size;
+    }
+
+    @Override
+    public Iterator<Map.Entry<String, String>> iterator() {
+        return new RecordIterator();
+    }
+
+    @Override
+    public synchronized String summary() {
+        return size + " users off the heap, " + (long) slabs.size() * slabSize / (1024 * 1024) + " MB of slabs "
+                + (liveBytes + deadBytes == 0 ? 0 : 100 * deadBytes / (liveBytes + deadBytes)) + "% dead, "
+                + (mask + 1) * 8L / 1024 + " KB of index";
+    }
+
+    /**
+     * Walks the records in slab order, which is sequence order, taking the
+     * lock for each step. After a compaction it finds its place again by the
+     * sequence number of the last record it returned.
+     */
+    private final class RecordIterator implements Iterator<Map.Entry<String, String>> {
+        private int slab;
+        private int offset;
+        private int seenEpoch = epoch;
+        private long lastSeq;
+        private Map.Entry<String, String> next;
+
+        @Override
+        public boolean hasNext() {
+            if (next != null) {
+                return true;
+            }
+            synchronized (OffHeapUserStore.this) {
+                if (seenEpoch != epoch) {
+                    seenEpoch = epoch;
+                    slab = 0;
+                    offset = 0;
+                }
+                for (; slab < slabs.size(); slab++, offset = 0) {
+                    ByteBuffer s = slabs.get(slab);
+                    for (; offset < slabUsed.get(slab); offset += recordSize(s, offset)) {
+                        if (s.get(offset + 12) == 0 || s.getLong(offset) <= lastSeq) {
+                            continue;
+                        }
+                        lastSeq = s.getLong(offset);
+                        next = new AbstractMap.SimpleImmutableEntry<>(read(s, offset + HEADER,
+                                s.getChar(offset + 13)), secretOf(s, offset));
+                        offset += recordSize(s, offset);
+                        return true;
+                    }
+                }
+                return false;
+            }
+        }
+
+        @Override
+        public Map.Entry<String, String> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<String, String> entry = next;
+            next = null;
+            return entry;
+        }
+    }
+}
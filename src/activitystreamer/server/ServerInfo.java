@@ -0,0 +1,109 @@
+package activitystreamer.server;
+
+import java.util.Objects;
+
+/**
+ * What this server knows about another server in the cluster, learned from
+ * its SERVER_ANNOUNCEs. Entries that stop being refreshed belong to servers
+ * that have failed or left.
+ */
+public class ServerInfo {
+    private final String id;
+    private volatile String hostname;
+    private volatile int port;
+    private volatile int load;
+    // NaN for a server that does not announce a score
+    private volatile double score = Double.NaN;
+    // score added by clients we redirected there since its last announce
+    private volatile double redirected;
+    private volatile String parentId;
+    private volatile int size = 1;
+    private volatile int depth;
+    private volatile long lastSeen;
+
+    public ServerInfo(String id) {
+        this.id = id;
+    }
+
+    /**
+     * @return true if the server's parent changed
+     */
+    public boolean update(String hostname, int port, int load, double score, String parentId, int size,
+            int depth) {
+        boolean moved = lastSeen == 0 || !Objects.equals(this.parentId, parentId);
+        this.hostname = hostname;
+        this.port = port;
+        this.load = load;
+        this.score = score;
+        this.redirected = 0;
+        this.parentId = parentId;
+        this.size = size;
+        this.depth = depth;
+        this.lastSeen = System.currentTimeMillis();
+        return moved;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getHostname() {
+        return hostname;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * @return hostname:port, the form used by REDIRECT
+     */
+    public String getAddress() {
+        return hostname + ":" + port;
+    }
+
+    public int getLoad() {
+        return load;
+    }
+
+    /**
+     * @return the announced load score plus what clients redirected there
+     * since have added, NaN if the server does not announce one
+     */
+    public double getScore() {
+        return score + redirected;
+    }
+
+    /**
+     * Count a client redirected to the server until it announces again.
+     */
+    public void addRedirected(double points) {
+        redirected += points;
+    }
+
+    /**
+     * @return id of the server's parent, null for the root
+     */
+    public String getParentId() {
+        return parentId;
+    }
+
+    /**
+     * @return number of servers in the subtree rooted at this server,
+     * including itself
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return hops from the root
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    public long getLastSeen() {
+        return lastSeen;
+    }
+}
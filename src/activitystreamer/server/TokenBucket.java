@@ -0,0 +1,118 @@
+package activitystreamer.server;
+
+/**
+ * Token bucket refilled continuously at a fixed rate, holding at most burst
+ * tokens. A rate of zero or less means unlimited.
+ */
+public class TokenBucket {
+    private final double ratePerNano;
+    private final double burst;
+    private double tokens;
+    private long lastRefill;
+
+    public TokenBucket(double ratePerSecond, int burst) {
+        this.ratePerNano = ratePerSecond / 1e9;
+        this.burst = Math.max(1, burst);
+        this.tokens = this.burst;
+        this.lastRefill = System.nanoTime();
+    }
+
+    public boolean isUnlimited() {
+        return ratePerNano <= 0;
+    }
+
+    /**
+     * Take one token if available.
+     *
+     * @return true if the caller is within the limit
+     */
+    public boolean tryAcquire() {
+        return tryAcquire(1);
+    }
+
+    /**
+     * Take n tokens. More than burst tokens are taken once the bucket is
+     * full, leaving it in debt until the refill catches up, so a request
+     * larger than the burst is not refused forever.
+     *
+     * @return true if the caller is within the limit
+     */
+    public synchronized boolean tryAcquire(int n) {
+        if (isUnlimited()) {
+            return true;
+        }
+        refill();
+        if (tokens >= Math.min(n, burst)) {
+            tokens -= n;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Take n tokens from both buckets or from neither, so a message one of
+     * them refuses costs the other nothing. Either bucket may be null. Locks
+     * first, then second: callers must always pass them in the same roles.
+     *
+     * @return true if the caller is within both limits
+     */
+    public static boolean tryAcquireBoth(TokenBucket first, TokenBucket second, int n) {
+        if (first == null || second == null) {
+            return (first == null || first.tryAcquire(n)) && (second == null || second.tryAcquire(n));
+        }
+        synchronized (first) {
+            synchronized (second) {
+                if (!first.isAvailable(n) || !second.isAvailable(n)) {
+                    return false;
+                }
+                first.tryAcquire(n);
+                second.tryAcquire(n);
+                return true;
+            }
+        }
+    }
+
+    private boolean isAvailable(int n) {
+        return nanosUntilAvailable(n) == 0;
+    }
+
+    /**
+     * @return true if the bucket holds its whole burst, i.e. it is as good
+     * as a new one
+     */
+    public synchronized boolean isFull() {
+        if (isUnlimited()) {
+            return true;
+        }
+        refill();
+        return tokens >= burst;
+    }
+
+    /**
+     * @return nanoseconds until one token will be available, 0 if one is now
+     */
+    public long nanosUntilAvailable() {
+        return nanosUntilAvailable(1);
+    }
+
+    /**
+     * @return nanoseconds until tryAcquire(n) will succeed, 0 if it would now
+     */
+    public synchronized long nanosUntilAvailable(int n) {
+        if (isUnlimited()) {
+            return 0;
+        }
+        refill();
+        double needed = Math.min(n, burst);
+        if (tokens >= needed) {
+            return 0;
+        }
+        return (long) Math.ceil((needed - tokens) / ratePerNano);
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - lastRefill) * ratePerNano);
+        lastRefill = now;
+    }
+}
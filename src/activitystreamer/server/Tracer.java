@@ -0,0 +1,113 @@
+package activitystreamer.server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import activitystreamer.util.LatencyHistogram;
+import activitystreamer.util.Settings;
+
+/**
+ * Optional per-hop tracing of ACTIVITY_BROADCAST. The originating server
+ * samples a broadcast and puts a trace object first in the message:
+ *
+ * <pre>
+ * {"trace":{"id":"1f3a","origin":1500000000000,"hops":[{"server":"abc","t":1500000000000}]},"command":...}
+ * </pre>
+ *
+ * Every server that relays it appends its own hop and records the latency of
+ * the hop it arrived over and the time since the origin. Because the trace is
+ * always first, an untraced message costs one startsWith on the relay path and
+ * the relay never has to parse the rest of the message. Timestamps are wall
+ * clock milliseconds, so per-hop figures include clock skew between servers.
+ */
+public class Tracer {
+    private static final Logger log = LogManager.getLogger();
+    static final String PREFIX = "{\"trace\":{\"id\":\"";
+    private static final String ORIGIN = "\"origin\":";
+    private static final String HOP = "{\"server\":\"";
+    private static final String HOPS_END = "]},";
+    private final Map<String, LatencyHistogram> hops = new ConcurrentHashMap<>();
+    private final LatencyHistogram endToEnd = new LatencyHistogram();
+    private final String serverId;
+
+    public Tracer(String serverId) {
+        this.serverId = serverId;
+    }
+
+    /**
+     * @return true if a new broadcast should carry a trace
+     */
+    public boolean sample() {
+        double rate = Settings.getTraceSampleRate();
+        return rate > 0 && (rate >= 1 || ThreadLocalRandom.current().nextDouble() < rate);
+    }
+
+    public static boolean isTraced(String msg) {
+        return msg.startsWith(PREFIX);
+    }
+
+    /**
+     * Add a trace, with this server as the first hop, to a serialized
+     * broadcast.
+     */
+    public String start(String msg) {
+        long now = System.currentTimeMillis();
+        StringBuilder sb = new StringBuilder(msg.length() + 96);
+        sb.append(PREFIX).append(Long.toHexString(ThreadLocalRandom.current().nextLong()))
+                .append("\",").append(ORIGIN).append(now).append(",\"hops\":[")
+                .append(HOP).append(serverId).append("\",\"t\":").append(now).append('}')
+                .append(HOPS_END).append(msg, 1, msg.length());
+        return sb.toString();
+    }
+
+    /**
+     * Record the hop a traced broadcast arrived over and append this server to
+     * its hop list.
+     *
+     * @return the message to forward
+     */
+    public String onRelay(String msg) {
+        try {
+            long now = System.currentTimeMillis();
+            int hopsEnd = msg.indexOf(HOPS_END, PREFIX.length());
+            int o = msg.indexOf(ORIGIN, PREFIX.length()) + ORIGIN.length();
+            long origin = Long.parseLong(msg.substring(o, msg.indexOf(',', o)));
+            int last = msg.lastIndexOf(HOP, hopsEnd) + HOP.length();
+            int quote = msg.indexOf('"', last);
+            String from = msg.substring(last, quote);
+            int t = msg.indexOf(':', quote) + 1;
+            long sent = Long.parseLong(msg.substring(t, msg.indexOf('}', t)));
+
+            hops.computeIfAbsent(from + "->" + serverId, k -> new LatencyHistogram()).record(now - sent);
+            endToEnd.record(now - origin);
+
+            StringBuilder sb = new StringBuilder(msg.length() + 48);
+            sb.append(msg, 0, hopsEnd).append(',').append(HOP).append(serverId)
+                    .append("\",\"t\":").append(now).append('}').append(msg, hopsEnd, msg.length());
+            return sb.toString();
+        } catch (RuntimeException e) {
+            log.debug("malformed trace, forwarding unchanged: " + e);
+            return msg;
+        }
+    }
+
+    /**
+     * Log the latency distributions seen since the last report and start new
+     * ones. Values are in milliseconds.
+     */
+    public void report() {
+        if (endToEnd.getCount() == 0) {
+            return;
+        }
+        log.info("trace end-to-end ms: " + endToEnd.summary());
+        for (Map.Entry<String, LatencyHistogram> entry : hops.entrySet()) {
+            log.info("trace hop " + entry.getKey() + " ms: " + entry.getValue().summary());
+            entry.getValue().reset();
+        }
+        endToEnd.reset();
+    }
+}
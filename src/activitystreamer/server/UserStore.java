@@ -0,0 +1,73 @@
+package activitystreamer.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
+
+import activitystreamer.util.Settings;
+
+/**
+ * Registered users, username to secret. Only the registration is kept here;
+ * who is logged in where belongs to the sessions. Implementations are safe
+ * for concurrent use and their iterators are weakly consistent: they never
+ * fail, return every user present throughout the iteration once and may or
+ * may not return users added or removed meanwhile.
+ */
+public interface UserStore extends Iterable<Map.Entry<String, String>> {
+    /**
+     * Longest username or secret, in UTF-8 bytes, a store must accept.
+     */
+    int MAX_FIELD_BYTES = 65535;
+
+    /**
+     * @return the secret username registered with, or null if it is not
+     */
+    String getSecret(String username);
+
+    boolean contains(String username);
+
+    /**
+     * @return false, leaving the store as it was, if username is already
+     * registered
+     */
+    boolean putIfAbsent(String username, String secret);
+
+    /**
+     * @return true if username was registered
+     */
+    boolean remove(String username);
+
+    /**
+     * Remove username only if it is registered with the given secret.
+     *
+     * @return true if it was
+     */
+    boolean remove(String username, String secret);
+
+    int size();
+
+    @Override
+    Iterator<Map.Entry<String, String>> iterator();
+
+    String summary();
+
+    /**
+     * @return true if a store accepts the username and secret
+     */
+    static boolean fits(String username, String secret) {
+        // cheap bound first, a UTF-8 byte is at most 3 per char
+        return username.length() + secret.length() <= MAX_FIELD_BYTES / 3
+                || username.getBytes(StandardCharsets.UTF_8).length <= MAX_FIELD_BYTES
+                && secret.getBytes(StandardCharsets.UTF_8).length <= MAX_FIELD_BYTES;
+    }
+
+    /**
+     * @return an empty store of the kind the settings ask for
+     */
+    static UserStore create() {
+        if (Settings.getUserStore().equals(Settings.USER_STORE_OFFHEAP)) {
+            return new OffHeapUserStore(Settings.getUserStoreSlab());
+        }
+        return new HeapUserStore();
+    }
+}
@@ -0,0 +1,204 @@
+package activitystreamer.tools;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import activitystreamer.server.Connection;
+import activitystreamer.server.Control;
+import activitystreamer.util.Message;
+import activitystreamer.util.Settings;
+
+/**
+ * Measures connection establishment under bursty arrivals: how fast a server
+ * accepts connections and answers an anonymous LOGIN, and what a single
+ * Control.incomingConnection call costs. Without -rh a server is started in
+ * this JVM, which is also required for the incomingConnection measurement.
+ */
+public class AcceptBenchmark {
+	private static final Logger log = LogManager.getLogger();
+
+	private static void help(Options options) {
+		String header = "Connection establishment benchmark for the ActivityStream server\n\n";
+		HelpFormatter formatter = new HelpFormatter();
+		formatter.printHelp("ActivityStreamer.AcceptBenchmark", header, options, "", true);
+		System.exit(-1);
+	}
+
+	public static void main(String[] args) throws Exception {
+		Options options = new Options();
+		options.addOption("rh", true, "remote hostname, omit to start a server in this JVM");
+		options.addOption("rp", true, "remote port number, or local port of the in-JVM server");
+		options.addOption("ac", true, "acceptor threads for the in-JVM server");
+		options.addOption("n", true, "total connections to open");
+		options.addOption("b", true, "connections per burst");
+		options.addOption("t", true, "client threads");
+		options.addOption("i", true, "idle time between bursts in milliseconds");
+
+		CommandLineParser parser = new DefaultParser();
+		CommandLine cmd = null;
+		try {
+			cmd = parser.parse(options, args);
+		} catch (ParseException e) {
+			help(options);
+		}
+
+		int total, burst, threads, idle, port;
+		try {
+			total = Integer.parseInt(cmd.getOptionValue("n", "2000"));
+			burst = Integer.parseInt(cmd.getOptionValue("b", "200"));
+			threads = Integer.parseInt(cmd.getOptionValue("t", "32"));
+			idle = Integer.parseInt(cmd.getOptionValue("i", "100"));
+			port = Integer.parseInt(cmd.getOptionValue("rp", "3780"));
+			if (cmd.hasOption("ac")) {
+				Settings.setAcceptors(Integer.parseInt(cmd.getOptionValue("ac")));
+			}
+		} catch (NumberFormatException e) {
+			log.error("numeric options require numbers: " + e.getMessage());
+			help(options);
+			return;
+		}
+
+		String host = cmd.getOptionValue("rh");
+		boolean inProcess = host == null;
+		if (inProcess) {
+			host = "localhost";
+			Settings.setLocalPort(port);
+			Settings.setServerId();
+			Control.getInstance();
+			Thread.sleep(200);
+		}
+
+		establishment(host, port, total, burst, threads, idle);
+		if (inProcess) {
+			incomingConnectionCost(total, burst);
+			Control.getInstance().setTerm(true);
+			Control.getInstance().interrupt();
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Open connections in bursts and time connect plus an anonymous LOGIN round
+	 * trip for each. Sockets stay open until the end so the server sees its
+	 * connection count grow, as it does during a reconnect storm.
+	 */
+	private static void establishment(String host, int port, int total, int burst, int threads, int idle)
+			throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Socket> open = new ArrayList<>(total);
+		long[] latencies = new long[total];
+		int done = 0, failed = 0;
+		byte[] login = (Message.login() + "\n").getBytes(StandardCharsets.UTF_8);
+		long start = System.nanoTime();
+		while (done + failed < total) {
+			int n = Math.min(burst, total - done - failed);
+			List<Future<Socket>> futures = new ArrayList<>(n);
+			for (int i = 0; i < n; i++) {
+				final int slot = done + failed + i;
+				futures.add(pool.submit(() -> {
+					long t0 = System.nanoTime();
+					Socket s = new Socket(host, port);
+					OutputStream out = s.getOutputStream();
+					out.write(login);
+					out.flush();
+					BufferedReader br = new BufferedReader(
+							new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+					if (br.readLine() == null) {
+						s.close();
+						throw new IOException("connection closed before LOGIN_SUCCESS");
+					}
+					latencies[slot] = System.nanoTime() - t0;
+					return s;
+				}));
+			}
+			for (Future<Socket> f : futures) {
+				try {
+					open.add(f.get());
+					done++;
+				} catch (Exception e) {
+					failed++;
+				}
+			}
+			if (idle > 0) {
+				Thread.sleep(idle);
+			}
+		}
+		long elapsed = System.nanoTime() - start - (long) idle * ((total + burst - 1) / burst) * 1000000L;
+		pool.shutdown();
+		for (Socket s : open) {
+			s.close();
+		}
+
+		long[] ok = Arrays.stream(latencies).filter(l -> l > 0).sorted().toArray();
+		System.out.printf("connections: %d ok, %d failed%n", done, failed);
+		System.out.printf("establishment rate: %.0f connections/s (excluding idle time)%n",
+				done / (Math.max(1, elapsed) / 1e9));
+		printPercentiles("connect + LOGIN", ok);
+	}
+
+	/**
+	 * Accept a burst of loopback sockets up front, then hand them to
+	 * incomingConnection back to back and time each call.
+	 */
+	private static void incomingConnectionCost(int total, int burst) throws IOException {
+		long[] costs = new long[total];
+		int measured = 0;
+		try (ServerSocket ss = new ServerSocket()) {
+			ss.bind(new InetSocketAddress("localhost", 0), burst);
+			while (measured < total) {
+				int n = Math.min(burst, total - measured);
+				List<Socket> clients = new ArrayList<>(n);
+				List<Socket> accepted = new ArrayList<>(n);
+				for (int i = 0; i < n; i++) {
+					clients.add(new Socket("localhost", ss.getLocalPort()));
+					accepted.add(ss.accept());
+				}
+				List<Connection> cons = new ArrayList<>(n);
+				for (Socket s : accepted) {
+					long t0 = System.nanoTime();
+					cons.add(Control.getInstance().incomingConnection(s));
+					costs[measured++] = System.nanoTime() - t0;
+				}
+				for (Socket s : clients) {
+					s.close();
+				}
+				for (Connection c : cons) {
+					c.closeCon();
+				}
+			}
+		}
+		Arrays.sort(costs);
+		printPercentiles("incomingConnection", costs);
+	}
+
+	private static void printPercentiles(String name, long[] sorted) {
+		if (sorted.length == 0) {
+			System.out.println(name + ": no samples");
+			return;
+		}
+		System.out.printf("%s latency us: p50 %.1f  p90 %.1f  p99 %.1f  max %.1f%n", name,
+				sorted[sorted.length / 2] / 1e3, sorted[(int) (sorted.length * 0.9)] / 1e3,
+				sorted[(int) (sorted.length * 0.99)] / 1e3, sorted[sorted.length - 1] / 1e3);
+	}
+}
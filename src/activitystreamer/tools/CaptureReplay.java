@@ -0,0 +1,271 @@
+package activitystreamer.tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import activitystreamer.server.Capture;
+import activitystreamer.util.LatencyHistogram;
+import activitystreamer.util.Message;
+
+/**
+ * Replays the client traffic of one or more capture files, written by a
+ * server started with -cf, against running servers: every captured client
+ * connection is opened again and its inbound frames are sent with the
+ * captured timing, scaled by -x. Several files, one per server of a
+ * captured cluster, replay against the matching ports on a shared clock.
+ * <p>
+ * Response latency matches the frames sent on a connection in order with
+ * the frames that arrive on it afterwards, which is exact for request and
+ * reply and approximate when broadcasts from others are interleaved. It is
+ * measured for the replay and taken from the capture, by the same rule, for
+ * the build that was running then, and both are reported; replaying the
+ * same capture against two builds compares them. Replaying needs servers
+ * that have not seen the capture's registrations yet.
+ * Server links are skipped unless -links is given, in which case incoming
+ * links are replayed as well and the target must use the captured secret.
+ */
+public class CaptureReplay {
+	private static final Logger log = LogManager.getLogger();
+	private static final long QUIET_PERIOD = 1000; // milliseconds without replies that ends a replay
+
+	private static final LatencyHistogram captured = new LatencyHistogram();
+	private static final LatencyHistogram replayed = new LatencyHistogram();
+	private static final AtomicLong framesSent = new AtomicLong();
+	private static final AtomicLong bytesSent = new AtomicLong();
+	private static final AtomicLong framesReceived = new AtomicLong();
+	private static final AtomicLong connections = new AtomicLong();
+	private static final AtomicLong skipped = new AtomicLong();
+	private static volatile long lastReceived;
+
+	private static void help(Options options) {
+		String header = "Replays captured ActivityStream traffic against running servers\n\n";
+		HelpFormatter formatter = new HelpFormatter();
+		formatter.printHelp("ActivityStreamer.CaptureReplay", header, options, "", true);
+		System.exit(-1);
+	}
+
+	public static void main(String[] args) throws Exception {
+		Options options = new Options();
+		options.addOption("f", true, "comma separated capture files");
+		options.addOption("rh", true, "hostname of the servers to replay against");
+		options.addOption("rp", true, "comma separated ports, one per capture file");
+		options.addOption("x", true, "speed relative to the capture, 0 for as fast as possible");
+		options.addOption("links", false, "replay incoming server links as well");
+
+		CommandLineParser parser = new DefaultParser();
+		CommandLine cmd = null;
+		try {
+			cmd = parser.parse(options, args);
+		} catch (ParseException e) {
+			help(options);
+		}
+		if (!cmd.hasOption("f")) {
+			log.error("-f is required");
+			help(options);
+		}
+		String[] files = cmd.getOptionValue("f").split(",");
+		String[] ports = cmd.getOptionValue("rp", "3780").split(",");
+		if (ports.length != files.length && ports.length != 1) {
+			log.error("-rp needs one port, or one per capture file");
+			help(options);
+		}
+		String host = cmd.getOptionValue("rh", "localhost");
+		boolean links = cmd.hasOption("links");
+		double speed;
+		int[] targets = new int[files.length];
+		try {
+			speed = Double.parseDouble(cmd.getOptionValue("x", "1"));
+			for (int i = 0; i < files.length; i++) {
+				targets[i] = Integer.parseInt(ports[ports.length == 1 ? 0 : i].trim());
+			}
+		} catch (NumberFormatException e) {
+			log.error("numeric options require numbers: " + e.getMessage());
+			help(options);
+			return;
+		}
+
+		long start = System.nanoTime();
+		List<Thread> replayers = new ArrayList<>();
+		for (int i = 0; i < files.length; i++) {
+			String file = files[i].trim();
+			int port = targets[i];
+			Thread t = new Thread(() -> {
+				try {
+					replay(file, host, port, speed, links, start);
+				} catch (IOException e) {
+					log.error("replay of " + file + " failed: " + e);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			});
+			t.start();
+			replayers.add(t);
+		}
+		for (Thread t : replayers) {
+			t.join();
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.printf("connections replayed %d, skipped %d%n", connections.get(), skipped.get());
+		System.out.printf("sent %d frames, %.1f MB in %.2f s: %.0f frames/s, %.2f MB/s; received %d frames%n",
+				framesSent.get(), bytesSent.get() / 1e6, seconds, framesSent.get() / seconds,
+				bytesSent.get() / 1e6 / seconds, framesReceived.get());
+		System.out.printf("%-10s %10s %10s %10s %10s%n", "latency", "n", "p50 ms", "p99 ms", "max ms");
+		print("captured", captured);
+		print("replayed", replayed);
+		System.out.printf("change     %10s %+9.1f%% %+9.1f%%%n", "", change(captured.percentile(0.5),
+				replayed.percentile(0.5)), change(captured.percentile(0.99), replayed.percentile(0.99)));
+		System.exit(0);
+	}
+
+	private static void print(String name, LatencyHistogram h) {
+		System.out.printf("%-10s %10d %10.2f %10.2f %10.2f%n", name, h.getCount(), h.percentile(0.5) / 1e3,
+				h.percentile(0.99) / 1e3, h.getMax() / 1e3);
+	}
+
+	private static double change(long before, long after) {
+		return before == 0 ? 0 : 100.0 * (after - before) / before;
+	}
+
+	/**
+	 * A captured connection being replayed. A socket is only opened once the
+	 * connection is known to be one that is replayed, at its first frame.
+	 */
+	private static class Replayed {
+		Socket socket;
+		OutputStream out;
+		boolean decided;
+		// capture times of the captured connection's unanswered frames
+		final Deque<Long> capturedPending = new ArrayDeque<>();
+		// nanoTimes the replayed connection's unanswered frames were sent
+		final Queue<Long> sentPending = new ConcurrentLinkedQueue<>();
+	}
+
+	private static void replay(String file, String host, int port, double speed, boolean links, long start)
+			throws IOException, InterruptedException {
+		Map<Integer, Replayed> open = new HashMap<>();
+		try (Capture.Reader reader = new Capture.Reader(file)) {
+			Capture.Record r;
+			while ((r = reader.next()) != null) {
+				Replayed c = open.computeIfAbsent(r.connection, k -> new Replayed());
+				if (r.type == Capture.CLOSE) {
+					open.remove(r.connection);
+					if (c.socket != null) {
+						c.socket.shutdownOutput(); // the reader closes it at end of stream
+					}
+					continue;
+				}
+				if (r.type == Capture.OPEN) {
+					continue;
+				}
+				if (!c.decided) {
+					c.decided = true;
+					// the server's own outgoing link starts with an outbound AUTHENTICATE
+					boolean link = Message.AUTHENTICATE.equals(Message.peekCommand(r.getPayload()));
+					if (r.type == Capture.INBOUND && (!link || links)) {
+						c.socket = new Socket(host, port);
+						c.socket.setTcpNoDelay(true);
+						c.out = new BufferedOutputStream(c.socket.getOutputStream());
+						startReader(c);
+						connections.incrementAndGet();
+					} else {
+						skipped.incrementAndGet();
+					}
+				}
+				if (c.socket == null) {
+					continue;
+				}
+				if (r.type == Capture.OUTBOUND) {
+					Long sent = c.capturedPending.poll();
+					if (sent != null) {
+						captured.record(r.micros - sent);
+					}
+					continue;
+				}
+				if (speed > 0) {
+					long wait = start + (long) (r.micros * 1000 / speed) - System.nanoTime();
+					if (wait > 0) {
+						Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+					}
+				}
+				byte[] payload = r.getPayloadBytes();
+				c.capturedPending.add(r.micros);
+				c.sentPending.add(System.nanoTime());
+				try {
+					c.out.write(payload);
+					c.out.write('\n');
+					c.out.flush();
+					framesSent.incrementAndGet();
+					bytesSent.addAndGet(payload.length + 1);
+				} catch (IOException e) {
+					log.warn("server closed replayed connection " + r.connection + ": " + e);
+					c.socket.close();
+					c.socket = null;
+				}
+			}
+		}
+		// let the last replies arrive
+		lastReceived = System.currentTimeMillis();
+		while (System.currentTimeMillis() - lastReceived < QUIET_PERIOD) {
+			Thread.sleep(100);
+		}
+		for (Replayed c : open.values()) {
+			if (c.socket != null) {
+				c.socket.close();
+			}
+		}
+	}
+
+	private static void startReader(Replayed c) throws IOException {
+		InputStream in = new BufferedInputStream(c.socket.getInputStream());
+		Socket socket = c.socket;
+		Thread t = new Thread(() -> {
+			try {
+				int b;
+				while ((b = in.read()) >= 0) {
+					if (b != '\n') {
+						continue;
+					}
+					long now = System.nanoTime();
+					framesReceived.incrementAndGet();
+					lastReceived = System.currentTimeMillis();
+					Long sent = c.sentPending.poll();
+					if (sent != null) {
+						replayed.record((now - sent) / 1000);
+					}
+				}
+			} catch (IOException e) {
+				// closed at the end of the replay
+			} finally {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					// already closed
+				}
+			}
+		});
+		t.setDaemon(true);
+		t.start();
+	}
+}
@@ -0,0 +1,335 @@
+package activitystreamer.tools;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.config.Configurator;
+
+import activitystreamer.server.Control;
+import activitystreamer.util.LatencyHistogram;
+import activitystreamer.util.Message;
+import activitystreamer.util.Settings;
+
+/**
+ * Starts clusters of increasing size inside this JVM, drives activity load
+ * through them and reports delivery throughput and propagation latency for
+ * each size. Every node is a separate Control on its own port; anonymous
+ * subscribers on every node count deliveries and publishers attached to
+ * random nodes send activities stamped with their send time. With -mux the
+ * subscribers of a node share one connection, as the sessions of a gateway
+ * would, each on its own channel.
+ */
+public class ClusterBenchmark {
+	private static final Logger log = LogManager.getLogger();
+	private static final String CHAIN = "chain";
+	private static final String BINARY = "binary";
+	private static final String RANDOM = "random";
+
+	private static void help(Options options) {
+		String header = "In-JVM cluster scaling benchmark for the ActivityStream server\n\n";
+		HelpFormatter formatter = new HelpFormatter();
+		formatter.printHelp("ActivityStreamer.ClusterBenchmark", header, options, "", true);
+		System.exit(-1);
+	}
+
+	public static void main(String[] args) throws Exception {
+		Options options = new Options();
+		options.addOption("n", true, "comma separated cluster sizes, between 1 and 64");
+		options.addOption("topo", true, "topology: chain, binary or random");
+		options.addOption("p", true, "first port to listen on");
+		options.addOption("pub", true, "number of publishers");
+		options.addOption("m", true, "activities sent by each publisher");
+		options.addOption("r", true, "activities per second per publisher, 0 for as fast as possible");
+		options.addOption("a", true, "announce interval in milliseconds");
+		options.addOption("bt", true, "rebalancing threshold in hops, 0 keeps the requested topology");
+		options.addOption("ll", true, "link linger in microseconds, 0 sends every broadcast alone");
+		options.addOption("sub", true, "subscriber sessions per node");
+		options.addOption("mux", false, "multiplex the subscribers of a node over one connection");
+
+		CommandLineParser parser = new DefaultParser();
+		CommandLine cmd = null;
+		try {
+			cmd = parser.parse(options, args);
+		} catch (ParseException e) {
+			help(options);
+		}
+
+		String topology = cmd.getOptionValue("topo", BINARY);
+		if (!topology.equals(CHAIN) && !topology.equals(BINARY) && !topology.equals(RANDOM)) {
+			log.error("unknown topology " + topology);
+			help(options);
+		}
+		List<Integer> sizes = new ArrayList<>();
+		int basePort, publishers, messages, rate, subscribers;
+		boolean mux = cmd.hasOption("mux");
+		try {
+			for (String size : cmd.getOptionValue("n", "1,2,4,8,16,32,64").split(",")) {
+				int n = Integer.parseInt(size.trim());
+				if (n < 1 || n > 64) {
+					throw new NumberFormatException("cluster size " + n + " is not between 1 and 64");
+				}
+				sizes.add(n);
+			}
+			basePort = Integer.parseInt(cmd.getOptionValue("p", "5000"));
+			publishers = Integer.parseInt(cmd.getOptionValue("pub", "1"));
+			messages = Integer.parseInt(cmd.getOptionValue("m", "1000"));
+			rate = Integer.parseInt(cmd.getOptionValue("r", "0"));
+			subscribers = Integer.parseInt(cmd.getOptionValue("sub", "1"));
+			if (subscribers < 1) {
+				throw new NumberFormatException("there must be at least one subscriber per node");
+			}
+			Settings.setActivityInterval(Integer.parseInt(cmd.getOptionValue("a", "1000")));
+			Settings.setBalanceThreshold(Integer.parseInt(cmd.getOptionValue("bt", "0")));
+			Settings.setLinkLinger(Long.parseLong(cmd.getOptionValue("ll", "1000")));
+		} catch (NumberFormatException e) {
+			log.error("numeric options require numbers: " + e.getMessage());
+			help(options);
+			return;
+		}
+
+		// per-connection logging would dominate the measurement
+		Configurator.setRootLevel(Level.WARN);
+		System.out.printf("%-6s %-8s %12s %12s %10s %10s %10s %8s%n", "nodes", "topology", "deliveries",
+				"deliv/s", "p50 ms", "p99 ms", "max ms", "lost");
+		int run = 0;
+		for (int n : sizes) {
+			runCluster(n, topology, basePort + 100 * run++, publishers, messages, rate, subscribers, mux);
+		}
+		System.exit(0);
+	}
+
+	private static void runCluster(int n, String topology, int basePort, int publishers, int messages, int rate,
+			int subscribers, boolean mux) throws Exception {
+		List<Control> nodes = new ArrayList<>(n);
+		int[] children = new int[n];
+		Random random = new Random(n);
+		try {
+			for (int i = 0; i < n; i++) {
+				int parent = i == 0 ? -1 : parentOf(i, topology, children, random);
+				Control node = new Control(Settings.genRandomString(), "localhost", basePort + i,
+						parent < 0 ? null : "localhost", parent < 0 ? 0 : basePort + parent);
+				nodes.add(node);
+				if (!node.initiateConnection()) {
+					throw new IOException("node " + i + " failed to join node " + parent);
+				}
+			}
+			awaitLinks(nodes);
+
+			LatencyHistogram latency = new LatencyHistogram();
+			AtomicLong delivered = new AtomicLong();
+			List<Socket> sockets = new ArrayList<>();
+			for (int i = 0; i < n; i++) {
+				if (mux) {
+					sockets.add(subscribeChannels(basePort + i, subscribers, latency, delivered));
+					continue;
+				}
+				for (int j = 0; j < subscribers; j++) {
+					sockets.add(subscribe(basePort + i, latency, delivered));
+				}
+			}
+			// wait for the new loads to be announced, otherwise a publisher may be redirected
+			Thread.sleep(Settings.getActivityInterval() * 2 + 200);
+			List<Thread> senders = new ArrayList<>();
+			for (int p = 0; p < publishers; p++) {
+				Socket s = subscribe(basePort + random.nextInt(n), null, null);
+				sockets.add(s);
+				senders.add(publish(s, messages, rate));
+			}
+
+			long expected = (long) publishers * messages * n * subscribers;
+			long start = System.nanoTime();
+			for (Thread t : senders) {
+				t.start();
+			}
+			long deadline = System.currentTimeMillis() + 60000;
+			long last = -1;
+			long lastChange = System.currentTimeMillis();
+			while (delivered.get() < expected && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+				if (delivered.get() != last) {
+					last = delivered.get();
+					lastChange = System.currentTimeMillis();
+				} else if (System.currentTimeMillis() - lastChange > 5000) {
+					break; // nothing arrived for a while, the rest is lost
+				}
+			}
+			double seconds = (System.nanoTime() - start) / 1e9;
+			System.out.printf("%-6d %-8s %12d %12.0f %10.2f %10.2f %10.2f %8d%n", n, topology, delivered.get(),
+					delivered.get() / seconds, latency.percentile(0.5) / 1e3, latency.percentile(0.99) / 1e3,
+					latency.getMax() / 1e3, expected - delivered.get());
+			for (Socket s : sockets) {
+				s.close();
+			}
+		} finally {
+			for (Control node : nodes) {
+				node.setTerm(true);
+				node.interrupt();
+			}
+			Thread.sleep(200);
+		}
+	}
+
+	/**
+	 * Pick the parent for node i, respecting the limit of two children per
+	 * server.
+	 */
+	private static int parentOf(int i, String topology, int[] children, Random random) {
+		int parent;
+		if (topology.equals(CHAIN)) {
+			parent = i - 1;
+		} else if (topology.equals(BINARY)) {
+			parent = (i - 1) / 2;
+		} else {
+			do {
+				parent = random.nextInt(i);
+			} while (children[parent] >= 2);
+		}
+		children[parent]++;
+		return parent;
+	}
+
+	private static void awaitLinks(List<Control> nodes) throws InterruptedException {
+		if (nodes.size() < 2) {
+			return;
+		}
+		long deadline = System.currentTimeMillis() + 10000;
+		for (Control node : nodes) {
+			while (!node.hasServerLinks() && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+		}
+		// let the first announces go round so every node knows its neighbours
+		Thread.sleep(Settings.getActivityInterval() + 200);
+	}
+
+	/**
+	 * Log in anonymously and start a reader.
+	 */
+	private static Socket subscribe(int port, LatencyHistogram latency, AtomicLong delivered) throws IOException {
+		Socket s = new Socket("localhost", port);
+		s.getOutputStream().write((Message.login() + "\n").getBytes(StandardCharsets.UTF_8));
+		BufferedReader br = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+		br.readLine(); // LOGIN_SUCCESS
+		startReader(port, br, latency, delivered);
+		return s;
+	}
+
+	/**
+	 * Log in the given number of anonymous sessions over one connection,
+	 * on channels 0 and up, and start a reader that counts every broadcast
+	 * once for each channel it fans out to.
+	 */
+	private static Socket subscribeChannels(int port, int sessions, LatencyHistogram latency, AtomicLong delivered)
+			throws IOException {
+		Socket s = new Socket("localhost", port);
+		StringBuilder logins = new StringBuilder();
+		for (int i = 0; i < sessions; i++) {
+			logins.append(Message.channelLogin(i, "anonymous", null, false)).append('\n');
+		}
+		s.getOutputStream().write(logins.toString().getBytes(StandardCharsets.UTF_8));
+		BufferedReader br = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+		for (int i = 0; i < sessions; i++) {
+			br.readLine(); // LOGIN_SUCCESS
+		}
+		startReader(port, br, latency, delivered);
+		return s;
+	}
+
+	/**
+	 * With a histogram the reader records the propagation latency of every
+	 * activity in microseconds, without one it only drains the socket.
+	 */
+	private static void startReader(int port, BufferedReader br, LatencyHistogram latency, AtomicLong delivered) {
+		Thread reader = new Thread(() -> {
+			try {
+				String line;
+				while ((line = br.readLine()) != null) {
+					if (Message.REDIRECT.equals(Message.peekCommand(line))) {
+						log.warn("client on port " + port + " was redirected, results will be incomplete");
+					}
+					if (latency == null) {
+						continue;
+					}
+					int i = line.indexOf("\"sent\":");
+					if (i < 0) {
+						continue;
+					}
+					int j = i + 7;
+					while (j < line.length() && Character.isDigit(line.charAt(j))) {
+						j++;
+					}
+					long sent = Long.parseLong(line.substring(i + 7, j));
+					int copies = fanOut(line);
+					for (int k = 0; k < copies; k++) {
+						latency.record((System.nanoTime() - sent) / 1000);
+					}
+					delivered.addAndGet(copies);
+				}
+			} catch (IOException | NumberFormatException e) {
+				// socket closed at the end of the run
+			}
+		});
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	// the number of channels a broadcast is for, 1 if it is not multiplexed
+	private static int fanOut(String line) {
+		int i = line.indexOf("\"channels\":[");
+		if (i < 0) {
+			return 1;
+		}
+		int copies = 1;
+		for (int j = i + 12; line.charAt(j) != ']'; j++) {
+			if (line.charAt(j) == ',') {
+				copies++;
+			}
+		}
+		return copies;
+	}
+
+	private static Thread publish(Socket s, int messages, int rate) {
+		Thread t = new Thread(() -> {
+			try {
+				OutputStream out = s.getOutputStream();
+				long interval = rate > 0 ? 1000000000L / rate : 0;
+				long next = System.nanoTime();
+				for (int i = 0; i < messages; i++) {
+					if (interval > 0) {
+						next += interval;
+						long wait = next - System.nanoTime();
+						if (wait > 0) {
+							Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+						}
+					}
+					String msg = "{\"command\":\"" + Message.ACTIVITY_MESSAGE
+							+ "\",\"username\":\"anonymous\",\"secret\":\"\",\"activity\":{\"seq\":" + i
+							+ ",\"sent\":" + System.nanoTime() + "}}\n";
+					out.write(msg.getBytes(StandardCharsets.UTF_8));
+				}
+				out.flush();
+			} catch (IOException | InterruptedException e) {
+				log.warn("publisher stopped: " + e);
+			}
+		});
+		t.setDaemon(true);
+		return t;
+	}
+}
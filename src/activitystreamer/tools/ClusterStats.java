@@ -0,0 +1,113 @@
+package activitystreamer.tools;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+
+import activitystreamer.util.Message;
+
+/**
+ * Prints the statistics of a whole cluster, asked of any one of its servers
+ * with STATS_QUERY: the totals and a line per server. With -i it keeps
+ * polling, which the servers answer from their cache within its lifetime.
+ */
+public class ClusterStats {
+	private static final Logger log = LogManager.getLogger();
+
+	private static void help(Options options) {
+		String header = "Prints statistics of an ActivityStream cluster\n\n";
+		HelpFormatter formatter = new HelpFormatter();
+		formatter.printHelp("ActivityStreamer.ClusterStats", header, options, "", true);
+		System.exit(-1);
+	}
+
+	public static void main(String[] args) throws Exception {
+		Options options = new Options();
+		options.addOption("rh", true, "hostname of any server of the cluster");
+		options.addOption("rp", true, "port of that server");
+		options.addOption("s", true, "the cluster's server secret");
+		options.addOption("i", true, "seconds between queries, 0 to query once");
+
+		CommandLineParser parser = new DefaultParser();
+		CommandLine cmd = null;
+		try {
+			cmd = parser.parse(options, args);
+		} catch (ParseException e) {
+			help(options);
+		}
+		String host = cmd.getOptionValue("rh", "localhost");
+		String secret = cmd.getOptionValue("s", "1");
+		int port;
+		double interval;
+		try {
+			port = Integer.parseInt(cmd.getOptionValue("rp", "3780"));
+			interval = Double.parseDouble(cmd.getOptionValue("i", "0"));
+		} catch (NumberFormatException e) {
+			log.error("numeric options require numbers: " + e.getMessage());
+			help(options);
+			return;
+		}
+
+		try (Socket socket = new Socket(host, port)) {
+			PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+			BufferedReader in = new BufferedReader(
+					new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			do {
+				out.println("{\"command\":\"" + Message.STATS_QUERY + "\",\"secret\":\"" + JSONObject.escape(secret)
+						+ "\"}");
+				String line = in.readLine();
+				if (line == null) {
+					log.error("the server closed the connection");
+					System.exit(-1);
+				}
+				JSONObject reply = (JSONObject) new JSONParser().parse(line);
+				if (!Message.STATS_REPLY.equals(reply.get("command"))) {
+					log.error("the server answered: " + line);
+					System.exit(-1);
+				}
+				print(reply);
+				if (interval > 0) {
+					Thread.sleep((long) (interval * 1000));
+				}
+			} while (interval > 0);
+		} catch (IOException e) {
+			log.error("failed to query " + host + ":" + port + ": " + e);
+			System.exit(-1);
+		}
+	}
+
+	private static void print(JSONObject reply) {
+		JSONObject t = (JSONObject) reply.get("totals");
+		JSONObject tw = (JSONObject) t.get("queue_wait_us");
+		System.out.printf("%d servers (%s missing), %s connections, %s sessions, %s users, %s msg/s, "
+				+ "backlog %s, max score %.1f, queue wait p99 %s us, %s ms old%n", t.get("servers"),
+				reply.get("missing"), t.get("connections"), t.get("sessions"), t.get("users"),
+				t.get("messages_per_second"), t.get("backlog"), ((Number) t.get("max_score")).doubleValue(),
+				tw.get("worst_p99"), reply.get("age"));
+		System.out.printf("%-26s %-21s %6s %6s %6s %7s %8s %6s %8s%n", "id", "address", "conns", "sess", "users",
+				"msg/s", "backlog", "score", "p99 us");
+		for (Object o : (JSONArray) reply.get("nodes")) {
+			JSONObject n = (JSONObject) o;
+			JSONObject w = (JSONObject) n.get("queue_wait_us");
+			System.out.printf("%-26s %-21s %6s %6s %6s %7s %8s %6.1f %8s%n", n.get("id"), n.get("address"),
+					n.get("connections"), n.get("sessions"), n.get("users"), n.get("messages_per_second"),
+					n.get("backlog"), ((Number) n.get("score")).doubleValue(), w.get("p99"));
+		}
+		System.out.println();
+	}
+}
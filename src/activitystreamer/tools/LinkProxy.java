@@ -0,0 +1,454 @@
+package activitystreamer.tools;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * TCP proxy that makes loopback links behave like WAN links, for running
+ * the tree under realistic conditions. Start a proxy in front of a server
+ * and point the joining server's -rh/-rp at it:
+ *
+ * <pre>
+ * LinkProxy -l 5001:localhost:4001 -d 40 -j 10 -bw 1000000
+ * Server -lp 4002 -rh localhost -rp 5001
+ * </pre>
+ * <p>
+ * Each direction of each proxied connection delays data by the latency plus
+ * a uniform jitter, without reordering it as TCP would not, and paces it
+ * to the bandwidth cap. A stall holds all data of a link for a while, as a
+ * path that silently drops packets would, and a reset closes its
+ * connections. Stalls and resets happen at random with -st and -rs, and a
+ * script changes any of these over time, one step per line:
+ *
+ * <pre>
+ * # milliseconds  link (index of -l, or *)  settings
+ * 0      *  latency=20 jitter=5
+ * 5000   0  stall=3000
+ * 10000  1  reset
+ * 15000  *  bandwidth=50000 latency=150
+ * </pre>
+ * <p>
+ * Broadcast and lock traffic run through unchanged, so the benchmarks and
+ * clients can drive them while the script plays.
+ */
+public class LinkProxy {
+	private static final Logger log = LogManager.getLogger();
+	private static final int CHUNK = 16384;
+
+	private static void help(Options options) {
+		String header = "Link impairment proxy for testing the ActivityStream tree\n\n";
+		HelpFormatter formatter = new HelpFormatter();
+		formatter.printHelp("ActivityStreamer.LinkProxy", header, options, "", true);
+		System.exit(-1);
+	}
+
+	public static void main(String[] args) throws Exception {
+		Options options = new Options();
+		options.addOption("l", true, "comma separated links, each listenport:targethost:targetport");
+		options.addOption("d", true, "one-way latency in milliseconds");
+		options.addOption("j", true, "jitter in milliseconds, added to or taken from the latency");
+		options.addOption("bw", true, "bandwidth per direction in bytes per second, 0 for no cap");
+		options.addOption("st", true, "mean seconds between random stalls, 0 for none");
+		options.addOption("sd", true, "duration of a random stall in milliseconds");
+		options.addOption("rs", true, "mean seconds between random resets, 0 for none");
+		options.addOption("s", true, "scenario script");
+		options.addOption("seed", true, "seed for random stalls and resets");
+
+		CommandLineParser parser = new DefaultParser();
+		CommandLine cmd = null;
+		try {
+			cmd = parser.parse(options, args);
+		} catch (ParseException e) {
+			help(options);
+		}
+		if (!cmd.hasOption("l")) {
+			log.error("-l is required");
+			help(options);
+		}
+
+		List<Link> links = new ArrayList<>();
+		double stallEvery, resetEvery;
+		long stallFor;
+		Random random;
+		try {
+			for (String spec : cmd.getOptionValue("l").split(",")) {
+				String[] parts = spec.trim().split(":");
+				if (parts.length != 3) {
+					throw new NumberFormatException("link " + spec + " is not listenport:targethost:targetport");
+				}
+				Link link = new Link(links.size(), Integer.parseInt(parts[0]), parts[1], Integer.parseInt(parts[2]));
+				link.latency = Long.parseLong(cmd.getOptionValue("d", "0"));
+				link.jitter = Long.parseLong(cmd.getOptionValue("j", "0"));
+				link.bandwidth = Long.parseLong(cmd.getOptionValue("bw", "0"));
+				links.add(link);
+			}
+			stallEvery = Double.parseDouble(cmd.getOptionValue("st", "0"));
+			stallFor = Long.parseLong(cmd.getOptionValue("sd", "2000"));
+			resetEvery = Double.parseDouble(cmd.getOptionValue("rs", "0"));
+			random = cmd.hasOption("seed") ? new Random(Long.parseLong(cmd.getOptionValue("seed"))) : new Random();
+		} catch (NumberFormatException e) {
+			log.error("numeric options require numbers: " + e.getMessage());
+			help(options);
+			return;
+		}
+		List<Step> script = new ArrayList<>();
+		if (cmd.hasOption("s")) {
+			try {
+				script = readScript(cmd.getOptionValue("s"), links.size());
+			} catch (IOException | IllegalArgumentException e) {
+				log.error("failed to read script " + cmd.getOptionValue("s") + ": " + e.getMessage());
+				help(options);
+			}
+		}
+
+		for (Link link : links) {
+			link.start();
+			log.info("link " + link.index + ": " + link.listenPort + " -> " + link.host + ":" + link.port);
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> report(links)));
+
+		long start = System.currentTimeMillis();
+		long nextStall = next(random, stallEvery, start);
+		long nextReset = next(random, resetEvery, start);
+		long nextReport = start + 10000;
+		int s = 0;
+		while (true) {
+			long now = System.currentTimeMillis();
+			while (s < script.size() && script.get(s).at <= now - start) {
+				Step step = script.get(s++);
+				for (Link link : links) {
+					if (step.link < 0 || step.link == link.index) {
+						step.apply(link);
+					}
+				}
+				log.info("step at " + step.at + " ms: " + step.text);
+				report(links);
+			}
+			if (now >= nextStall) {
+				Link link = links.get(random.nextInt(links.size()));
+				log.info("random stall of link " + link.index + " for " + stallFor + " ms");
+				link.stall(stallFor);
+				nextStall = next(random, stallEvery, now);
+			}
+			if (now >= nextReset) {
+				Link link = links.get(random.nextInt(links.size()));
+				log.info("random reset of link " + link.index);
+				link.reset();
+				nextReset = next(random, resetEvery, now);
+			}
+			if (now >= nextReport) {
+				report(links);
+				nextReport = now + 10000;
+			}
+			Thread.sleep(10);
+		}
+	}
+
+	// exponentially distributed, so random events form a Poisson process
+	private static long next(Random random, double meanSeconds, long now) {
+		if (meanSeconds <= 0) {
+			return Long.MAX_VALUE;
+		}
+		return now + (long) (-Math.log(1 - random.nextDouble()) * meanSeconds * 1000);
+	}
+
+	private static void report(List<Link> links) {
+		for (Link link : links) {
+			System.out.printf("link %d: %d connections, %d resets, %d bytes down, %d bytes up; latency %d ms, "
+					+ "jitter %d ms, bandwidth %d B/s%n", link.index, link.connections.get(), link.resets.get(),
+					link.down.get(), link.up.get(), link.latency, link.jitter, link.bandwidth);
+		}
+	}
+
+	private static List<Step> readScript(String file, int links) throws IOException {
+		List<Step> steps = new ArrayList<>();
+		try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+			String line;
+			while ((line = br.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				String[] words = line.split("\\s+");
+				if (words.length < 3) {
+					throw new IllegalArgumentException("step needs a time, a link and a setting: " + line);
+				}
+				Step step = new Step(line, Long.parseLong(words[0]), words[1].equals("*") ? -1
+						: Integer.parseInt(words[1]));
+				if (step.link >= links) {
+					throw new IllegalArgumentException("no link " + step.link + ": " + line);
+				}
+				for (int i = 2; i < words.length; i++) {
+					step.settings.add(words[i]);
+				}
+				step.apply(null); // validates
+				steps.add(step);
+			}
+		}
+		steps.sort((a, b) -> Long.compare(a.at, b.at));
+		return steps;
+	}
+
+	/**
+	 * One line of a script.
+	 */
+	private static class Step {
+		final String text;
+		final long at;
+		final int link;
+		final List<String> settings = new ArrayList<>();
+
+		Step(String text, long at, int link) {
+			this.text = text;
+			this.at = at;
+			this.link = link;
+		}
+
+		// a null link only checks the settings
+		void apply(Link target) {
+			for (String setting : settings) {
+				String[] kv = setting.split("=", 2);
+				if (kv[0].equals("reset") && kv.length == 1) {
+					if (target != null) {
+						target.reset();
+					}
+					continue;
+				}
+				if (kv.length != 2) {
+					throw new IllegalArgumentException("setting " + setting + " is not name=value");
+				}
+				long value = Long.parseLong(kv[1]);
+				switch (kv[0]) {
+					case "latency":
+						if (target != null) {
+							target.latency = value;
+						}
+						break;
+					case "jitter":
+						if (target != null) {
+							target.jitter = value;
+						}
+						break;
+					case "bandwidth":
+						if (target != null) {
+							target.bandwidth = value;
+						}
+						break;
+					case "stall":
+						if (target != null) {
+							target.stall(value);
+						}
+						break;
+					default:
+						throw new IllegalArgumentException("unknown setting " + kv[0]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A listening port and the connections proxied through it.
+	 */
+	private static class Link extends Thread {
+		final int index;
+		final int listenPort;
+		final String host;
+		final int port;
+		volatile long latency; // milliseconds
+		volatile long jitter; // milliseconds
+		volatile long bandwidth; // bytes per second, 0 for no cap
+		volatile long stalledUntil; // currentTimeMillis
+		final List<Socket> sockets = new CopyOnWriteArrayList<>();
+		final AtomicLong connections = new AtomicLong();
+		final AtomicLong resets = new AtomicLong();
+		final AtomicLong down = new AtomicLong(); // towards the server listened for
+		final AtomicLong up = new AtomicLong();
+
+		Link(int index, int listenPort, String host, int port) {
+			super("link-" + index);
+			this.index = index;
+			this.listenPort = listenPort;
+			this.host = host;
+			this.port = port;
+			setDaemon(true);
+		}
+
+		void stall(long millis) {
+			stalledUntil = Math.max(stalledUntil, System.currentTimeMillis() + millis);
+		}
+
+		void reset() {
+			resets.incrementAndGet();
+			for (Socket s : sockets) {
+				try {
+					s.setSoLinger(true, 0); // RST rather than FIN
+					s.close();
+				} catch (IOException e) {
+					// already closed
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+			try (ServerSocket server = new ServerSocket()) {
+				server.setReuseAddress(true);
+				server.bind(new InetSocketAddress(listenPort));
+				while (true) {
+					Socket in = server.accept();
+					Socket out;
+					try {
+						out = new Socket(host, port);
+					} catch (IOException e) {
+						log.warn("link " + index + " failed to reach " + host + ":" + port + ": " + e);
+						in.close();
+						continue;
+					}
+					in.setTcpNoDelay(true);
+					out.setTcpNoDelay(true);
+					sockets.add(in);
+					sockets.add(out);
+					connections.incrementAndGet();
+					new Pipe(this, in, out, down).start();
+					new Pipe(this, out, in, up).start();
+				}
+			} catch (IOException e) {
+				log.fatal("link " + index + " failed to listen on " + listenPort + ": " + e);
+				System.exit(-1);
+			}
+		}
+	}
+
+	/**
+	 * One direction of a proxied connection: a reader stamps each chunk with
+	 * the time it may leave, and the writer holds it until then.
+	 */
+	private static class Pipe {
+		private static final byte[] END = new byte[0];
+		private final Link link;
+		private final Socket from;
+		private final Socket to;
+		private final AtomicLong counter;
+		private final BlockingQueue<Chunk> chunks = new LinkedBlockingQueue<>();
+
+		private static class Chunk {
+			final byte[] data;
+			final long due; // currentTimeMillis
+
+			Chunk(byte[] data, long due) {
+				this.data = data;
+				this.due = due;
+			}
+		}
+
+		Pipe(Link link, Socket from, Socket to, AtomicLong counter) {
+			this.link = link;
+			this.from = from;
+			this.to = to;
+			this.counter = counter;
+		}
+
+		void start() {
+			Thread reader = new Thread(this::read, "link-" + link.index + "-read");
+			Thread writer = new Thread(this::write, "link-" + link.index + "-write");
+			reader.setDaemon(true);
+			writer.setDaemon(true);
+			reader.start();
+			writer.start();
+		}
+
+		private void read() {
+			byte[] buf = new byte[CHUNK];
+			long lastDue = 0;
+			try {
+				InputStream in = from.getInputStream();
+				int n;
+				while ((n = in.read(buf)) > 0) {
+					long delay = link.latency;
+					if (link.jitter > 0) {
+						delay += ThreadLocalRandom.current().nextLong(-link.jitter, link.jitter + 1);
+					}
+					// TCP delivers in order, so a chunk never overtakes the one before
+					lastDue = Math.max(lastDue, System.currentTimeMillis() + Math.max(0, delay));
+					byte[] data = new byte[n];
+					System.arraycopy(buf, 0, data, 0, n);
+					chunks.add(new Chunk(data, lastDue));
+				}
+			} catch (IOException e) {
+				// reset or closed by the other pipe
+			}
+			chunks.add(new Chunk(END, lastDue));
+		}
+
+		private void write() {
+			long nextFree = 0; // nanoTime the bandwidth cap lets the next chunk go
+			try {
+				OutputStream out = to.getOutputStream();
+				while (true) {
+					Chunk chunk = chunks.take();
+					sleepUntil(chunk.due);
+					while (System.currentTimeMillis() < link.stalledUntil) {
+						sleepUntil(link.stalledUntil);
+					}
+					if (chunk.data == END) {
+						break;
+					}
+					if (link.bandwidth > 0) {
+						nextFree = Math.max(nextFree, System.nanoTime())
+								+ chunk.data.length * 1000000000L / link.bandwidth;
+						long wait = nextFree - System.nanoTime();
+						if (wait > 0) {
+							Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+						}
+					}
+					out.write(chunk.data);
+					out.flush();
+					counter.addAndGet(chunk.data.length);
+				}
+			} catch (IOException | InterruptedException e) {
+				// reset or closed by the other pipe
+			}
+			close(from);
+			close(to);
+		}
+
+		private void close(Socket s) {
+			link.sockets.remove(s);
+			try {
+				s.close();
+			} catch (IOException e) {
+				// already closed
+			}
+		}
+
+		private static void sleepUntil(long millis) throws InterruptedException {
+			long wait = millis - System.currentTimeMillis();
+			if (wait > 0) {
+				Thread.sleep(wait);
+			}
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package activitystreamer.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared pool of byte arrays in power-of-two sizes. Connections come and go
+ * and large messages are rare, so reusing their buffers saves allocating
+ * them again. Arrays above MAX_POOLED_SIZE are never kept, and the idle
+ * arrays together hold at most MAX_POOLED_BYTES; the rest are left to the
+ * garbage collector, which bounds what the pool itself holds however many
+ * connections return large buffers.
+ */
+public final class BufferPool {
+    private static final int MIN_SHIFT = 12; // 4 KB
+    private static final int MAX_POOLED_SHIFT = 20; // 1 MB
+    private static final int MAX_POOLED_SIZE = 1 << MAX_POOLED_SHIFT;
+    private static final long MAX_POOLED_BYTES = 32L << 20;
+    private static final Queue<byte[]>[] FREE = newQueues(MAX_POOLED_SHIFT - MIN_SHIFT + 1);
+    private static final AtomicLong IDLE_BYTES = new AtomicLong();
+
+    private BufferPool() {
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Queue<byte[]>[] newQueues(int n) {
+        Queue<byte[]>[] queues = (Queue<byte[]>[]) new Queue<?>[n];
+        for (int i = 0; i < n; i++) {
+            queues[i] = new ConcurrentLinkedQueue<>();
+        }
+        return queues;
+    }
+
+    /**
+     * @return an array of at least size bytes, with undefined contents;
+     * past MAX_POOLED_SIZE, which is never pooled, exactly size bytes
+     */
+    public static byte[] take(int size) {
+        if (size > MAX_POOLED_SIZE) {
+            return new byte[size];
+        }
+        int c = classOf(size);
+        byte[] buf = FREE[c].poll();
+        if (buf != null) {
+            IDLE_BYTES.addAndGet(-buf.length);
+            return buf;
+        }
+        return new byte[1 << (c + MIN_SHIFT)];
+    }
+
+    /**
+     * Return an array obtained from take(); the caller must not use it again.
+     */
+    public static void give(byte[] buf) {
+        if (buf.length > MAX_POOLED_SIZE) {
+            return;
+        }
+        int c = classOf(buf.length);
+        if (buf.length != 1 << (c + MIN_SHIFT)) {
+            return; // not one of ours
+        }
+        if (IDLE_BYTES.addAndGet(buf.length) <= MAX_POOLED_BYTES) {
+            FREE[c].add(buf);
+        } else {
+            IDLE_BYTES.addAndGet(-buf.length);
+        }
+    }
+
+    private static int classOf(int size) {
+        if (size <= 1 << MIN_SHIFT) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+}
@@ -0,0 +1,144 @@
+package activitystreamer.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Splits a byte stream into newline-terminated frames. The frame is found
+ * in a pooled byte buffer and only decoded when {@link #text()} is called,
+ * so it is never copied into a char buffer first. A frame longer than the
+ * limit fails with {@link FrameTooLongException} as soon as the limit is
+ * passed, so a peer that never sends a newline costs at most the limit.
+ * The buffer grows for a large frame and shrinks back once it is consumed.
+ * A frame ends at '\n'; a '\r' just before it is dropped.
+ * <p>
+ * Not thread safe, meant for a connection's reader thread.
+ */
+public class LineFramer {
+    private static final int INITIAL_SIZE = 8192;
+    private final InputStream in;
+    private final int maxFrame;
+    private byte[] buf = BufferPool.take(INITIAL_SIZE);
+    private int start; // first unread byte
+    private int end; // one past the last byte read
+    private int scanned; // bytes from start already searched for '\n'
+    private int frameStart;
+    private int frameLength;
+    private String text;
+
+    public static class FrameTooLongException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public FrameTooLongException(int limit) {
+            super("frame longer than " + limit + " bytes");
+        }
+    }
+
+    /**
+     * @param maxFrame longest frame accepted, without its terminator
+     */
+    public LineFramer(InputStream in, int maxFrame) {
+        this.in = in;
+        this.maxFrame = maxFrame;
+    }
+
+    /**
+     * Read up to the end of the next frame.
+     *
+     * @return false at the end of the stream
+     * @throws FrameTooLongException if the frame passes the limit
+     */
+    public boolean next() throws IOException {
+        text = null;
+        if (start == end && buf.length > INITIAL_SIZE) {
+            // the large frame has been consumed
+            BufferPool.give(buf);
+            buf = BufferPool.take(INITIAL_SIZE);
+            start = end = 0;
+        }
+        while (true) {
+            for (int i = start + scanned; i < end; i++) {
+                if (buf[i] == '\n') {
+                    frameStart = start;
+                    frameLength = i - start;
+                    if (frameLength > 0 && buf[i - 1] == '\r') {
+                        frameLength--;
+                    }
+                    if (frameLength > maxFrame) {
+                        throw new FrameTooLongException(maxFrame);
+                    }
+                    start = i + 1;
+                    scanned = 0;
+                    return true;
+                }
+            }
+            scanned = end - start;
+            if (scanned > maxFrame) {
+                throw new FrameTooLongException(maxFrame);
+            }
+            if (end == buf.length) {
+                makeRoom();
+            }
+            int n = in.read(buf, end, buf.length - end);
+            if (n < 0) {
+                return false;
+            }
+            end += n;
+        }
+    }
+
+    // compact, or move to a larger buffer when the frame fills this one
+    private void makeRoom() {
+        int pending = end - start;
+        byte[] target = buf;
+        if (start == 0) {
+            // doubling, in long as the buffer may be past 1 GB, up to room for the limit plus the '\r'
+            // and '\n' that may follow it; sizes past the pool's largest class are taken exactly
+            target = BufferPool.take((int) Math.min(buf.length * 2L, maxFrame + 2L));
+        }
+        System.arraycopy(buf, start, target, 0, pending);
+        if (target != buf) {
+            BufferPool.give(buf);
+            buf = target;
+        }
+        start = 0;
+        end = pending;
+    }
+
+    /**
+     * @return the current frame decoded as UTF-8
+     */
+    public String text() {
+        if (text == null) {
+            text = new String(buf, frameStart, frameLength, StandardCharsets.UTF_8);
+        }
+        return text;
+    }
+
+    /**
+     * @return the current frame's bytes, valid from {@link #offset()} for
+     * {@link #length()} bytes until the next call to next()
+     */
+    public byte[] bytes() {
+        return buf;
+    }
+
+    public int offset() {
+        return frameStart;
+    }
+
+    public int length() {
+        return frameLength;
+    }
+
+    /**
+     * Give the buffer back to the pool; the framer must not be used again.
+     */
+    public void release() {
+        if (buf != null) {
+            BufferPool.give(buf);
+            buf = null;
+        }
+    }
+}
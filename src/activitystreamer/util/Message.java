@@ -1,10 +1,20 @@
 package activitystreamer.util;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
 import activitystreamer.server.Connection;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
 
 public class Message {
+    private static final Logger log = LogManager.getLogger();
     public static final String AUTHENTICATE = "AUTHENTICATE";
     public static final String INVALID_MESSAGE = "INVALID_MESSAGE";
     public static final String AUTHENTICATION_FAIL = "AUTHENTICATION_FAIL";
@@ -22,85 +32,324 @@ public class Message {
     public static final String LOCK_REQUEST = "LOCK_REQUEST";
     public static final String LOCK_DENIED = "LOCK_DENIED";
     public static final String LOCK_ALLOWED = "LOCK_ALLOWED";
+    public static final String USER_SNAPSHOT = "USER_SNAPSHOT";
+    public static final String USER_SNAPSHOT_END = "USER_SNAPSHOT_END";
+    public static final String DIRECTORY_REQUEST = "DIRECTORY_REQUEST";
+    public static final String DIRECTORY_REPLY = "DIRECTORY_REPLY";
+    // no longer sent, still accepted from servers that predate their removal
+    public static final String BLOOM_DELTA = "BLOOM_DELTA";
+    public static final String BLOOM_FILTER = "BLOOM_FILTER";
+    public static final String ACTIVITY_BATCH = "ACTIVITY_BATCH";
+    public static final String ACTIVITY_BROADCAST_BATCH = "ACTIVITY_BROADCAST_BATCH";
+    public static final String ACTIVITY_FRAME = "ACTIVITY_FRAME";
+    public static final String USER_ONLINE = "USER_ONLINE";
+    public static final String USER_OFFLINE = "USER_OFFLINE";
+    public static final String STATS_QUERY = "STATS_QUERY";
+    public static final String STATS_REPLY = "STATS_REPLY";
+    public static final String STATS_REQUEST = "STATS_REQUEST";
+    public static final String STATS_RESPONSE = "STATS_RESPONSE";
+    public static final String SESSION = "SESSION";
+    public static final String RESUME = "RESUME";
+    public static final String SESSION_SYNC = "SESSION_SYNC";
+    private static final String[] COMMANDS = {AUTHENTICATE, INVALID_MESSAGE, AUTHENTICATION_FAIL, LOGIN,
+            LOGIN_SUCCESS, REDIRECT, LOGIN_FAILED, LOGOUT, ACTIVITY_MESSAGE, SERVER_ANNOUNCE, ACTIVITY_BROADCAST,
+            REGISTER, REGISTER_FAILED, REGISTER_SUCCESS, LOCK_REQUEST, LOCK_DENIED, LOCK_ALLOWED, USER_SNAPSHOT,
+            USER_SNAPSHOT_END, DIRECTORY_REQUEST, DIRECTORY_REPLY,
+            BLOOM_DELTA, BLOOM_FILTER, ACTIVITY_BATCH, ACTIVITY_BROADCAST_BATCH,
+            ACTIVITY_FRAME, USER_ONLINE, USER_OFFLINE, STATS_QUERY, STATS_REPLY, STATS_REQUEST, STATS_RESPONSE,
+            SESSION, RESUME, SESSION_SYNC};
 
-    public synchronized static boolean invalidMsg(Connection con, String info) {
-        JSONObject json = new JSONObject();
-        json.put("command", Message.INVALID_MESSAGE);
-        json.put("info", info);
-        con.writeMsg(json.toJSONString());
-        System.out.println("invalid msg so I closed");
+    /**
+     * Find the top-level "command" of a JSON message without parsing it. Only
+     * tracks nesting and string boundaries, so a nested object with its own
+     * "command" key is not mistaken for the message's. Known commands are
+     * returned as the shared constants.
+     *
+     * @param msg
+     * @return the command, or null if there is none or the message is malformed
+     */
+    public static String peekCommand(String msg) {
+        int depth = 0;
+        int len = msg.length();
+        for (int i = 0; i < len; i++) {
+            char c = msg.charAt(i);
+            if (c == '"') {
+                int end = endOfString(msg, i);
+                if (end < 0) {
+                    return null;
+                }
+                if (depth == 1 && msg.startsWith("command", i + 1) && end == i + 8) {
+                    int v = skipSpace(msg, end + 1);
+                    if (v >= len || msg.charAt(v) != ':') {
+                        return null;
+                    }
+                    v = skipSpace(msg, v + 1);
+                    if (v >= len || msg.charAt(v) != '"') {
+                        return null;
+                    }
+                    int vEnd = endOfString(msg, v);
+                    if (vEnd < 0) {
+                        return null;
+                    }
+                    for (String command : COMMANDS) {
+                        if (command.length() == vEnd - v - 1 && msg.startsWith(command, v + 1)) {
+                            return command;
+                        }
+                    }
+                    return msg.substring(v + 1, vEnd);
+                }
+                i = end;
+            } else if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                depth--;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Split an ACTIVITY_FRAME, as written by Connection, back into the
+     * messages it carries, without parsing them.
+     *
+     * @return the messages, or null if the frame is not in that form
+     */
+    public static List<String> unframe(String frame) {
+        String open = "{\"command\":\"" + ACTIVITY_FRAME + "\",\"messages\":[";
+        if (!frame.startsWith(open) || !frame.endsWith("]}")) {
+            return null;
+        }
+        List<String> messages = new ArrayList<>();
+        int end = frame.length() - 2;
+        int start = open.length();
+        int depth = 0;
+        for (int i = start; i < end; i++) {
+            char c = frame.charAt(i);
+            if (c == '"') {
+                i = endOfString(frame, i);
+                if (i < 0) {
+                    return null;
+                }
+            } else if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                if (--depth == 0) {
+                    messages.add(frame.substring(start, i + 1));
+                    start = i + 2; // past the comma
+                }
+            }
+        }
+        return depth == 0 ? messages : null;
+    }
+
+    // index of the quote closing the string that opens at start, or -1
+    private static int endOfString(String msg, int start) {
+        for (int i = start + 1; i < msg.length(); i++) {
+            char c = msg.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '"') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int skipSpace(String msg, int i) {
+        while (i < msg.length() && Character.isWhitespace(msg.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    public static boolean invalidMsg(Connection con, String info) {
+        MessageEncoder.get().begin(INVALID_MESSAGE).field("info", info).end().writeTo(con);
+        log.debug("invalid msg so I closed");
         con.closeCon();
         return true;
     }
 
-    public synchronized static void authenticate(Connection con) {
-        JSONObject json = new JSONObject();
-        json.put("command", Message.AUTHENTICATE);
-        json.put("secret", Settings.getServerSecret());
-        con.writeMsg(json.toJSONString());
+    /**
+     * @param snapshot true to ask the parent for its registered users
+     */
+    public static void authenticate(Connection con, String secret, String id, boolean snapshot) {
+        MessageEncoder encoder = MessageEncoder.get().begin(AUTHENTICATE).field("secret", secret).field("id", id);
+        if (snapshot) {
+            encoder.rawField("snapshot", "true");
+        }
+        encoder.end().writeTo(con);
     }
 
-    public synchronized static boolean authenticationFail(Connection con, String info) {
-        JSONObject json = new JSONObject();
-        json.put("command", Message.AUTHENTICATION_FAIL);
-        json.put("info", info);
-        con.writeMsg(json.toJSONString());
-        System.out.println("authenticationFail so I closed");
+    public static boolean authenticationFail(Connection con, String info) {
+        MessageEncoder.get().begin(AUTHENTICATION_FAIL).field("info", info).end().writeTo(con);
+        log.debug("authenticationFail so I closed");
         con.closeCon();
         return true;
     }
 
-    public synchronized static void serverAnnounce(Connection con, int load) {
-        JSONObject json = new JSONObject();
-        json.put("command", Message.SERVER_ANNOUNCE);
-        json.put("id", Settings.getServerId());
-        json.put("load", load);
-        json.put("hostname", Settings.getLocalHostname());
-        json.put("port", Settings.getLocalPort());
-        con.writeMsg(json.toJSONString());
+    /**
+     * @param parent id of the sender's parent, null if the sender is the root
+     * @param size   servers in the sender's subtree, including the sender
+     * @param depth  hops from the sender to the root
+     * @param score  composite load score, see LoadScore; load stays the
+     *               connection count for servers that do not know it
+     */
+    public static void serverAnnounce(Connection con, String id, int load, double score, String hostname,
+            int port, String parent, int size, int depth) {
+        MessageEncoder encoder = MessageEncoder.get().begin(SERVER_ANNOUNCE)
+                .field("id", id)
+                .field("load", load)
+                .field("score", score)
+                .field("hostname", hostname)
+                .field("port", port)
+                .field("size", size)
+                .field("depth", depth);
+        if (parent != null) {
+            encoder.field("parent", parent);
+        }
+        encoder.end().writeTo(con);
     }
 
-    public synchronized static boolean lockRequest(Connection con, String username, String secret) {
-        JSONObject json = new JSONObject();
-        json.put("command", Message.LOCK_REQUEST);
-        json.put("username", username);
-        json.put("secret", secret);
-        con.writeMsg(json.toJSONString());
+    /**
+     * Write up to max users as one USER_SNAPSHOT chunk:
+     * {"command":"USER_SNAPSHOT","users":[["name","secret"],...]}
+     *
+     * @return number of users written
+     */
+    public static int userSnapshot(Connection con, Iterator<Map.Entry<String, String>> users, int max) {
+        MessageEncoder encoder = MessageEncoder.get().begin(USER_SNAPSHOT).beginArray("users");
+        int n = 0;
+        while (n < max && users.hasNext()) {
+            Map.Entry<String, String> user = users.next();
+            encoder.pair(user.getKey(), user.getValue());
+            n++;
+        }
+        // sent from a thread of its own, which may wait for the child to keep up
+        encoder.endArray().end().writeBulkWaitingTo(con);
+        return n;
+    }
+
+    public static void userSnapshotEnd(Connection con, long count) {
+        // same lane as the chunks, so it cannot overtake them
+        MessageEncoder.get().begin(USER_SNAPSHOT_END).field("count", count).end().writeBulkWaitingTo(con);
+    }
+
+    /**
+     * Ask the server with id "to" to act on its part of the partitioned user
+     * directory; relayed hop by hop over the tree.
+     *
+     * @param op register, replicate or login
+     */
+    public static void directoryRequest(Connection con, String to, String from, long rid, String op,
+            String username, String secret) {
+        MessageEncoder.get().begin(DIRECTORY_REQUEST)
+                .field("to", to)
+                .field("from", from)
+                .field("rid", rid)
+                .field("op", op)
+                .field("username", username)
+                .field("secret", secret)
+                .end().writeTo(con);
+    }
+
+    /**
+     * Hand a user over to a new owner after the ring has changed, in the bulk
+     * lane behind the link's other traffic, waiting while it is full. A
+     * non-zero rid asks the owner to acknowledge with a DIRECTORY_REPLY.
+     */
+    public static void directoryHandOff(Connection con, String to, String from, long rid, String username,
+            String secret) {
+        MessageEncoder.get().begin(DIRECTORY_REQUEST)
+                .field("to", to)
+                .field("from", from)
+                .field("rid", rid)
+                .field("op", "replicate")
+                .field("username", username)
+                .field("secret", secret)
+                .end().writeBulkWaitingTo(con);
+    }
+
+    public static void directoryReply(Connection con, String to, long rid, String result) {
+        MessageEncoder.get().begin(DIRECTORY_REPLY).field("to", to).field("rid", rid).field("result", result).end()
+                .writeTo(con);
+    }
+
+    /**
+     * A registered user has logged in (USER_ONLINE) or has no session left
+     * (USER_OFFLINE) at the server, flooded through the tree for the
+     * offline mailboxes.
+     */
+    public static void userPresence(Connection con, String command, String username, String server) {
+        // in the bulk lane, so it stays in order with the broadcasts the mailboxes count from
+        MessageEncoder.get().begin(command).field("username", username).field("server", server).end()
+                .writeBulkTo(con);
+    }
+
+    /**
+     * Ask a server for statistics of the whole cluster, authenticated with
+     * the server secret.
+     */
+    public static void statsQuery(Connection con, String secret) {
+        MessageEncoder.get().begin(STATS_QUERY).field("secret", secret).end().writeTo(con);
+    }
+
+    /**
+     * @param nodes   JSON array of per-server statistics
+     * @param totals  JSON object of the cluster totals
+     * @param missing servers known from their announces that did not answer
+     * @param age     milliseconds since the statistics were collected
+     */
+    public static void statsReply(Connection con, String nodes, String totals, int missing, long age) {
+        MessageEncoder.get().begin(STATS_REPLY)
+                .rawField("totals", totals)
+                .field("missing", missing)
+                .field("age", age)
+                .rawField("nodes", nodes)
+                .end().writeBulkTo(con);
+    }
+
+    /**
+     * Ask a neighbour for the statistics of its side of the tree.
+     *
+     * @param timeout milliseconds the neighbour may wait for its own side
+     */
+    public static void statsRequest(Connection con, long rid, long timeout) {
+        MessageEncoder.get().begin(STATS_REQUEST).field("rid", rid).field("timeout", timeout).end().writeTo(con);
+    }
+
+    public static void statsResponse(Connection con, long rid, String nodes) {
+        MessageEncoder.get().begin(STATS_RESPONSE)
+                .field("rid", rid)
+                .rawField("nodes", nodes)
+                .end().writeBulkTo(con);
+    }
+
+    public static boolean lockRequest(Connection con, String username, String secret) {
+        MessageEncoder.get().begin(LOCK_REQUEST).field("username", username).field("secret", secret).end()
+                .writeTo(con);
         return false;
     }
 
-    public synchronized static boolean lockDenied(Connection con, String username, String secret) {
-        JSONObject json = new JSONObject();
-        json.put("command", Message.LOCK_DENIED);
-        json.put("username", username);
-        json.put("secret", secret);
-        con.writeMsg(json.toJSONString());
+    public static boolean lockDenied(Connection con, String username, String secret) {
+        MessageEncoder.get().begin(LOCK_DENIED).field("username", username).field("secret", secret).end()
+                .writeTo(con);
         return false;
     }
 
-    public synchronized static boolean lockAllowed(Connection con, String username, String secret) {
-        JSONObject json = new JSONObject();
-        json.put("command", Message.LOCK_ALLOWED);
-        json.put("username", username);
-        json.put("secret", secret);
-        con.writeMsg(json.toJSONString());
+    public static boolean lockAllowed(Connection con, String username, String secret) {
+        MessageEncoder.get().begin(LOCK_ALLOWED).field("username", username).field("secret", secret).end()
+                .writeTo(con);
         return false;
     }
 
-    public synchronized static boolean registerFailed(Connection con, String info) {
-        JSONObject json = new JSONObject();
-        json.put("command", Message.REGISTER_FAILED);
-        json.put("info", info);
-        con.writeMsg(json.toJSONString());
-        System.out.println("register failed so I closed");
+    public static boolean registerFailed(Connection con, String info) {
+        MessageEncoder.get().begin(REGISTER_FAILED).field("info", info).end().writeTo(con);
+        log.debug("register failed so I closed");
         return true;
     }
 
-    public synchronized static boolean registerSuccess(Connection con, String info) {
-        JSONObject json = new JSONObject();
-        json.put("command", Message.REGISTER_SUCCESS);
-        json.put("info", info);
-        con.writeMsg(json.toJSONString());
+    public static boolean registerSuccess(Connection con, String info) {
+        MessageEncoder.get().begin(REGISTER_SUCCESS).field("info", info).end().writeTo(con);
         return false;
     }
 
@@ -111,12 +360,9 @@ public class Message {
      * @param secret
      * @return
      */
-    public synchronized static String register(String userName, String secret) {
-        JSONObject json = new JSONObject();
-        json.put("command", Message.REGISTER);
-        json.put("username", userName);
-        json.put("secret", secret);
-        return json.toJSONString();
+    public static String register(String userName, String secret) {
+        return MessageEncoder.get().begin(REGISTER).field("username", userName).field("secret", secret).end()
+                .toString();
     }
 
     /**
@@ -124,11 +370,8 @@ public class Message {
      *
      * @return
      */
-    public synchronized static String login() {
-        JSONObject json = new JSONObject();
-        json.put("command", Message.LOGIN);
-        json.put("username", Settings.getUsername());
-        return json.toJSONString();
+    public static String login() {
+        return MessageEncoder.get().begin(LOGIN).field("username", Settings.getUsername()).end().toString();
     }
 
     /**
@@ -137,47 +380,191 @@ public class Message {
      * @param userName
      * @return
      */
-    public synchronized static String login(String userName) {
-        JSONObject json = new JSONObject();
-        json.put("command", Message.LOGIN);
-        json.put("username", userName);
-        json.put("secret", Settings.getUserSecret());
-        return json.toJSONString();
+    public static String login(String userName) {
+        return MessageEncoder.get().begin(LOGIN).field("username", userName).field("secret", Settings.getUserSecret())
+                .end().toString();
     }
 
-    public synchronized static boolean loginSuccess(Connection con, String info) {
-        JSONObject json = new JSONObject();
-        json.put("command", Message.LOGIN_SUCCESS);
-        json.put("info", info);
-        con.writeMsg(json.toJSONString());
+    /**
+     * Client login that asks for activities as ACTIVITY_BROADCAST_BATCH
+     * where the server has them batched. A null userName logs in anonymously.
+     */
+    public static String batchLogin(String userName) {
+        MessageEncoder encoder = MessageEncoder.get().begin(LOGIN);
+        if (userName == null) {
+            encoder.field("username", Settings.getUsername());
+        } else {
+            encoder.field("username", userName).field("secret", Settings.getUserSecret());
+        }
+        return encoder.rawField("batch", "true").end().toString();
+    }
+
+    /**
+     * Take over a session from a server that has failed, at its standby.
+     */
+    public static String resume(String session) {
+        return MessageEncoder.get().begin(RESUME).field("session", session).end().toString();
+    }
+
+    /**
+     * Several activities from one user, checked once by the server.
+     *
+     * @param activities serialized activity objects
+     */
+    public static String activityBatch(String username, String secret, List<String> activities) {
+        MessageEncoder encoder = MessageEncoder.get().begin(ACTIVITY_BATCH).field("username", username)
+                .field("secret", secret).beginArray("activities");
+        for (String activity : activities) {
+            encoder.element(activity);
+        }
+        return encoder.endArray().end().toString();
+    }
+
+    /**
+     * @param activities serialized activity objects, already carrying their
+     *                   authenticated_user
+     */
+    public static String activityBroadcastBatch(List<String> activities) {
+        MessageEncoder encoder = MessageEncoder.get().begin(ACTIVITY_BROADCAST_BATCH).beginArray("activities");
+        for (String activity : activities) {
+            encoder.element(activity);
+        }
+        return encoder.endArray().end().toString();
+    }
+
+    /**
+     * Serialize an activity with authenticated_user set to its sender, in
+     * place of any the client put there. The field is added to the text, as
+     * JSONObject is a raw map.
+     */
+    public static String authenticatedActivity(JSONObject activity, String username) {
+        activity.remove("authenticated_user");
+        String json = activity.toJSONString();
+        StringBuilder sb = new StringBuilder(json.length() + username.length() + 24)
+                .append("{\"authenticated_user\":\"").append(JSONValue.escape(username)).append('"');
+        if (json.length() > 2) {
+            sb.append(',').append(json, 1, json.length());
+        } else {
+            sb.append('}');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param activity serialized activity object
+     */
+    public static String activityBroadcast(String activity) {
+        return MessageEncoder.get().begin(ACTIVITY_BROADCAST).rawField("activity", activity).end().toString();
+    }
+
+    /**
+     * Answer one channel of a multiplexed connection, which stays open
+     * whatever the answer.
+     */
+    public static boolean channelReply(Connection con, String command, long channel, String info) {
+        MessageEncoder.get().begin(command).field("channel", channel).field("info", info).end().writeTo(con);
         return false;
     }
 
-    public synchronized static boolean loginFailed(Connection con, String info) {
-        JSONObject json = new JSONObject();
-        json.put("command", Message.LOGIN_FAILED);
-        json.put("info", info);
-        con.writeMsg(json.toJSONString());
+    /**
+     * Log in one session of a multiplexed connection.
+     *
+     * @param secret null for anonymous
+     */
+    public static String channelLogin(long channel, String username, String secret, boolean batch) {
+        MessageEncoder encoder = MessageEncoder.get().begin(LOGIN).field("channel", channel)
+                .field("username", username);
+        if (secret != null) {
+            encoder.field("secret", secret);
+        }
+        if (batch) {
+            encoder.rawField("batch", "true");
+        }
+        return encoder.end().toString();
+    }
+
+    /**
+     * @return the start of a broadcast to the given channels, to take the
+     * place of the broadcast's opening brace
+     */
+    public static String channelsPrefix(Collection<Long> channels) {
+        StringBuilder sb = new StringBuilder("{\"channels\":[");
+        for (Long channel : channels) {
+            if (sb.charAt(sb.length() - 1) != '[') {
+                sb.append(',');
+            }
+            sb.append(channel);
+        }
+        return sb.append("],").toString();
+    }
+
+    public static boolean loginSuccess(Connection con, String info) {
+        MessageEncoder.get().begin(LOGIN_SUCCESS).field("info", info).end().writeTo(con);
+        return false;
+    }
+
+    public static boolean loginFailed(Connection con, String info) {
+        MessageEncoder.get().begin(LOGIN_FAILED).field("info", info).end().writeTo(con);
         return true;
     }
 
-    public synchronized static boolean redirect(Connection con, String address) {
-        JSONObject json = new JSONObject();
-        json.put("command", Message.REDIRECT);
-        String[] stringArr = address.split(":");
-        json.put("hostname", stringArr[0]);
-        json.put("port", Integer.parseInt(stringArr[1]));
-        con.writeMsg(json.toJSONString());
-        System.out.println("redirect so I closed");
+    /**
+     * Tell a client the token that resumes its session at the standby, if
+     * this server fails.
+     *
+     * @param standby hostname:port of the standby, null if there is none
+     */
+    public static void session(Connection con, String session, String standby) {
+        MessageEncoder encoder = MessageEncoder.get().begin(SESSION).field("session", session);
+        if (standby != null) {
+            encoder.field("standby", standby);
+        }
+        encoder.end().writeTo(con);
+    }
+
+    /**
+     * Sessions of server "from" for its standby "to", relayed hop by hop.
+     *
+     * @param op       add, remove, or reset to replace all of from's sessions
+     * @param sessions elements from {@link #sessionElement}
+     */
+    public static void sessionSync(Connection con, String to, String from, String op, List<String> sessions) {
+        MessageEncoder encoder = MessageEncoder.get().begin(SESSION_SYNC)
+                .field("to", to)
+                .field("from", from)
+                .field("op", op)
+                .beginArray("sessions");
+        for (String session : sessions) {
+            encoder.element(session);
+        }
+        encoder.endArray().end().writeTo(con);
+    }
+
+    /**
+     * @param secret null for anonymous sessions
+     */
+    public static String sessionElement(String session, String username, String secret, boolean batch) {
+        return "{\"session\":\"" + JSONObject.escape(session) + "\",\"username\":\"" + JSONObject.escape(username)
+                + "\",\"secret\":" + (secret == null ? "null" : "\"" + JSONObject.escape(secret) + "\"")
+                + ",\"batch\":" + batch + "}";
+    }
+
+    public static boolean redirect(Connection con, String address) {
+        int colon = address.lastIndexOf(':');
+        MessageEncoder.get().begin(REDIRECT)
+                .field("hostname", address.substring(0, colon))
+                .field("port", Integer.parseInt(address.substring(colon + 1)))
+                .end().writeTo(con);
+        log.debug("redirect so I closed");
         con.closeCon();
         return true;
     }
 
-    public synchronized static boolean activityBroadcast(Connection con, JSONObject activity) {
+    public static boolean activityBroadcast(Connection con, JSONObject activity) {
 //        JSONObject json = new JSONObject();
 //        json.put("command", Message.ACTIVITY_BROADCAST);
 //        json.put("activity", activity);
-        con.writeMsg(activity.toJSONString());
+        con.writeBulk(activity.toJSONString());
         return false;
     }
 
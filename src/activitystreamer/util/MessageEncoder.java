@@ -0,0 +1,253 @@
+package activitystreamer.util;
+
+import activitystreamer.server.Connection;
+
+/**
+ * Builds flat protocol messages into a reusable per-thread character buffer.
+ * The fixed parts of each message are precomputed templates and only the
+ * variable fields are escaped and copied, so encoding allocates nothing once
+ * the buffer has grown to fit and needs no lock.
+ *
+ * <pre>
+ * MessageEncoder.get().begin(Message.LOCK_REQUEST).field("username", username).end().writeTo(con);
+ * </pre>
+ */
+public final class MessageEncoder {
+    private static final ThreadLocal<MessageEncoder> ENCODERS = ThreadLocal.withInitial(MessageEncoder::new);
+    private static final char[] OPEN = "{\"command\":\"".toCharArray();
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private char[] buf = new char[256];
+    private int len;
+
+    private MessageEncoder() {
+    }
+
+    /**
+     * @return the calling thread's encoder; only valid until its next begin()
+     */
+    public static MessageEncoder get() {
+        return ENCODERS.get();
+    }
+
+    public MessageEncoder begin(String command) {
+        len = 0;
+        append(OPEN);
+        append(command);
+        append('"');
+        return this;
+    }
+
+    public MessageEncoder field(String name, String value) {
+        key(name);
+        if (value == null) {
+            append("null");
+        } else {
+            append('"');
+            appendEscaped(value);
+            append('"');
+        }
+        return this;
+    }
+
+    public MessageEncoder field(String name, long value) {
+        key(name);
+        ensure(20);
+        if (value == Long.MIN_VALUE) {
+            append(Long.toString(value));
+            return this;
+        }
+        if (value < 0) {
+            buf[len++] = '-';
+            value = -value;
+        }
+        int start = len;
+        do {
+            buf[len++] = (char) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        for (int i = start, j = len - 1; i < j; i++, j--) {
+            char t = buf[i];
+            buf[i] = buf[j];
+            buf[j] = t;
+        }
+        return this;
+    }
+
+    /**
+     * Append a finite number; JSON has no NaN or infinity.
+     */
+    public MessageEncoder field(String name, double value) {
+        key(name);
+        append(Double.toString(value));
+        return this;
+    }
+
+    /**
+     * Append a field whose value is already valid JSON, e.g. a nested object.
+     */
+    public MessageEncoder rawField(String name, String json) {
+        key(name);
+        append(json);
+        return this;
+    }
+
+    /**
+     * Open an array field; follow with pair() or element() calls and
+     * endArray().
+     */
+    public MessageEncoder beginArray(String name) {
+        key(name);
+        append('[');
+        return this;
+    }
+
+    /**
+     * Append a two string array as the next element of the open array.
+     */
+    public MessageEncoder pair(String first, String second) {
+        if (buf[len - 1] != '[') {
+            append(',');
+        }
+        append('[');
+        append('"');
+        appendEscaped(first);
+        append('"');
+        append(',');
+        append('"');
+        appendEscaped(second);
+        append('"');
+        append(']');
+        return this;
+    }
+
+    /**
+     * Append a value that is already valid JSON as the next element of the
+     * open array.
+     */
+    public MessageEncoder element(String json) {
+        if (buf[len - 1] != '[') {
+            append(',');
+        }
+        append(json);
+        return this;
+    }
+
+    public MessageEncoder endArray() {
+        append(']');
+        return this;
+    }
+
+    public MessageEncoder end() {
+        append('}');
+        return this;
+    }
+
+    public boolean writeTo(Connection con) {
+        return con.writeMsg(buf, len);
+    }
+
+    /**
+     * Queue the message in the connection's bulk lane, behind control traffic.
+     */
+    public boolean writeBulkTo(Connection con) {
+        return con.writeBulk(toString());
+    }
+
+    /**
+     * Queue the message in the connection's bulk lane, waiting while it is
+     * full. Only for a thread that serves this one connection.
+     */
+    public boolean writeBulkWaitingTo(Connection con) {
+        return con.writeBulk(toString(), true);
+    }
+
+    @Override
+    public String toString() {
+        return new String(buf, 0, len);
+    }
+
+    private void key(String name) {
+        ensure(name.length() + 4);
+        buf[len++] = ',';
+        buf[len++] = '"';
+        name.getChars(0, name.length(), buf, len);
+        len += name.length();
+        buf[len++] = '"';
+        buf[len++] = ':';
+    }
+
+    private void appendEscaped(String s) {
+        int n = s.length();
+        ensure(n);
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    append('\\');
+                    append('"');
+                    break;
+                case '\\':
+                    append('\\');
+                    append('\\');
+                    break;
+                case '\n':
+                    append('\\');
+                    append('n');
+                    break;
+                case '\r':
+                    append('\\');
+                    append('r');
+                    break;
+                case '\t':
+                    append('\\');
+                    append('t');
+                    break;
+                case '\b':
+                    append('\\');
+                    append('b');
+                    break;
+                case '\f':
+                    append('\\');
+                    append('f');
+                    break;
+                default:
+                    if (c < 0x20 || c == 0x2028 || c == 0x2029) {
+                        ensure(6);
+                        buf[len++] = '\\';
+                        buf[len++] = 'u';
+                        buf[len++] = HEX[(c >> 12) & 0xf];
+                        buf[len++] = HEX[(c >> 8) & 0xf];
+                        buf[len++] = HEX[(c >> 4) & 0xf];
+                        buf[len++] = HEX[c & 0xf];
+                    } else {
+                        append(c);
+                    }
+            }
+        }
+    }
+
+    private void append(char c) {
+        ensure(1);
+        buf[len++] = c;
+    }
+
+    private void append(char[] chars) {
+        ensure(chars.length);
+        System.arraycopy(chars, 0, buf, len, chars.length);
+        len += chars.length;
+    }
+
+    private void append(String s) {
+        ensure(s.length());
+        s.getChars(0, s.length(), buf, len);
+        len += s.length();
+    }
+
+    private void ensure(int extra) {
+        if (len + extra > buf.length) {
+            char[] bigger = new char[Math.max(buf.length * 2, len + extra)];
+            System.arraycopy(buf, 0, bigger, 0, len);
+            buf = bigger;
+        }
+    }
+}
@@ -23,10 +23,79 @@ public class Settings {
 	private static int serverIdLength = 26;
 	private static boolean remoteAuthenticated = false;
 	private static String serverSecret = "1";
+	// admission control, a rate of 0 disables the limit
+	public static final String OVERLOAD_DROP = "drop";
+	public static final String OVERLOAD_DELAY = "delay";
+	public static final String OVERLOAD_REDIRECT = "redirect";
+	private static int maxConnections = 0;
+	private static double activityRate = 0; // messages per second
+	private static int activityBurst = 20;
+	private static double registerRate = 0; // messages per second
+	private static int registerBurst = 5;
+	private static String overloadPolicy = OVERLOAD_DROP;
+	private static int maxOverloadDelay = 1000; // milliseconds
+	private static int acceptors = 1;
+	private static int acceptBacklog = 50;
+	// fraction of locally originated broadcasts that carry a trace, 0 disables tracing
+	private static double traceSampleRate = 0;
+	// a link silent for this long is considered dead, 0 for three activity intervals
+	private static int heartbeatTimeout = 0; // milliseconds
+	// how long an orphaned server keeps trying to rejoin the tree
+	private static int repairTimeout = 10000; // milliseconds
+	// hops a subtree must gain before it moves closer to the root, 0 disables rebalancing
+	private static int balanceThreshold = 2;
+	// where registered users live: on every server, or on a few owners picked by consistent hashing
+	public static final String DIRECTORY_REPLICATED = "replicated";
+	public static final String DIRECTORY_PARTITIONED = "partitioned";
+	private static String directoryMode = DIRECTORY_REPLICATED;
+	private static int replicationFactor = 2;
+	// characters, about bytes, waiting in a connection's bulk lane before a client is dropped as a
+	// slow consumer or a server link sheds relayed broadcasts
+	private static int bulkQueueBytes = 1 << 22;
+	// file all traffic is captured to, null for no capture
+	private static String captureFile = null;
+	// longest message accepted, in bytes, on server and client connections
+	private static int maxFrameBytes = 4 << 20;
+	// most activities a server accepts in one ACTIVITY_BATCH
+	private static int maxActivityBatch = 1000;
+	// microseconds relayed broadcasts may wait to share a frame on a server link, 0 to send each alone
+	private static long linkLinger = 1000;
+	// largest ACTIVITY_FRAME, in characters
+	private static int linkFrameBytes = 64 * 1024;
+	// most activities the client packs into one ACTIVITY_BATCH, 1 sends them singly
+	private static int clientActivityBatch = 64;
+	// offline mailboxes: memory for recent broadcasts before they spill to mailboxDir, 0 disables mailboxes
+	private static long mailboxMemory = 16L << 20; // bytes
+	private static long mailboxDisk = 256L << 20; // bytes, beyond which the oldest spilled broadcasts go
+	private static String mailboxDir = null; // null for a directory under java.io.tmpdir
+	private static int mailboxUserLimit = 10000; // most broadcasts kept for one user
+	private static long mailboxMaxAge = 7L * 24 * 3600 * 1000; // milliseconds a user may be away and keep a mailbox
+	// load score: what counts as full for each part, and how far apart scores must be to move a client
+	private static int sessionCapacity = 1000;
+	private static long backlogCapacity = 16L << 20; // bytes waiting in outbound queues
+	private static int messageRateCapacity = 10000; // messages processed per second
+	private static double scoreHysteresis = 5; // points, 100 is a server at capacity
+	private static int scoreSmoothing = 5000; // milliseconds, time constant of the moving average
+	// cluster statistics: how long a query waits for the tree, and how long its answer is reused
+	private static int statsTimeout = 2000; // milliseconds
+	private static int statsCacheTtl = 1000; // milliseconds, 0 to always ask the tree
+	// warm standby: hostname:port of the server our sessions are replicated to, null for the parent or,
+	// at the root, a child, STANDBY_NONE for no replication
+	public static final String STANDBY_NONE = "none";
+	private static String standby = null;
+	private static int resumeWindow = 60000; // milliseconds a standby keeps the sessions of a failed server
+	// where registered users are kept: in heap maps, or in direct memory for very large registries
+	public static final String USER_STORE_HEAP = "heap";
+	public static final String USER_STORE_OFFHEAP = "offheap";
+	private static String userStore = USER_STORE_HEAP;
+	private static int userStoreSlab = 16 << 20; // bytes of direct memory allocated at a time
 
 	// for client
 	private static String userSecret = null;
 	private static String username = "anonymous";
+	// scrollback of the output window, 0 for no limit
+	private static int outputMaxLines = 5000;
+	private static int outputMaxChars = 1 << 20;
 
 	// set server id.
 	public static void setServerId() {
@@ -106,6 +175,22 @@ public class Settings {
 		Settings.username = username;
 	}
 
+	public static int getOutputMaxLines() {
+		return outputMaxLines;
+	}
+
+	public static void setOutputMaxLines(int outputMaxLines) {
+		Settings.outputMaxLines = outputMaxLines;
+	}
+
+	public static int getOutputMaxChars() {
+		return outputMaxChars;
+	}
+
+	public static void setOutputMaxChars(int outputMaxChars) {
+		Settings.outputMaxChars = outputMaxChars;
+	}
+
 	public static String getLocalHostname() {
 		return localHostname;
 	}
@@ -122,6 +207,432 @@ public class Settings {
 		Settings.serverSecret = serverSecret;
 	}
 
+	public static int getMaxConnections() {
+		return maxConnections;
+	}
+
+	public static void setMaxConnections(int maxConnections) {
+		Settings.maxConnections = maxConnections;
+	}
+
+	public static double getActivityRate() {
+		return activityRate;
+	}
+
+	public static void setActivityRate(double activityRate) {
+		Settings.activityRate = activityRate;
+	}
+
+	public static int getActivityBurst() {
+		return activityBurst;
+	}
+
+	public static void setActivityBurst(int activityBurst) {
+		Settings.activityBurst = activityBurst;
+	}
+
+	public static double getRegisterRate() {
+		return registerRate;
+	}
+
+	public static void setRegisterRate(double registerRate) {
+		Settings.registerRate = registerRate;
+	}
+
+	public static int getRegisterBurst() {
+		return registerBurst;
+	}
+
+	public static void setRegisterBurst(int registerBurst) {
+		Settings.registerBurst = registerBurst;
+	}
+
+	public static String getOverloadPolicy() {
+		return overloadPolicy;
+	}
+
+	public static void setOverloadPolicy(String overloadPolicy) {
+		if (!overloadPolicy.equals(OVERLOAD_DROP) && !overloadPolicy.equals(OVERLOAD_DELAY)
+				&& !overloadPolicy.equals(OVERLOAD_REDIRECT)) {
+			log.error("unknown overload policy " + overloadPolicy + ", using " + getOverloadPolicy());
+		} else {
+			Settings.overloadPolicy = overloadPolicy;
+		}
+	}
+
+	public static int getMaxOverloadDelay() {
+		return maxOverloadDelay;
+	}
+
+	public static void setMaxOverloadDelay(int maxOverloadDelay) {
+		Settings.maxOverloadDelay = maxOverloadDelay;
+	}
+
+	public static int getAcceptors() {
+		return acceptors;
+	}
+
+	public static void setAcceptors(int acceptors) {
+		if (acceptors < 1) {
+			log.error("supplied acceptor count " + acceptors + " must be at least 1, using " + getAcceptors());
+		} else {
+			Settings.acceptors = acceptors;
+		}
+	}
+
+	public static int getAcceptBacklog() {
+		return acceptBacklog;
+	}
+
+	public static void setAcceptBacklog(int acceptBacklog) {
+		Settings.acceptBacklog = acceptBacklog;
+	}
+
+	public static double getTraceSampleRate() {
+		return traceSampleRate;
+	}
+
+	public static void setTraceSampleRate(double traceSampleRate) {
+		if (traceSampleRate < 0 || traceSampleRate > 1) {
+			log.error("supplied trace sample rate " + traceSampleRate + " is not between 0 and 1, using "
+					+ getTraceSampleRate());
+		} else {
+			Settings.traceSampleRate = traceSampleRate;
+		}
+	}
+
+	public static int getHeartbeatTimeout() {
+		return heartbeatTimeout > 0 ? heartbeatTimeout : 3 * activityInterval;
+	}
+
+	public static void setHeartbeatTimeout(int heartbeatTimeout) {
+		if (heartbeatTimeout < 0) {
+			log.error("supplied heartbeat timeout " + heartbeatTimeout + " is negative, using " + getHeartbeatTimeout());
+		} else {
+			Settings.heartbeatTimeout = heartbeatTimeout;
+		}
+	}
+
+	public static int getRepairTimeout() {
+		return repairTimeout;
+	}
+
+	public static void setRepairTimeout(int repairTimeout) {
+		Settings.repairTimeout = repairTimeout;
+	}
+
+	public static int getBalanceThreshold() {
+		return balanceThreshold;
+	}
+
+	public static void setBalanceThreshold(int balanceThreshold) {
+		Settings.balanceThreshold = balanceThreshold;
+	}
+
+	public static String getDirectoryMode() {
+		return directoryMode;
+	}
+
+	public static void setDirectoryMode(String directoryMode) {
+		if (!directoryMode.equals(DIRECTORY_REPLICATED) && !directoryMode.equals(DIRECTORY_PARTITIONED)) {
+			log.error("unknown directory mode " + directoryMode + ", using " + getDirectoryMode());
+		} else {
+			Settings.directoryMode = directoryMode;
+		}
+	}
+
+	public static int getReplicationFactor() {
+		return replicationFactor;
+	}
+
+	public static void setReplicationFactor(int replicationFactor) {
+		if (replicationFactor < 1) {
+			log.error("supplied replication factor " + replicationFactor + " must be at least 1, using "
+					+ getReplicationFactor());
+		} else {
+			Settings.replicationFactor = replicationFactor;
+		}
+	}
+
+	public static int getBulkQueueBytes() {
+		return bulkQueueBytes;
+	}
+
+	public static void setBulkQueueBytes(int bulkQueueBytes) {
+		if (bulkQueueBytes < 1) {
+			log.error("supplied bulk queue size " + bulkQueueBytes + " must be at least 1 byte, using "
+					+ getBulkQueueBytes());
+		} else {
+			Settings.bulkQueueBytes = bulkQueueBytes;
+		}
+	}
+
+	public static String getCaptureFile() {
+		return captureFile;
+	}
+
+	public static void setCaptureFile(String captureFile) {
+		Settings.captureFile = captureFile;
+	}
+
+	public static int getMaxFrameBytes() {
+		return maxFrameBytes;
+	}
+
+	public static void setMaxFrameBytes(int maxFrameBytes) {
+		if (maxFrameBytes < 1024 || maxFrameBytes > 1 << 30) {
+			log.error("supplied message size limit " + maxFrameBytes + " is not between 1024 and " + (1 << 30)
+					+ ", using " + getMaxFrameBytes());
+		} else {
+			Settings.maxFrameBytes = maxFrameBytes;
+		}
+	}
+
+	public static int getMaxActivityBatch() {
+		return maxActivityBatch;
+	}
+
+	public static void setMaxActivityBatch(int maxActivityBatch) {
+		if (maxActivityBatch < 1) {
+			log.error("supplied activity batch limit " + maxActivityBatch + " must be at least 1, using "
+					+ getMaxActivityBatch());
+		} else {
+			Settings.maxActivityBatch = maxActivityBatch;
+		}
+	}
+
+	public static long getLinkLinger() {
+		return linkLinger;
+	}
+
+	public static void setLinkLinger(long linkLinger) {
+		if (linkLinger < 0) {
+			log.error("supplied link linger " + linkLinger + " must not be negative, using " + getLinkLinger());
+		} else {
+			Settings.linkLinger = linkLinger;
+		}
+	}
+
+	public static int getLinkFrameBytes() {
+		return linkFrameBytes;
+	}
+
+	public static void setLinkFrameBytes(int linkFrameBytes) {
+		if (linkFrameBytes < 1024) {
+			log.error("supplied link frame size " + linkFrameBytes + " must be at least 1024, using "
+					+ getLinkFrameBytes());
+		} else {
+			Settings.linkFrameBytes = linkFrameBytes;
+		}
+	}
+
+	public static int getClientActivityBatch() {
+		return clientActivityBatch;
+	}
+
+	public static void setClientActivityBatch(int clientActivityBatch) {
+		if (clientActivityBatch < 1) {
+			log.error("supplied activity batch size " + clientActivityBatch + " must be at least 1, using "
+					+ getClientActivityBatch());
+		} else {
+			Settings.clientActivityBatch = clientActivityBatch;
+		}
+	}
+
+	public static long getMailboxMemory() {
+		return mailboxMemory;
+	}
+
+	public static void setMailboxMemory(long mailboxMemory) {
+		if (mailboxMemory != 0 && mailboxMemory < 1 << 20) {
+			log.error("supplied mailbox memory " + mailboxMemory + " must be 0 or at least " + (1 << 20)
+					+ ", using " + getMailboxMemory());
+		} else {
+			Settings.mailboxMemory = mailboxMemory;
+		}
+	}
+
+	public static long getMailboxDisk() {
+		return mailboxDisk;
+	}
+
+	public static void setMailboxDisk(long mailboxDisk) {
+		if (mailboxDisk < 0) {
+			log.error("supplied mailbox disk limit " + mailboxDisk + " must not be negative, using "
+					+ getMailboxDisk());
+		} else {
+			Settings.mailboxDisk = mailboxDisk;
+		}
+	}
+
+	public static String getMailboxDir() {
+		return mailboxDir;
+	}
+
+	public static void setMailboxDir(String mailboxDir) {
+		Settings.mailboxDir = mailboxDir;
+	}
+
+	public static int getMailboxUserLimit() {
+		return mailboxUserLimit;
+	}
+
+	public static void setMailboxUserLimit(int mailboxUserLimit) {
+		if (mailboxUserLimit < 1) {
+			log.error("supplied mailbox size " + mailboxUserLimit + " must be at least 1, using "
+					+ getMailboxUserLimit());
+		} else {
+			Settings.mailboxUserLimit = mailboxUserLimit;
+		}
+	}
+
+	public static long getMailboxMaxAge() {
+		return mailboxMaxAge;
+	}
+
+	public static void setMailboxMaxAge(long mailboxMaxAge) {
+		if (mailboxMaxAge < 1) {
+			log.error("supplied mailbox age " + mailboxMaxAge + " must be at least 1, using " + getMailboxMaxAge());
+		} else {
+			Settings.mailboxMaxAge = mailboxMaxAge;
+		}
+	}
+
+	public static int getSessionCapacity() {
+		return sessionCapacity;
+	}
+
+	public static void setSessionCapacity(int sessionCapacity) {
+		if (sessionCapacity < 1) {
+			log.error("supplied session capacity " + sessionCapacity + " must be at least 1, using "
+					+ getSessionCapacity());
+		} else {
+			Settings.sessionCapacity = sessionCapacity;
+		}
+	}
+
+	public static long getBacklogCapacity() {
+		return backlogCapacity;
+	}
+
+	public static void setBacklogCapacity(long backlogCapacity) {
+		if (backlogCapacity < 1) {
+			log.error("supplied backlog capacity " + backlogCapacity + " must be at least 1, using "
+					+ getBacklogCapacity());
+		} else {
+			Settings.backlogCapacity = backlogCapacity;
+		}
+	}
+
+	public static int getMessageRateCapacity() {
+		return messageRateCapacity;
+	}
+
+	public static void setMessageRateCapacity(int messageRateCapacity) {
+		if (messageRateCapacity < 1) {
+			log.error("supplied message rate capacity " + messageRateCapacity + " must be at least 1, using "
+					+ getMessageRateCapacity());
+		} else {
+			Settings.messageRateCapacity = messageRateCapacity;
+		}
+	}
+
+	public static double getScoreHysteresis() {
+		return scoreHysteresis;
+	}
+
+	public static void setScoreHysteresis(double scoreHysteresis) {
+		if (scoreHysteresis < 0) {
+			log.error("supplied score hysteresis " + scoreHysteresis + " must not be negative, using "
+					+ getScoreHysteresis());
+		} else {
+			Settings.scoreHysteresis = scoreHysteresis;
+		}
+	}
+
+	public static int getScoreSmoothing() {
+		return scoreSmoothing;
+	}
+
+	public static void setScoreSmoothing(int scoreSmoothing) {
+		if (scoreSmoothing < 0) {
+			log.error("supplied score smoothing " + scoreSmoothing + " must not be negative, using "
+					+ getScoreSmoothing());
+		} else {
+			Settings.scoreSmoothing = scoreSmoothing;
+		}
+	}
+
+	public static int getStatsTimeout() {
+		return statsTimeout;
+	}
+
+	public static void setStatsTimeout(int statsTimeout) {
+		if (statsTimeout < 1) {
+			log.error("supplied statistics timeout " + statsTimeout + " must be at least 1, using "
+					+ getStatsTimeout());
+		} else {
+			Settings.statsTimeout = statsTimeout;
+		}
+	}
+
+	public static int getStatsCacheTtl() {
+		return statsCacheTtl;
+	}
+
+	public static void setStatsCacheTtl(int statsCacheTtl) {
+		if (statsCacheTtl < 0) {
+			log.error("supplied statistics cache time " + statsCacheTtl + " must not be negative, using "
+					+ getStatsCacheTtl());
+		} else {
+			Settings.statsCacheTtl = statsCacheTtl;
+		}
+	}
+
+	public static String getStandby() {
+		return standby;
+	}
+
+	public static void setStandby(String standby) {
+		Settings.standby = standby;
+	}
+
+	public static int getResumeWindow() {
+		return resumeWindow;
+	}
+
+	public static void setResumeWindow(int resumeWindow) {
+		if (resumeWindow < 0) {
+			log.error("supplied resume window " + resumeWindow + " must not be negative, using " + getResumeWindow());
+		} else {
+			Settings.resumeWindow = resumeWindow;
+		}
+	}
+
+	public static String getUserStore() {
+		return userStore;
+	}
+
+	public static void setUserStore(String userStore) {
+		if (!userStore.equals(USER_STORE_HEAP) && !userStore.equals(USER_STORE_OFFHEAP)) {
+			log.error("unknown user store " + userStore + ", using " + getUserStore());
+		} else {
+			Settings.userStore = userStore;
+		}
+	}
+
+	public static int getUserStoreSlab() {
+		return userStoreSlab;
+	}
+
+	public static void setUserStoreSlab(int userStoreSlab) {
+		if (userStoreSlab < 1 << 20) {
+			log.error("supplied user store slab " + userStoreSlab + " is below 1 MB, using " + getUserStoreSlab());
+		} else {
+			Settings.userStoreSlab = userStoreSlab;
+		}
+	}
+
 	public static boolean isRemoteAuthenticated() {
 		return remoteAuthenticated;
 	}
@@ -0,0 +1,200 @@
+package activitystreamer.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Checks of OffHeapUserStore's probing, iteration and compaction. There is
+ * no test framework in lib/, so this is a plain program that fails with an
+ * AssertionError. From the project directory, with LIB the jars of lib/
+ * joined by ':':
+ * <pre>
+ * javac -d out -cp $LIB $(find src test -name '*.java')
+ * java -cp out:$LIB activitystreamer.server.OffHeapUserStoreTest
+ * </pre>
+ */
+public class OffHeapUserStoreTest {
+    // the index a new store starts with, before it grows
+    private static final int SLOTS = 1 << 10;
+
+    public static void main(String[] args) {
+        removeAcrossWraparound();
+        randomAgainstMap();
+        removeWhileIterating();
+        compactWhileIterating();
+        System.out.println("OffHeapUserStoreTest passed");
+    }
+
+    /**
+     * Probe chains that run off the end of the index continue at slot 0,
+     * and removing an entry must shift back entries on both sides of the
+     * wrap.
+     */
+    private static void removeAcrossWraparound() {
+        // homes at the last two slots and the first, so every chain crosses the end
+        List<String> names = new ArrayList<>();
+        names.addAll(namesAt(SLOTS - 2, 3));
+        names.addAll(namesAt(SLOTS - 1, 3));
+        names.addAll(namesAt(0, 3));
+        for (int round = 0; round < names.size(); round++) {
+            OffHeapUserStore store = new OffHeapUserStore(0);
+            Map<String, String> expected = new HashMap<>();
+            for (String name : names) {
+                check(store.putIfAbsent(name, "s" + name), "put " + name);
+                expected.put(name, "s" + name);
+            }
+            // remove in a different order each round, checking everything after each removal
+            for (int i = 0; i < names.size(); i++) {
+                String name = names.get((round + i * 5) % names.size());
+                check(store.remove(name), "remove " + name);
+                expected.remove(name);
+                checkSame(store, expected, names);
+            }
+            check(store.size() == 0, "store empty after removing everything");
+            for (String name : names) {
+                check(store.putIfAbsent(name, "t" + name), "put again " + name);
+                check(("t" + name).equals(store.getSecret(name)), "secret of " + name + " after putting it again");
+            }
+        }
+    }
+
+    /**
+     * Random puts and removes over a small set of names, through resizes,
+     * against a HashMap.
+     */
+    private static void randomAgainstMap() {
+        Random random = new Random(42);
+        OffHeapUserStore store = new OffHeapUserStore(0);
+        Map<String, String> expected = new HashMap<>();
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            names.add("user" + i);
+        }
+        for (int op = 0; op < 200000; op++) {
+            String name = names.get(random.nextInt(names.size()));
+            if (random.nextInt(3) == 0) {
+                check(store.remove(name) == (expected.remove(name) != null), "remove " + name);
+            } else {
+                String secret = "secret" + op;
+                check(store.putIfAbsent(name, secret) == (expected.putIfAbsent(name, secret) == null),
+                        "put " + name);
+            }
+        }
+        checkSame(store, expected, names);
+        Map<String, String> iterated = new HashMap<>();
+        for (Map.Entry<String, String> entry : store) {
+            check(iterated.put(entry.getKey(), entry.getValue()) == null, "returned twice " + entry.getKey());
+        }
+        check(iterated.equals(expected), "iteration returns exactly the stored users");
+    }
+
+    /**
+     * An iterator returns every user present throughout once, and none it
+     * has not reached yet that was removed.
+     */
+    private static void removeWhileIterating() {
+        OffHeapUserStore store = new OffHeapUserStore(0);
+        for (int i = 0; i < 2000; i++) {
+            store.putIfAbsent("user" + i, "secret" + i);
+        }
+        Set<String> returned = new HashSet<>();
+        Set<String> removed = new HashSet<>();
+        Iterator<Map.Entry<String, String>> it = store.iterator();
+        for (int n = 0; it.hasNext(); n++) {
+            Map.Entry<String, String> entry = it.next();
+            check(returned.add(entry.getKey()), "returned twice " + entry.getKey());
+            check(!removed.contains(entry.getKey()), "returned after its removal " + entry.getKey());
+            check(entry.getValue().equals("secret" + entry.getKey().substring(4)), "secret of " + entry.getKey());
+            if (n % 10 == 0) {
+                // one behind, already returned, and one ahead, not yet
+                for (String name : new String[]{"user" + (n / 2), "user" + (n + 7)}) {
+                    if (store.remove(name)) {
+                        removed.add(name);
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < 2000; i++) {
+            String name = "user" + i;
+            check(removed.contains(name) || returned.contains(name), "never returned " + name);
+        }
+        check(store.size() == 2000 - removed.size(), "size after the removals");
+    }
+
+    /**
+     * A compaction moves every record; an iterator open across it carries
+     * on after the last user it returned, without repeating or skipping
+     * any.
+     */
+    private static void compactWhileIterating() {
+        OffHeapUserStore store = new OffHeapUserStore(0);
+        // long secrets, so the dead records soon outweigh both the live ones and a slab
+        String pad = new String(new char[1000]).replace('\0', 'p');
+        int users = 600;
+        for (int i = 0; i < users; i++) {
+            store.putIfAbsent("user" + i, pad + i);
+        }
+        check(store.summary().contains(" 0% dead"), "nothing dead before the removals: " + store.summary());
+        Iterator<Map.Entry<String, String>> it = store.iterator();
+        Set<String> returned = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            returned.add(it.next().getKey());
+        }
+        Set<String> removed = new HashSet<>();
+        for (int i = 0; i < users; i++) {
+            if (i % 4 != 0) {
+                store.remove("user" + i);
+                removed.add("user" + i);
+            }
+        }
+        check(!store.summary().contains(" 0% dead"), "dead records before the compaction: " + store.summary());
+        // the next put finds the dead records outweighing the live ones and compacts
+        check(store.putIfAbsent("late", "late"), "put after the removals");
+        check(store.summary().contains(" 0% dead"), "compacted: " + store.summary());
+        while (it.hasNext()) {
+            Map.Entry<String, String> entry = it.next();
+            check(returned.add(entry.getKey()), "returned twice " + entry.getKey());
+            check(!removed.contains(entry.getKey()) || Integer.parseInt(entry.getKey().substring(4)) < 100,
+                    "returned after its removal " + entry.getKey());
+        }
+        for (int i = 0; i < users; i += 4) {
+            check(returned.contains("user" + i), "skipped across the compaction user" + i);
+            check((pad + i).equals(store.getSecret("user" + i)), "secret of user" + i + " after the compaction");
+        }
+        check(returned.contains("late"), "the user put after the iterator started");
+        check(store.size() == users / 4 + 1, "size after the compaction");
+    }
+
+    // usernames whose hash puts them at the given slot of a new store's index
+    private static List<String> namesAt(int slot, int count) {
+        List<String> names = new ArrayList<>();
+        for (int i = 0; names.size() < count; i++) {
+            if ((OffHeapUserStore.hash("u" + i) & SLOTS - 1) == slot) {
+                names.add("u" + i);
+            }
+        }
+        return names;
+    }
+
+    private static void checkSame(UserStore store, Map<String, String> expected, List<String> names) {
+        check(store.size() == expected.size(), "size " + store.size() + " expected " + expected.size());
+        for (String name : names) {
+            String secret = expected.get(name);
+            check(store.contains(name) == (secret != null), "contains " + name);
+            check(secret == null ? store.getSecret(name) == null : secret.equals(store.getSecret(name)),
+                    "secret of " + name);
+        }
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError(what);
+        }
+    }
+}